@@ -0,0 +1,375 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Copia do algoritmo original do PreviousTerm, usada somente como referencia
+ * (engine 'baseline') nos benchmarks: os termos seguintes sao obtidos pela
+ * juncao de um cursor MultiTerms por campo (NextTerms) e cada termo previo e
+ * encontrado adivinhando uma chave menor (guessPreviousWord) e lendo os
+ * termos seguintes a ela ate cercar o termo inicial. O codigo e mantido como
+ * era para que a comparacao seja justa; nao deve ser usado fora dos
+ * benchmarks.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public final class BaselineTerms {
+    private static final class Tum {
+        private final TermsEnum tenum;
+        private boolean eof;
+        private String cur;
+
+        Tum(final IndexReader reader,
+            final String field,
+            final String term) throws IOException {
+            assert reader != null;
+            assert field != null;
+            assert term != null;
+
+            final Terms terms = MultiTerms.getTerms(reader, field.trim());
+            if (terms == null) {
+                throw new IOException("Invalid field: " + field);
+            }
+
+            tenum = terms.iterator();
+
+            eof = tenum.seekCeil(new BytesRef(term.trim()))
+                                                  == TermsEnum.SeekStatus.END;
+            cur = null;
+        }
+
+        boolean hasNext() {
+            return !eof;
+        }
+
+        String next() throws IOException {
+            if (eof) {
+                throw new IOException("end of iterator found");
+            }
+            final String ret = tenum.term().utf8ToString();
+            cur = ret;
+            eof = (tenum.next() == null);
+
+            return ret;
+        }
+
+        String current() throws IOException {
+            final String current;
+
+            if (cur == null) {
+                current = eof ? null : next();
+            } else {
+                current = cur;
+            }
+
+            return current;
+        }
+    }
+
+    private static final class NextTerms {
+        final Set<Tum> lte;
+        String cur;
+        boolean first;
+        final String max;
+
+        NextTerms(final IndexReader reader,
+                  final Set<String> fields,
+                  final String term) throws IOException {
+            assert reader != null;
+            assert fields != null;
+            assert term != null;
+
+            lte = new HashSet<>();
+            cur = term.trim();
+            first = true;
+            max = Character.valueOf(Character.MAX_VALUE).toString();
+
+            for (String fld : fields) {
+                lte.add(new Tum(reader, fld, term));
+            }
+        }
+
+        boolean hasNext() {
+            boolean ret = false;
+
+            for (Tum tum : lte) {
+                if (tum.hasNext()) {
+                    ret = true;
+                    break;
+                }
+            }
+
+            return ret;
+        }
+
+        String next() throws IOException {
+            String min = max;
+
+            for (Tum tum : lte) {
+                String tcur = tum.current();
+
+                while (true) {
+                    if (tcur == null) {
+                        break;
+                    } else if (first && tcur.compareTo(cur) >= 0) {
+                        break;
+                    } else if (tcur.compareTo(cur) > 0) {
+                        break;
+                    } else if (!tum.hasNext()) {
+                        break;
+                    }
+                    tcur = tum.next();
+                }
+                if ((tcur != null) && (tcur.compareTo(min) < 0)) {
+                    min = tcur;
+                }
+            }
+            cur = min.equals(max) ? null : min;
+            first = false;
+
+            return cur;
+        }
+    }
+
+    private final IndexReader reader;
+
+    /**
+     * @param reader leitor do indice (nao e fechado por esta classe)
+     */
+    public BaselineTerms(final IndexReader reader) {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        this.reader = reader;
+    }
+
+    /**
+     * Encontra os termos previos de um indice em relacao ao termo inicial
+     * @param init termo inicial em relacao ao qual os termos previos serao
+     * encontrados
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return lista de termos previos em relacao ao termo inicial
+     * @throws IOException
+     */
+    public List<String> getPreviousTerms(final String init,
+                                         final Set<String> fields,
+                                         final int maxSize) throws IOException {
+        final List<String> ret = new ArrayList<>();
+        int mSize = maxSize;
+        String initX = init;
+
+        final NextTerms nterms = new NextTerms(reader, fields, initX);
+        if (nterms.hasNext() && nterms.next().equals(initX)) {
+            ret.add(initX);
+            mSize--;
+        }
+
+        for (int tot = 0; tot < mSize; tot++) {
+            final String prev = getPreviousTerm(initX, fields);
+
+            if (prev == null) {
+                break;
+            }
+            ret.add(prev);
+            initX = prev;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Retorna os proximos 'maxSize' termos do indice a partir de 'init'
+     * @param init termo inicial a partir do qual os outros serao retornados
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return lista ordenada dos proximos termos a partir de 'init'
+     * @throws IOException
+     */
+    public List<String> getNextTerms(final String init,
+                                     final Set<String> fields,
+                                     final int maxSize) throws IOException {
+        final List<String> ret = new ArrayList<>();
+        final NextTerms nterms = new NextTerms(reader, fields, init);
+        int total = 0;
+
+        while (nterms.hasNext()) {
+            if (++total > maxSize) {
+                break;
+            }
+            final String next = nterms.next();
+            if (next != null) {
+                ret.add(next);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Encontra o termo previo em relacao ao termo inicial
+     */
+    private String getPreviousTerm(final String init,
+                                   final Set<String> fields)
+                                                            throws IOException {
+        assert fields != null;
+        assert (init != null) && (!init.isEmpty());
+
+        final int RANGE = 10;             // next terms max buffer
+        final int MAXTOTFIRSTPOS = 210;   // max tries to guess previous word
+
+        String initX = init;
+        String lowerBound = null;
+        String ret;
+        int totFirstPos = 0;
+        int totGetNext = 0;
+
+        while (true) {
+            final String previousWord = guessPreviousWord(initX, lowerBound);
+            if (previousWord == null) {
+                ret = null;
+                break;
+            }
+            final List<String> nextWords =
+                                     getNextTerms(previousWord, fields, RANGE);
+            if (nextWords.isEmpty()) {
+                if (totGetNext++ > MAXTOTFIRSTPOS) {
+                    ret = lowerBound;
+                    break;
+                }
+                initX = previousWord;
+            } else {
+                final String last = nextWords.get(nextWords.size() - 1);
+                if (last.compareTo(initX) < 0) {
+                    lowerBound = last;         // init esta em um bloco adiante
+                } else {
+                    int idx = 0;
+                    for (String word : nextWords) {  // init no bloco corrente
+                        if (word.compareTo(init) >= 0) {
+                            break;
+                        }
+                        idx++;
+                    }
+                    if (idx == 0) {            // init esta na primeira posicao
+                        if (totFirstPos++ > MAXTOTFIRSTPOS) {
+                            ret = lowerBound;
+                            break;
+                        }
+                        initX = previousWord;
+                    } else {
+                        ret = nextWords.get(idx - 1);  // achou termo previo
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gera uma string que estaria a uma distancia media entre as strings
+     * 'current' e 'lastGuess'.
+     */
+    private static String guessPreviousWord(final String current,
+                                            final String lastGuess) {
+        assert current != null;
+        assert (lastGuess == null) ? true : (current.compareTo(lastGuess) > 0)
+                                                    : current + ">" + lastGuess;
+
+        final String ret;
+        final int clen = current.length();
+
+        if (lastGuess == null) {
+            if (clen == 1) {
+                final char first = current.charAt(0);
+                final char med = (char)(first/2);
+                ret = "" + ((first == med)
+                                  ? first + (char)(Character.MAX_VALUE / 2)
+                                  : med);
+            } else {
+                ret = current.substring(0, clen - 1);
+            }
+        } else {
+            final StringBuilder builder = new StringBuilder();
+            final int llen = lastGuess.length();
+            final int max = Math.max(clen, llen);
+            boolean addLetter = false;
+
+            for (int idx = 0; idx < max; idx++) {
+                if (idx < clen) {
+                    final char cch = current.charAt(idx);
+                    if (idx < llen) {
+                        final char lch = lastGuess.charAt(idx);
+                        if (addLetter) {
+                            final char med =
+                                       (char) ((Character.MAX_VALUE - lch) / 2);
+                            if (med > 0) {
+                                builder.append((char)(lch + med));
+                                addLetter = false;
+                                break;
+                            }
+                        } else if (cch == lch) {
+                            builder.append(cch);
+                        } else {
+                            final char med = (char)((lch + cch) / 2);
+                            if (med == lch) {
+                                builder.append(lch);
+                                addLetter = true;
+                            } else {
+                                builder.append(med);
+                                addLetter = false;
+                                break;
+                            }
+                        }
+                    } else {
+                        final char med = (char)(cch / 2);
+                        if (med > 0) {
+                            builder.append(med);
+                            addLetter = false;
+                            break;
+                        } else {
+                            builder.append(cch);
+                            addLetter = true;
+                        }
+                    }
+                } else {
+                    final char lch = lastGuess.charAt(idx);
+                    final char med = (char) ((Character.MAX_VALUE - lch) / 2);
+
+                    if (med > 0) {
+                        builder.append((char)(lch + med));
+                        addLetter = false;
+                        break;
+                    } else {
+                        builder.append(lch);
+                        addLetter = true;
+                    }
+                }
+            }
+            if (addLetter) {
+                final char med = (char)(Character.MAX_VALUE / 2);
+                builder.append(med);
+            }
+
+            ret = builder.toString();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,224 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm.bench;
+
+import br.bireme.prvtrm.PreviousTerm;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks do PreviousTerm sobre indices sinteticos (SyntheticIndex).
+ * Exemplos:
+ * sbt "bench/Jmh/run -prof gc BrowseBenchmark"
+ * sbt "bench/Jmh/run -p segments=40 -p engine=serial,parallel -prof gc"
+ * sbt "bench/Jmh/run -p engine=baseline,serial BrowseBenchmark"
+ * O modo Throughput mede operacoes por milissegundo e o SampleTime a
+ * distribuicao da latencia. O profiler 'gc' acrescenta a taxa de alocacao
+ * (gc.alloc.rate.norm = bytes por operacao).
+ *
+ * @author agent
+ * date: 20261017
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BrowseBenchmark {
+    private static final String INDEX = "bench";
+    private static final int ANCHORS = 4096;
+
+    @Param({"200000"})
+    public int docs;
+
+    @Param({"3"})
+    public int fields;
+
+    @Param({"1", "20"})
+    public int segments;
+
+    @Param({"uniform", "zipf", "sparse"})
+    public String distribution;
+
+    /**
+     * serial - MultiTerms, um cursor por campo
+     * parallel - um cursor por segmento, posicionados em paralelo
+     * dictionary - TermDictionary em memoria para todos os campos
+     * baseline - algoritmo original (BaselineTerms), para comparacao
+     */
+    @Param({"baseline", "serial"})
+    public String engine;
+
+    @Param({"10"})
+    public int pageSize;
+
+    @Param({"42"})
+    public long seed;
+
+    private PreviousTerm previous;
+    private DirectoryReader reader;
+    private BaselineTerms baseline;
+    private Set<String> oneField;
+    private Set<String> allFields;
+    private String[] anchors;
+
+    /**
+     * Posicao de cada thread na lista de termos iniciais
+     */
+    @State(Scope.Thread)
+    public static class Anchor {
+        private int pos;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            pos = (int)Math.floorMod(Thread.currentThread().getId() * 7919,
+                                                                (long)ANCHORS);
+        }
+
+        String next(final String[] anchors) {
+            pos = (pos + 1) % anchors.length;
+            return anchors[pos];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final SyntheticIndex synthetic = new SyntheticIndex(docs, fields,
+                                                  segments, distribution, seed);
+        final Map<String,String> info = new HashMap<>();
+        final Map<String,Set<String>> dictFields = new HashMap<>();
+
+        final Path dir = synthetic.create();
+        info.put(INDEX, dir.toString());
+        allFields = new HashSet<>();
+        for (int fld = 0; fld < fields; fld++) {
+            allFields.add(SyntheticIndex.fieldName(fld));
+        }
+        oneField = Collections.singleton(SyntheticIndex.fieldName(0));
+        if (engine.equals("baseline")) {
+            reader = DirectoryReader.open(FSDirectory.open(dir));
+            baseline = new BaselineTerms(reader);
+        } else {
+            if (engine.equals("dictionary")) {
+                dictFields.put(INDEX, allFields);
+            }
+            previous = new PreviousTerm.Builder(info, pageSize)
+                                            .dictFields(dictFields).build();
+            if (engine.equals("parallel")) {
+                previous.setParallelism(
+                               Runtime.getRuntime().availableProcessors(), 2);
+            } else if (!engine.equals("serial") &&
+                       !engine.equals("dictionary")) {
+                throw new IllegalArgumentException("invalid engine: " +
+                                                                       engine);
+            }
+        }
+
+        // termos iniciais com a mesma distribuicao dos termos do indice
+        final Random rnd = new Random(seed + 1);
+        anchors = new String[ANCHORS];
+        for (int idx = 0; idx < ANCHORS; idx++) {
+            anchors[idx] = synthetic.term(rnd);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (previous != null) {
+            previous.close();
+        }
+        if (reader != null) {
+            reader.close();
+            reader.directory().close();
+        }
+    }
+
+    private List<String> nextPage(final String init,
+                                  final Set<String> flds) throws IOException {
+        return (baseline == null)
+                    ? previous.getNextTerms(INDEX, init, flds, pageSize)
+                    : baseline.getNextTerms(init, flds, pageSize);
+    }
+
+    private List<String> previousPage(final String init,
+                                      final Set<String> flds)
+                                                            throws IOException {
+        return (baseline == null)
+                    ? previous.getPreviousTerms(INDEX, init, flds, pageSize)
+                    : baseline.getPreviousTerms(init, flds, pageSize);
+    }
+
+    @Benchmark
+    public List<String> nextTerms(final Anchor anchor) throws IOException {
+        return nextPage(anchor.next(anchors), oneField);
+    }
+
+    @Benchmark
+    public List<String> previousTerms(final Anchor anchor) throws IOException {
+        return previousPage(anchor.next(anchors), oneField);
+    }
+
+    /**
+     * Juncao dos termos de todos os campos (antiga classe NextTerms)
+     */
+    @Benchmark
+    public List<String> mergeNext(final Anchor anchor) throws IOException {
+        return nextPage(anchor.next(anchors), allFields);
+    }
+
+    @Benchmark
+    public List<String> mergePrevious(final Anchor anchor) throws IOException {
+        return previousPage(anchor.next(anchors), allFields);
+    }
+
+    /**
+     * Primeira pagina seguida de uma pagina obtida pelo cursor de continuacao
+     * (no 'baseline', que nao tem cursor, a partir do ultimo termo da
+     * primeira pagina)
+     */
+    @Benchmark
+    public List<String> previousPaging(final Anchor anchor)
+                                                            throws IOException {
+        if (baseline != null) {
+            final List<String> first = previousPage(anchor.next(anchors),
+                                                                    allFields);
+            return first.isEmpty() ? first
+                     : previousPage(first.get(first.size() - 1), allFields);
+        }
+        final PreviousTerm.Page page = previous.getPage(INDEX,
+                        anchor.next(anchors), allFields, false, pageSize);
+
+        return (page.getContinuation() == null) ? page.getTerms()
+                   : previous.getPage(page.getContinuation(), pageSize)
+                                                                  .getTerms();
+    }
+}
@@ -0,0 +1,202 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Gera indices Lucene sinteticos e reproduziveis para os benchmarks. Cada
+ * documento tem, em cada campo 'f0'...'fn', um termo (StringField, como o
+ * 'tit2' do GenLilacsIndex) formado por uma a tres palavras. As palavras
+ * seguem uma distribuicao:
+ * uniform - letras sorteadas uniformemente
+ * zipf - palavras de um vocabulario fixo sorteadas pela lei de Zipf (muitos
+ * termos repetidos)
+ * sparse - poucos prefixos longos seguidos de sufixos curtos, o que deixa
+ * grandes intervalos do espaco de termos vazios (pior caso dos termos previos)
+ * Os indices sao gravados em 'java.io.tmpdir' e reaproveitados se ja
+ * existirem.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public final class SyntheticIndex {
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzçãéó";
+    private static final int VOCABULARY = 50000;
+    private static final String DONE = "synthetic.done";
+
+    private final int docs;
+    private final int fields;
+    private final int segments;
+    private final String distribution;
+    private final long seed;
+    private final Random random;
+    private final String[] vocabulary;
+
+    /**
+     * @param docs numero de documentos
+     * @param fields numero de campos
+     * @param segments numero de segmentos do indice
+     * @param distribution distribuicao das palavras (uniform, zipf ou sparse)
+     * @param seed semente dos numeros aleatorios
+     */
+    public SyntheticIndex(final int docs,
+                          final int fields,
+                          final int segments,
+                          final String distribution,
+                          final long seed) {
+        if (docs <= 0) {
+            throw new IllegalArgumentException("docs <= 0");
+        }
+        if (fields <= 0) {
+            throw new IllegalArgumentException("fields <= 0");
+        }
+        if ((segments <= 0) || (segments > docs)) {
+            throw new IllegalArgumentException("invalid segments [" + segments
+                                                                       + "]");
+        }
+        if (!distribution.equals("uniform") && !distribution.equals("zipf") &&
+            !distribution.equals("sparse")) {
+            throw new IllegalArgumentException("invalid distribution: " +
+                                                                distribution);
+        }
+        this.docs = docs;
+        this.fields = fields;
+        this.segments = segments;
+        this.distribution = distribution;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.vocabulary = new String[VOCABULARY];
+        for (int idx = 0; idx < VOCABULARY; idx++) {
+            vocabulary[idx] = letters(2 + random.nextInt(9));
+        }
+    }
+
+    /**
+     * @param field numero do campo
+     * @return o nome do campo
+     */
+    public static String fieldName(final int field) {
+        return "f" + field;
+    }
+
+    /**
+     * Cria o indice, se ainda nao existir
+     * @return o diretorio do indice
+     * @throws IOException
+     */
+    public Path create() throws IOException {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"),
+                        "prvtrm-bench", distribution + "-" + docs + "-" + fields
+                                           + "-" + segments + "-" + seed);
+        if (Files.exists(dir.resolve(DONE))) {
+            return dir;
+        }
+        final Random rnd = new Random(seed);
+        final int perSegment = (docs + segments - 1) / segments;
+        final IndexWriterConfig config = new IndexWriterConfig(
+                                                       new StandardAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setMaxBufferedDocs(perSegment);  // um segmento a cada 'perSegment'
+        config.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+
+        try (Directory directory = FSDirectory.open(dir);
+             IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int idx = 0; idx < docs; idx++) {
+                final Document doc = new Document();
+
+                doc.add(new StoredField("mfn", idx));
+                for (int fld = 0; fld < fields; fld++) {
+                    doc.add(new StringField(fieldName(fld), term(rnd),
+                                                              Field.Store.NO));
+                }
+                writer.addDocument(doc);
+            }
+            writer.commit();
+        }
+        Files.createFile(dir.resolve(DONE));
+
+        return dir;
+    }
+
+    /**
+     * @param rnd gerador de numeros aleatorios
+     * @return um termo com a distribuicao do indice, que pode ou nao existir
+     * no indice
+     */
+    public String term(final Random rnd) {
+        final int words = 1 + rnd.nextInt(3);
+        final StringBuilder builder = new StringBuilder();
+
+        for (int idx = 0; idx < words; idx++) {
+            if (idx > 0) {
+                builder.append(' ');
+            }
+            builder.append(word(rnd));
+        }
+        return builder.toString();
+    }
+
+    private String word(final Random rnd) {
+        final String ret;
+
+        switch (distribution) {
+            case "zipf":
+                ret = vocabulary[zipf(rnd, VOCABULARY)];
+                break;
+            case "sparse":
+                ret = vocabulary[rnd.nextInt(64)] + vocabulary[rnd.nextInt(64)]
+                                                    + (char)('a' + rnd.nextInt(4));
+                break;
+            default:
+                ret = letters(rnd, 2 + rnd.nextInt(9));
+                break;
+        }
+        return ret;
+    }
+
+    private String letters(final int len) {
+        return letters(random, len);
+    }
+
+    private static String letters(final Random rnd,
+                                  final int len) {
+        final StringBuilder builder = new StringBuilder(len);
+
+        for (int idx = 0; idx < len; idx++) {
+            builder.append(LETTERS.charAt(rnd.nextInt(LETTERS.length())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return uma posicao entre 0 e n-1 com probabilidade proporcional a
+     * 1/(posicao+1) (aproximacao continua da lei de Zipf com expoente 1)
+     */
+    private static int zipf(final Random rnd,
+                            final int n) {
+        final double value = Math.exp(rnd.nextDouble() * Math.log(n + 1.0)) - 1;
+
+        return Math.min(n - 1, (int)value);
+    }
+}
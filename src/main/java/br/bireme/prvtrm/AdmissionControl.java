@@ -0,0 +1,261 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Controle de admissao das consultas do servlet. As consultas sao executadas
+ * num executor proprio (e nao nas threads do container) e so sao aceitas
+ * enquanto houver uma vaga entre as 'threads' em execucao e as 'queueSize'
+ * em espera. Alem disso, o numero de consultas simultaneas de cada indice
+ * pode ser limitado, de forma que um indice lento nao ocupe todas as threads.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class AdmissionControl {
+    /**
+     * Indica que nao ha vaga para executar a consulta
+     */
+    public static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(final String message) {
+            super(message);
+        }
+    }
+
+    private final Logger logger = LogManager.getLogger(AdmissionControl.class);
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final Semaphore running;
+    private final Map<String,Semaphore> indexSlots;
+    private final long indexWaitMs;
+    private final AtomicLong rejected;
+    private final AtomicLong indexRejected;
+
+    /**
+     * @param threads numero de threads que executam as consultas
+     * @param queueSize numero maximo de consultas esperando por uma thread
+     * @param virtual se true, usa uma virtual thread por consulta quando a
+     * JVM as suportar (o limite 'threads' continua valendo)
+     * @param indexes nomes dos indices
+     * @param indexLimit numero maximo de consultas simultaneas de um indice ou
+     * zero para nao limitar
+     * @param indexWaitMs tempo maximo de espera por uma vaga de um indice
+     */
+    public AdmissionControl(final int threads,
+                            final int queueSize,
+                            final boolean virtual,
+                            final Set<String> indexes,
+                            final int indexLimit,
+                            final long indexWaitMs) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("queueSize < 0");
+        }
+        if (indexes == null) {
+            throw new NullPointerException("indexes");
+        }
+        if (indexLimit < 0) {
+            throw new IllegalArgumentException("indexLimit < 0");
+        }
+
+        final ExecutorService vexecutor = virtual ? newVirtualExecutor() : null;
+
+        // com virtual threads o executor nao tem limite, entao as 'threads'
+        // vagas de execucao sao controladas pelo semaforo 'running': as
+        // consultas excedentes esperam por ele (a fila) sem ocupar uma
+        // thread de plataforma
+        this.executor = (vexecutor != null) ? vexecutor
+                          : Executors.newFixedThreadPool(threads, r -> {
+                                final Thread thread = new Thread(r,
+                                                      "PreviousTerm-query");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        this.slots = new Semaphore(threads + queueSize);
+        this.running = (vexecutor != null) ? new Semaphore(threads, true)
+                                           : null;
+        this.indexSlots = new HashMap<>();
+        if (indexLimit > 0) {
+            for (String index : indexes) {
+                indexSlots.put(index, new Semaphore(indexLimit));
+            }
+        }
+        this.indexWaitMs = Math.max(0, indexWaitMs);
+        this.rejected = new AtomicLong();
+        this.indexRejected = new AtomicLong();
+    }
+
+    /**
+     * Executa uma consulta se houver vaga
+     * @param task consulta a ser executada
+     * @return false se nao houver vaga
+     */
+    public boolean execute(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (!slots.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    if (running == null) {
+                        task.run();
+                    } else {
+                        runLimited(task);
+                    }
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Executa a tarefa quando houver uma das 'threads' vagas de execucao
+     * (modo virtual thread)
+     */
+    private void runLimited(final Runnable task) {
+        assert task != null;
+        assert running != null;
+
+        // sem interrupcao: a tarefa precisa rodar para encerrar a requisicao
+        running.acquireUninterruptibly();
+        try {
+            task.run();
+        } finally {
+            running.release();
+        }
+    }
+
+    /**
+     * Obtem uma vaga para consultar um indice, esperando no maximo
+     * 'indexWaitMs' milissegundos. Deve ser devolvida com 'release()'
+     * @param index nome do indice ou nomes de varios indices separados por
+     * ',' (consulta federada), que recebem uma vaga cada um
+     * @throws BusyException se nao houver vaga
+     * @throws IOException se a espera for interrompida
+     */
+    public void acquire(final String index) throws IOException {
+        if ((index != null) && (index.indexOf(',') >= 0)) {
+            final List<String> acquired = new ArrayList<>();
+            try {
+                for (String name : PreviousTerm.indexNames(index)) {
+                    acquire(name);
+                    acquired.add(name);
+                }
+            } catch (IOException | RuntimeException ex) {
+                for (String name : acquired) {
+                    release(name);
+                }
+                throw ex;
+            }
+            return;
+        }
+        final Semaphore sem = (index == null) ? null : indexSlots.get(index);
+
+        if (sem != null) {
+            final boolean ok;
+            try {
+                ok = sem.tryAcquire(indexWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for index: " + index);
+            }
+            if (!ok) {
+                indexRejected.incrementAndGet();
+                throw new BusyException("too many queries on index: " + index);
+            }
+        }
+    }
+
+    /**
+     * Devolve a vaga obtida com 'acquire()'
+     * @param index nome do indice ou nomes dos indices separados por ','
+     */
+    public void release(final String index) {
+        if ((index != null) && (index.indexOf(',') >= 0)) {
+            for (String name : PreviousTerm.indexNames(index)) {
+                release(name);
+            }
+            return;
+        }
+        final Semaphore sem = (index == null) ? null : indexSlots.get(index);
+
+        if (sem != null) {
+            sem.release();
+        }
+    }
+
+    /**
+     * @return numero de consultas recusadas por falta de vaga no executor
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return numero de consultas recusadas por falta de vaga de um indice
+     */
+    public long getIndexRejected() {
+        return indexRejected.get();
+    }
+
+    /**
+     * @return numero de vagas livres (execucao mais espera)
+     */
+    public int getAvailable() {
+        return slots.availablePermits();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Cria, por reflexao, um executor com uma virtual thread por tarefa
+     * @return o executor ou null se a JVM nao tiver virtual threads
+     */
+    private ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod(
+                            "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.warn("virtual threads not available, using platform "
+                                                                + "threads");
+            return null;
+        }
+    }
+}
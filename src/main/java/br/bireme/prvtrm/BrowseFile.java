@@ -0,0 +1,384 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Arquivo com o TermDictionary de um campo, gerado fora do servidor
+ * (GenBrowseFile) e aberto somente para leitura mapeado em memoria, de forma
+ * que o dicionario nao ocupa o heap, fica disponivel assim que o indice e
+ * aberto e e compartilhado, pelo cache de paginas do sistema operacional,
+ * por todos os processos que o abrem.
+ * Formato (inteiros little-endian do Lucene):
+ * <pre>
+ * cabecalho    CodecUtil.writeIndexHeader com o id do commit do indice
+ * campo        String
+ * freqs        byte (1 se houver docFreq e totalTermFreq)
+ * termos       blocos de BLOCK_SIZE termos com codificacao de prefixo
+ * blocos       long por bloco: posicao do bloco a partir do inicio dos termos
+ * docFreqs     int por termo (se freqs)
+ * ttfs         long por termo (se freqs)
+ * final        int tamanho, long inicio dos termos, long inicio dos blocos,
+ *              long inicio das frequencias
+ * rodape       CodecUtil.writeFooter
+ * </pre>
+ * Um arquivo gerado para outro commit do indice e recusado na abertura: o
+ * dicionario do campo passa a ser construido no heap (com um aviso no log)
+ * ate que o arquivo seja gerado novamente. Por isso, a cada alteracao do
+ * indice (inclusive as incrementais do GenLilacsIndex) os arquivos devem ser
+ * gerados novamente com GenBrowseFile antes que o servidor reabra o indice.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public final class BrowseFile {
+    /**
+     * Extensao dos arquivos: &lt;campo&gt;.brw
+     */
+    public static final String EXTENSION = ".brw";
+
+    private static final String CODEC = "PrevTermBrowse";
+    private static final int VERSION = 0;
+    private static final int TRAILER = 4 + (3 * 8);
+
+    private BrowseFile() {
+    }
+
+    /**
+     * TermDictionary lido de um arquivo mapeado em memoria
+     */
+    static final class Mapped extends TermDictionary implements Closeable {
+        private final IndexInput input;
+        private final IndexInput data;
+        private final RandomAccessInput blocks;
+        private final RandomAccessInput docFreqs;         // null se nao houver
+        private final RandomAccessInput totalTermFreqs;   // null se nao houver
+
+        private Mapped(final String field,
+                       final int size,
+                       final IndexInput input,
+                       final IndexInput data,
+                       final RandomAccessInput blocks,
+                       final RandomAccessInput docFreqs,
+                       final RandomAccessInput totalTermFreqs) {
+            super(field, size);
+            this.input = input;
+            this.data = data;
+            this.blocks = blocks;
+            this.docFreqs = docFreqs;
+            this.totalTermFreqs = totalTermFreqs;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return 256;   // somente os objetos de acesso ao arquivo
+        }
+
+        @Override
+        public long offHeapBytesUsed() {
+            return input.length();
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return docFreqs != null;
+        }
+
+        @Override
+        int getDocFreq(final int ord) {
+            try {
+                return docFreqs.readInt(4L * ord);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        long getTotalTermFreq(final int ord) {
+            try {
+                return totalTermFreqs.readLong(8L * ord);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        int blockCount() {
+            return (size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        @Override
+        int readBlock(final int block,
+                      final BytesRef[] buffer) {
+            assert (block >= 0) && (block < blockCount());
+
+            final int tot = Math.min(BLOCK_SIZE, size() - (block * BLOCK_SIZE));
+            try {
+                return readBlock(blockInput(block), tot, buffer);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        BytesRef readTerm(final int ord,
+                          final BytesRef scratch) {
+            assert (ord >= 0) && (ord < size());
+
+            final BytesRef[] buffer = new BytesRef[BLOCK_SIZE];
+            try {
+                readBlock(blockInput(ord / BLOCK_SIZE), (ord % BLOCK_SIZE) + 1,
+                                                                      buffer);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return buffer[ord % BLOCK_SIZE];
+        }
+
+        private DataInput blockInput(final int block) throws IOException {
+            final IndexInput in = data.clone();   // clones podem ser usados
+                                                  // por threads diferentes
+            in.seek(blocks.readLong(8L * block));
+            return in;
+        }
+
+        @Override
+        int compareFirst(final int block,
+                         final BytesRef term) {
+            try {
+                final DataInput in = blockInput(block);
+                final byte[] first = new byte[in.readVInt()];
+
+                in.readBytes(first, 0, first.length);
+                return Arrays.compareUnsigned(first, 0, first.length,
+                         term.bytes, term.offset, term.offset + term.length);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * @param reader leitor aberto a partir de um commit do indice
+     * @return o identificador unico do commit do leitor
+     * @throws IOException
+     */
+    static byte[] commitId(final DirectoryReader reader) throws IOException {
+        assert reader != null;
+
+        final IndexCommit commit = reader.getIndexCommit();
+
+        return SegmentInfos.readCommit(commit.getDirectory(),
+                                       commit.getSegmentsFileName()).getId();
+    }
+
+    /**
+     * @param field nome do campo
+     * @return o nome do arquivo do campo
+     */
+    public static String fileName(final String field) {
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+        if (field.isEmpty() || (field.indexOf('/') >= 0) ||
+                               (field.indexOf('\\') >= 0)) {
+            throw new IllegalArgumentException("invalid field name: " + field);
+        }
+        return field + EXTENSION;
+    }
+
+    /**
+     * Grava o arquivo de um campo, substituindo atomicamente o anterior
+     * @param reader leitor do indice (aberto a partir de um commit)
+     * @param field nome do campo
+     * @param dir diretorio onde o arquivo sera gravado
+     * @param freqs se true, grava tambem o docFreq e o totalTermFreq de cada
+     * termo
+     * @return numero de termos gravados
+     * @throws IOException
+     */
+    public static int write(final DirectoryReader reader,
+                            final String field,
+                            final Directory dir,
+                            final boolean freqs) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        if (dir == null) {
+            throw new NullPointerException("dir");
+        }
+        final String name = fileName(field);
+        final Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null) {
+            throw new IOException("Invalid field: " + field);
+        }
+        final TermsEnum tenum = terms.iterator();
+        final BytesRefBuilder last = new BytesRefBuilder();
+        long[] blocks = new long[16];
+        int[] docFreqs = new int[freqs ? 64 : 0];
+        long[] totalTermFreqs = new long[freqs ? 64 : 0];
+        int size = 0;
+        String tmpName = null;
+        boolean ok = false;
+
+        try (IndexOutput out = dir.createTempOutput(field, "brw",
+                                                          IOContext.DEFAULT)) {
+            tmpName = out.getName();
+            CodecUtil.writeIndexHeader(out, CODEC, VERSION, commitId(reader),
+                                                                           "");
+            out.writeString(field);
+            out.writeByte(freqs ? (byte)1 : (byte)0);
+
+            final long dataStart = out.getFilePointer();
+            BytesRef term;
+            while ((term = tenum.next()) != null) {
+                if (size % TermDictionary.BLOCK_SIZE == 0) {
+                    final int block = size / TermDictionary.BLOCK_SIZE;
+                    blocks = ArrayUtil.grow(blocks, block + 1);
+                    blocks[block] = out.getFilePointer() - dataStart;
+                    TermDictionary.writeTerm(out, null, term);
+                } else {
+                    TermDictionary.writeTerm(out, last.get(), term);
+                }
+                if (freqs) {
+                    docFreqs = ArrayUtil.grow(docFreqs, size + 1);
+                    totalTermFreqs = ArrayUtil.grow(totalTermFreqs, size + 1);
+                    docFreqs[size] = tenum.docFreq();
+                    totalTermFreqs[size] = tenum.totalTermFreq();
+                }
+                last.copyBytes(term);
+                size = Math.addExact(size, 1);
+            }
+            final int nblocks = (size + TermDictionary.BLOCK_SIZE - 1) /
+                                                      TermDictionary.BLOCK_SIZE;
+            final long blocksStart = out.getFilePointer();
+            for (int block = 0; block < nblocks; block++) {
+                out.writeLong(blocks[block]);
+            }
+            final long freqsStart = out.getFilePointer();
+            if (freqs) {
+                for (int ord = 0; ord < size; ord++) {
+                    out.writeInt(docFreqs[ord]);
+                }
+                for (int ord = 0; ord < size; ord++) {
+                    out.writeLong(totalTermFreqs[ord]);
+                }
+            }
+            out.writeInt(size);
+            out.writeLong(dataStart);
+            out.writeLong(blocksStart);
+            out.writeLong(freqsStart);
+            CodecUtil.writeFooter(out);
+            ok = true;
+        } finally {
+            if (!ok && (tmpName != null)) {
+                IOUtils.deleteFilesIgnoringExceptions(dir, tmpName);
+            }
+        }
+        ok = false;
+        try {
+            dir.sync(Collections.singleton(tmpName));
+            if (Arrays.asList(dir.listAll()).contains(name)) {
+                dir.deleteFile(name);   // Directory.rename nao substitui
+            }
+            dir.rename(tmpName, name);
+            dir.syncMetaData();
+            ok = true;
+        } finally {
+            if (!ok) {
+                IOUtils.deleteFilesIgnoringExceptions(dir, tmpName);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Abre um arquivo mapeando-o em memoria. Somente o cabecalho, o final e a
+     * estrutura do rodape sao lidos, e nao o arquivo inteiro.
+     * @param dir diretorio do arquivo (de preferencia um MMapDirectory)
+     * @param name nome do arquivo
+     * @param commitId identificador do commit do indice aberto
+     * @return o dicionario do campo do arquivo, que deve ser fechado quando
+     * nao for mais usado
+     * @throws IOException se o arquivo for invalido ou tiver sido gerado para
+     * outro commit do indice (CorruptIndexException)
+     */
+    static Mapped open(final Directory dir,
+                       final String name,
+                       final byte[] commitId) throws IOException {
+        assert dir != null;
+        assert name != null;
+        assert commitId != null;
+
+        final IndexInput in = dir.openInput(name, IOContext.READ);
+        boolean ok = false;
+
+        try {
+            CodecUtil.checkIndexHeader(in, CODEC, VERSION, VERSION, commitId,
+                                                                           "");
+            final String field = in.readString();
+            final boolean freqs = (in.readByte() != 0);
+
+            CodecUtil.retrieveChecksum(in);
+            in.seek(in.length() - CodecUtil.footerLength() - TRAILER);
+            final int size = in.readInt();
+            final long dataStart = in.readLong();
+            final long blocksStart = in.readLong();
+            final long freqsStart = in.readLong();
+            final int nblocks = (size + TermDictionary.BLOCK_SIZE - 1) /
+                                                      TermDictionary.BLOCK_SIZE;
+            final long freqsLength = freqs ? (12L * size) : 0;
+
+            if ((size < 0) || (dataStart > blocksStart) ||
+                (blocksStart + (8L * nblocks) != freqsStart) ||
+                (freqsStart + freqsLength !=
+                           in.length() - CodecUtil.footerLength() - TRAILER)) {
+                throw new IOException("invalid browse file: " + name);
+            }
+            final Mapped mapped = new Mapped(field, size, in,
+                in.slice("terms", dataStart, blocksStart - dataStart),
+                in.randomAccessSlice(blocksStart, 8L * nblocks),
+                freqs ? in.randomAccessSlice(freqsStart, 4L * size) : null,
+                freqs ? in.randomAccessSlice(freqsStart + (4L * size),
+                                                             8L * size) : null);
+            ok = true;
+            return mapped;
+        } finally {
+            if (!ok) {
+                IOUtils.closeWhileHandlingException(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Locale;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * Visao dos termos de um campo na ordem de um Collator (por exemplo, com a
+ * forca PRIMARY, sem distinguir acentos e maiusculas: "acao", "ação" e
+ * "AÇÃO" ficam juntos). As chaves de ordenacao sao calculadas e ordenadas
+ * uma unica vez, quando a geracao do indice e aberta, e guardadas junto com a
+ * posicao de cada termo (forma original) no TermDictionary do campo. Termos
+ * com a mesma chave ficam na ordem dos bytes.
+ * Posicionar a listagem custa o calculo da chave do termo inicial e uma busca
+ * binaria nas chaves.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class CollatedDictionary {
+    private final String field;
+    private final Collator collator;   // prototipo, clonado a cada uso
+    private final TermDictionary terms;
+    private final int[] ords;          // posicao na ordem colada -> 'terms'
+    private final byte[] keys;         // chaves concatenadas na ordem colada
+    private final int[] offsets;       // inicio de cada chave em 'keys'
+    private final boolean ownsTerms;   // 'terms' so existe para a visao
+
+    private CollatedDictionary(final String field,
+                               final Collator collator,
+                               final TermDictionary terms,
+                               final int[] ords,
+                               final byte[] keys,
+                               final int[] offsets,
+                               final boolean ownsTerms) {
+        this.field = field;
+        this.collator = collator;
+        this.terms = terms;
+        this.ords = ords;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.ownsTerms = ownsTerms;
+    }
+
+    /**
+     * @param locale idioma das regras de ordenacao
+     * @return um Collator que ignora acentos e maiusculas
+     */
+    public static Collator newCollator(final Locale locale) {
+        if (locale == null) {
+            throw new NullPointerException("locale");
+        }
+        final Collator collator = Collator.getInstance(locale);
+
+        collator.setStrength(Collator.PRIMARY);
+        collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+
+        return collator;
+    }
+
+    /**
+     * Cria a visao ordenando os termos de um TermDictionary
+     * @param terms termos do campo na ordem dos bytes
+     * @param collator regras de ordenacao (nao e alterado)
+     * @return a visao ordenada dos termos do campo
+     */
+    public static CollatedDictionary build(final TermDictionary terms,
+                                           final Collator collator) {
+        return build(terms, collator, false);
+    }
+
+    /**
+     * Cria a visao ordenando os termos de um TermDictionary
+     * @param terms termos do campo na ordem dos bytes
+     * @param collator regras de ordenacao (nao e alterado)
+     * @param ownsTerms true se 'terms' foi construido somente para a visao,
+     * caso em que a sua memoria e contada em 'ramBytesUsed()'
+     * @return a visao ordenada dos termos do campo
+     */
+    static CollatedDictionary build(final TermDictionary terms,
+                                    final Collator collator,
+                                    final boolean ownsTerms) {
+        if (terms == null) {
+            throw new NullPointerException("terms");
+        }
+        if (collator == null) {
+            throw new NullPointerException("collator");
+        }
+        final Collator coll = (Collator)collator.clone();
+        final int size = terms.size();
+        final byte[][] tkeys = new byte[size][];
+        final int[] ords = new int[size];
+        final BytesRef[] buffer = new BytesRef[TermDictionary.BLOCK_SIZE];
+
+        for (int block = 0; block * TermDictionary.BLOCK_SIZE < size; block++) {
+            final int tot = terms.readBlock(block, buffer);
+            for (int idx = 0; idx < tot; idx++) {
+                final int ord = (block * TermDictionary.BLOCK_SIZE) + idx;
+                tkeys[ord] = key(coll, buffer[idx].utf8ToString());
+                ords[ord] = ord;
+            }
+        }
+        // estavel: chaves iguais continuam na ordem dos bytes
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(final int i,
+                                  final int j) {
+                return Arrays.compareUnsigned(tkeys[ords[i]], tkeys[ords[j]]);
+            }
+
+            @Override
+            protected void swap(final int i,
+                                final int j) {
+                final int tmp = ords[i];
+                ords[i] = ords[j];
+                ords[j] = tmp;
+            }
+        }.sort(0, size);
+
+        final int[] offsets = new int[size + 1];
+        long total = 0;
+        for (int pos = 0; pos < size; pos++) {
+            offsets[pos] = Math.toIntExact(total);
+            total += tkeys[ords[pos]].length;
+        }
+        offsets[size] = Math.toIntExact(total);
+
+        final byte[] keys = new byte[offsets[size]];
+        for (int pos = 0; pos < size; pos++) {
+            final byte[] key = tkeys[ords[pos]];
+            System.arraycopy(key, 0, keys, offsets[pos], key.length);
+        }
+        return new CollatedDictionary(terms.getField(), coll, terms, ords, keys,
+                                                           offsets, ownsTerms);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return numero total de termos do campo
+     */
+    public int size() {
+        return ords.length;
+    }
+
+    /**
+     * @return os termos do campo na ordem dos bytes
+     */
+    public TermDictionary getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return numero aproximado de bytes ocupados pela visao. O
+     * TermDictionary so e contado se foi construido somente para ela (se nao,
+     * ja aparece entre os dicionarios do indice)
+     */
+    public long ramBytesUsed() {
+        return keys.length + (8L * ords.length) + 96 +
+                                         (ownsTerms ? terms.ramBytesUsed() : 0);
+    }
+
+    /**
+     * @param text um texto qualquer
+     * @return a chave de ordenacao do texto
+     */
+    public byte[] key(final String text) {
+        if (text == null) {
+            throw new NullPointerException("text");
+        }
+        return key((Collator)collator.clone(), text);
+    }
+
+    /**
+     * @param pos posicao na ordem colada
+     * @return a posicao do termo no TermDictionary do campo
+     */
+    public int ord(final int pos) {
+        return ords[pos];
+    }
+
+    /**
+     * @param pos posicao na ordem colada
+     * @param ref recebe a chave de ordenacao do termo (sem copia)
+     * @return 'ref'
+     */
+    BytesRef key(final int pos,
+                 final BytesRef ref) {
+        ref.bytes = keys;
+        ref.offset = offsets[pos];
+        ref.length = offsets[pos + 1] - offsets[pos];
+
+        return ref;
+    }
+
+    /**
+     * @param key chave de ordenacao
+     * @return a primeira posicao cuja chave e maior ou igual a 'key' ou size()
+     * se nao houver nenhuma
+     */
+    public int ceil(final byte[] key) {
+        return search(key, false);
+    }
+
+    /**
+     * @param key chave de ordenacao
+     * @return a ultima posicao cuja chave e menor ou igual a 'key' ou -1 se
+     * nao houver nenhuma
+     */
+    public int floor(final byte[] key) {
+        return search(key, true) - 1;
+    }
+
+    /**
+     * @param key chave de ordenacao de 'term'
+     * @param term forma original do termo
+     * @return a primeira posicao cujo termo vem depois de 'term' ou e igual a
+     * ele na ordem colada
+     */
+    public int ceil(final byte[] key,
+                    final BytesRef term) {
+        if (term == null) {
+            throw new NullPointerException("term");
+        }
+        final int high = search(key, true);
+        int pos = search(key, false);
+
+        // termos com a mesma chave estao na ordem dos bytes
+        BytesRef scratch = null;
+        while (pos < high) {
+            scratch = terms.readTerm(ords[pos], scratch);
+            if (scratch.compareTo(term) >= 0) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param key chave de ordenacao de 'term'
+     * @param term forma original do termo
+     * @return a ultima posicao cujo termo vem antes de 'term' ou e igual a
+     * ele na ordem colada
+     */
+    public int floor(final byte[] key,
+                     final BytesRef term) {
+        final int pos = ceil(key, term);
+
+        return ((pos < size()) && (compare(pos, key) == 0) &&
+                terms.readTerm(ords[pos], null).bytesEquals(term)) ? pos
+                                                                   : pos - 1;
+    }
+
+    /**
+     * Busca binaria nas chaves
+     * @param key chave procurada
+     * @param after false para a primeira posicao com chave maior ou igual a
+     * 'key', true para a primeira com chave maior
+     */
+    private int search(final byte[] key,
+                       final boolean after) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        int low = 0;
+        int high = ords.length;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(mid, key);
+
+            if ((cmp < 0) || (after && (cmp == 0))) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(final int pos,
+                        final byte[] key) {
+        return Arrays.compareUnsigned(keys, offsets[pos], offsets[pos + 1],
+                                                          key, 0, key.length);
+    }
+
+    /**
+     * @return a chave do texto sem os terminadores dos niveis (unidades de
+     * dois bytes iguais a zero), de forma que a chave de um prefixo tambem e
+     * prefixo das chaves dos textos que comecam com ele
+     */
+    private static byte[] key(final Collator coll,
+                              final String text) {
+        final byte[] key = coll.getCollationKey(text).toByteArray();
+        int len = key.length;
+
+        while ((len >= 2) && (key[len - 1] == 0) && (key[len - 2] == 0)) {
+            len -= 2;
+        }
+        return (len == key.length) ? key : ArrayUtil.copyOfSubArray(key, 0, len);
+    }
+}
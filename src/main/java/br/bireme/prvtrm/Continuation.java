@@ -0,0 +1,325 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Estado de uma listagem de termos que permite continuar a partir do ponto em
+ * que a pagina anterior parou: indice, campos, direcao, opcoes, versao do
+ * indice e, para cada campo ainda nao esgotado, o proximo termo (e sua
+ * posicao, quando o campo tiver um TermDictionary ou, na ordem colada, a
+ * posicao na visao colada) a ser retornado.
+ * Numa consulta federada (varios indices) o estado e formado por uma parte
+ * por indice, cada uma com a sua versao e os seus termos.
+ * E transmitido ao cliente como um token opaco (Base64).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class Continuation {
+    private static final byte FORMAT = 1;
+
+    private final String index;
+    private final Set<String> fields;
+    private final boolean next;
+    private final QueryOptions options;
+    private final long version;
+    private final Map<String,BytesRef> terms;
+    private final Map<String,Integer> ords;
+    private final List<Continuation> parts;   // null se for um unico indice
+
+    Continuation(final String index,
+                 final Set<String> fields,
+                 final boolean next,
+                 final QueryOptions options,
+                 final long version,
+                 final Map<String,BytesRef> terms,
+                 final Map<String,Integer> ords) {
+        assert index != null;
+        assert fields != null;
+        assert options != null;
+        assert terms != null;
+        assert ords != null;
+
+        this.index = index;
+        this.fields = fields;
+        this.next = next;
+        this.options = options;
+        this.version = version;
+        this.terms = terms;
+        this.ords = ords;
+        this.parts = null;
+    }
+
+    /**
+     * Cria o estado de uma consulta federada
+     * @param parts estado de cada indice, todos com os mesmos campos, direcao
+     * e opcoes
+     */
+    Continuation(final List<Continuation> parts) {
+        assert parts != null;
+        assert parts.size() > 1;
+
+        final Continuation first = parts.get(0);
+        final List<String> names = new ArrayList<>();
+        for (Continuation part : parts) {
+            assert part.parts == null;
+            names.add(part.index);
+        }
+        this.index = String.join(",", names);
+        this.fields = first.fields;
+        this.next = first.next;
+        this.options = first.options;
+        this.version = 0;
+        this.terms = Collections.emptyMap();
+        this.ords = Collections.emptyMap();
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+    }
+
+    /**
+     * @return o nome do indice ou, numa consulta federada, os nomes dos
+     * indices separados por ','
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    public Set<String> getFields() {
+        return new HashSet<>(fields);
+    }
+
+    /**
+     * @return true se a direcao for 'next' e false se for 'previous'
+     */
+    public boolean isNext() {
+        return next;
+    }
+
+    /**
+     * @return as opcoes da consulta que originou a listagem
+     */
+    public QueryOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return a versao do indice ou 0 numa consulta federada
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return o estado de cada indice da consulta (somente este objeto se
+     * ela nao for federada)
+     */
+    List<Continuation> getParts() {
+        return (parts == null) ? Collections.singletonList(this) : parts;
+    }
+
+    /**
+     * @param field nome do campo
+     * @return o proximo termo do campo ou null se o campo estiver esgotado
+     */
+    BytesRef getTerm(final String field) {
+        return terms.get(field);
+    }
+
+    /**
+     * @param field nome do campo
+     * @return a posicao do proximo termo do campo no seu TermDictionary (ou
+     * na visao colada) ou -1
+     */
+    int getOrd(final String field) {
+        final Integer ord = ords.get(field);
+
+        return (ord == null) ? -1 : ord;
+    }
+
+    /**
+     * @return numero aproximado de bytes ocupados por este objeto
+     */
+    long bytesUsed() {
+        if (parts != null) {
+            long size = 96 + (2L * index.length());
+            for (Continuation part : parts) {
+                size += part.bytesUsed();
+            }
+            return size;
+        }
+        long size = 96 + (2L * index.length());
+
+        for (String field : fields) {
+            final BytesRef term = terms.get(field);
+            size += 48 + (2L * field.length());
+            if (term != null) {
+                size += 48 + term.length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return o token que representa este objeto
+     */
+    public String encode() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            final List<Continuation> all = getParts();
+
+            out.writeByte(FORMAT);
+            out.writeInt(all.size());
+            for (Continuation part : all) {
+                part.write(out);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                                                           bytes.toByteArray());
+    }
+
+    /**
+     * Escreve o estado de um unico indice
+     * @param out destino do estado
+     * @throws IOException
+     */
+    private void write(final DataOutputStream out) throws IOException {
+        assert parts == null;
+
+        out.writeUTF(index);
+        out.writeBoolean(next);
+        out.writeBoolean(options.isFreqs());
+        out.writeInt(options.getMinDocFreq());
+        out.writeBoolean(options.getPrefix() != null);
+        if (options.getPrefix() != null) {
+            out.writeUTF(options.getPrefix());
+        }
+        out.writeBoolean(options.isCollated());
+        out.writeLong(version);
+        out.writeInt(fields.size());
+        for (String field : fields) {
+            final BytesRef term = terms.get(field);
+
+            out.writeUTF(field);
+            out.writeBoolean(term != null);
+            if (term != null) {
+                out.writeInt(term.length);
+                out.write(term.bytes, term.offset, term.length);
+                out.writeInt(getOrd(field));
+            }
+        }
+    }
+
+    /**
+     * @param token token gerado por 'encode()'
+     * @return o objeto representado pelo token
+     * @throws IOException se o token for invalido
+     */
+    public static Continuation decode(final String token) throws IOException {
+        if (token == null) {
+            throw new IOException("invalid cursor");
+        }
+        final byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token.trim());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("invalid cursor", ex);
+        }
+        try (DataInputStream in = new DataInputStream(
+                                               new ByteArrayInputStream(bytes))) {
+            if (in.readByte() != FORMAT) {
+                throw new IOException("invalid cursor format");
+            }
+            final int tot = in.readInt();
+            if ((tot < 1) || (tot > bytes.length)) {
+                throw new IOException("invalid number of indexes");
+            }
+            final List<Continuation> parts = new ArrayList<>();
+            for (int idx = 0; idx < tot; idx++) {
+                final Continuation part = read(in, bytes.length);
+                final Continuation first = parts.isEmpty() ? part
+                                                           : parts.get(0);
+
+                if ((part.next != first.next) ||
+                    !part.options.equals(first.options) ||
+                    !part.fields.equals(first.fields)) {
+                    throw new IOException("inconsistent indexes");
+                }
+                // os indices sao gravados em ordem alfabetica e sem repeticoes
+                if (!parts.isEmpty() && (part.index.compareTo(
+                                parts.get(parts.size() - 1).index) <= 0)) {
+                    throw new IOException("indexes out of order");
+                }
+                parts.add(part);
+            }
+            if (in.available() > 0) {
+                throw new IOException("trailing bytes");
+            }
+            return (tot == 1) ? parts.get(0) : new Continuation(parts);
+        } catch (IOException | RuntimeException ex) {
+            throw new IOException("invalid cursor", ex);
+        }
+    }
+
+    /**
+     * Le o estado de um unico indice
+     * @param in leitor do token posicionado no estado
+     * @param max tamanho do token, maior que o de qualquer termo
+     * @return o estado lido
+     * @throws IOException se o estado for invalido
+     */
+    private static Continuation read(final DataInputStream in,
+                                     final int max) throws IOException {
+        final String index = in.readUTF();
+        final boolean next = in.readBoolean();
+        final boolean freqs = in.readBoolean();
+        final int minDocFreq = in.readInt();
+        final String prefix = in.readBoolean() ? in.readUTF() : null;
+        final QueryOptions options = new QueryOptions(freqs, minDocFreq,
+                                                    prefix, in.readBoolean());
+        final long version = in.readLong();
+        final int tot = in.readInt();
+        final Set<String> fields = new HashSet<>();
+        final Map<String,BytesRef> terms = new HashMap<>();
+        final Map<String,Integer> ords = new HashMap<>();
+
+        for (int idx = 0; idx < tot; idx++) {
+            final String field = in.readUTF();
+
+            fields.add(field);
+            if (in.readBoolean()) {
+                final int len = in.readInt();
+                if ((len < 0) || (len > max)) {
+                    throw new IOException("invalid term length");
+                }
+                final byte[] term = new byte[len];
+                in.readFully(term);
+                terms.put(field, new BytesRef(term));
+                ords.put(field, in.readInt());
+            }
+        }
+        return new Continuation(index, fields, next, options, version,
+                                                              terms, ords);
+    }
+}
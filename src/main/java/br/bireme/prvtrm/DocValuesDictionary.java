@@ -0,0 +1,269 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * TermDictionary de um campo gravado tambem como SortedSetDocValuesField. As
+ * posicoes dos termos sao os ordinais globais do mapa de ordinais (OrdinalMap)
+ * que junta os valores de todos os segmentos, construido uma unica vez quando
+ * a geracao do indice e aberta. Os termos nao sao copiados: posicionar custa
+ * um 'lookupTerm' por segmento e cada termo seguinte (ou anterior) e lido com
+ * 'lookupOrd' no segmento que o contem. Os doc values abertos de cada
+ * segmento sao guardados pelo dicionario (que pertence a uma geracao do
+ * indice) e reaproveitados pelas leituras seguintes, e os termos de um bloco
+ * sao copiados nos BytesRef ja existentes do vetor que os recebe.
+ * Os doc values nao tem docFreq nem totalTermFreq (hasFreqs() e false).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class DocValuesDictionary extends TermDictionary {
+    private final List<LeafReaderContext> leaves;
+    private final OrdinalMap map;
+    // doc values de cada segmento livres para uso (uma thread por vez)
+    private final ConcurrentLinkedQueue<SortedSetDocValues[]> pool;
+
+    private DocValuesDictionary(final String field,
+                                final List<LeafReaderContext> leaves,
+                                final OrdinalMap map) {
+        super(field, Math.toIntExact(map.getValueCount()));
+        this.leaves = leaves;
+        this.map = map;
+        this.pool = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Cria o dicionario a partir dos doc values do campo
+     * @param reader leitor do indice
+     * @param field nome do campo
+     * @return o dicionario dos termos do campo
+     * @throws IOException se o campo nao tiver doc values do tipo SORTED_SET
+     */
+    public static DocValuesDictionary build(final DirectoryReader reader,
+                                            final String field)
+                                                            throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+        final FieldInfo info = FieldInfos.getMergedFieldInfos(reader)
+                                                           .fieldInfo(field);
+        if ((info == null) ||
+            (info.getDocValuesType() != DocValuesType.SORTED_SET)) {
+            throw new IOException("field without SORTED_SET doc values: " +
+                                                                        field);
+        }
+        final List<LeafReaderContext> leaves = reader.leaves();
+        final SortedSetDocValues[] values =
+                                      new SortedSetDocValues[leaves.size()];
+
+        for (int seg = 0; seg < values.length; seg++) {
+            values[seg] = DocValues.getSortedSet(leaves.get(seg).reader(),
+                                                                        field);
+        }
+        return new DocValuesDictionary(field, leaves, OrdinalMap.build(
+                  reader.getReaderCacheHelper().getKey(), values,
+                                                       PackedInts.DEFAULT));
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return map.ramBytesUsed() + 64;
+    }
+
+    @Override
+    public boolean hasFreqs() {
+        return false;
+    }
+
+    @Override
+    int getDocFreq(final int ord) {
+        throw new IllegalStateException("dictionary without frequencies: " +
+                                                                   getField());
+    }
+
+    @Override
+    long getTotalTermFreq(final int ord) {
+        throw new IllegalStateException("dictionary without frequencies: " +
+                                                                   getField());
+    }
+
+    @Override
+    int blockCount() {
+        return (size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    @Override
+    public BytesRef term(final int ord) {
+        if ((ord < 0) || (ord >= size())) {
+            throw new IllegalArgumentException("invalid ord [" + ord + "]");
+        }
+        final SortedSetDocValues[] values = borrow();
+        try {
+            return BytesRef.deepCopyOf(lookupOrd(values, ord));
+        } finally {
+            pool.offer(values);
+        }
+    }
+
+    /**
+     * @param term termo a ser procurado
+     * @return a posicao do primeiro termo maior ou igual a 'term' ou size() se
+     * nao houver nenhum
+     */
+    @Override
+    public int ceil(final BytesRef term) {
+        if (term == null) {
+            throw new NullPointerException("term");
+        }
+        // o primeiro termo global >= 'term' e o primeiro >= 'term' de algum
+        // segmento
+        long ceil = size();
+        final SortedSetDocValues[] values = borrow();
+        try {
+            for (int seg = 0; seg < leaves.size(); seg++) {
+                final SortedSetDocValues svalues = segment(values, seg);
+                final long found = svalues.lookupTerm(term);
+                final long segOrd = (found >= 0) ? found : (-found - 1);
+
+                if (segOrd < svalues.getValueCount()) {
+                    ceil = Math.min(ceil, map.getGlobalOrds(seg).get(segOrd));
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            pool.offer(values);
+        }
+        return (int)ceil;
+    }
+
+    @Override
+    int readBlock(final int block,
+                  final BytesRef[] buffer) {
+        assert (block >= 0) && (block < blockCount());
+        assert buffer.length >= BLOCK_SIZE;
+
+        final int first = block * BLOCK_SIZE;
+        final int tot = Math.min(BLOCK_SIZE, size() - first);
+        final SortedSetDocValues[] values = borrow();
+
+        try {
+            for (int idx = 0; idx < tot; idx++) {
+                buffer[idx] = copy(lookupOrd(values, first + idx),
+                                                                 buffer[idx]);
+            }
+        } finally {
+            pool.offer(values);
+        }
+        return tot;
+    }
+
+    @Override
+    BytesRef readTerm(final int ord,
+                      final BytesRef scratch) {
+        final SortedSetDocValues[] values = borrow();
+        try {
+            return copy(lookupOrd(values, ord), scratch);
+        } finally {
+            pool.offer(values);
+        }
+    }
+
+    @Override
+    int compareFirst(final int block,
+                     final BytesRef term) {
+        final SortedSetDocValues[] values = borrow();
+        try {
+            return lookupOrd(values, block * BLOCK_SIZE).compareTo(term);
+        } finally {
+            pool.offer(values);
+        }
+    }
+
+    /**
+     * @param values doc values de cada segmento obtidos com 'borrow()'
+     * @param ord ordinal global valido
+     * @return o termo do ordinal, valido somente ate a proxima leitura de
+     * 'values'
+     */
+    private BytesRef lookupOrd(final SortedSetDocValues[] values,
+                               final int ord) {
+        assert values.length == leaves.size();
+        assert (ord >= 0) && (ord < size());
+
+        final int seg = map.getFirstSegmentNumber(ord);
+        try {
+            return segment(values, seg).lookupOrd(map.getFirstSegmentOrd(ord));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Copia 'term' em 'scratch', reaproveitando o seu vetor se couber
+     * @param term termo a ser copiado
+     * @param scratch BytesRef a ser reaproveitado ou null
+     * @return 'scratch' ou um novo BytesRef com a copia
+     */
+    private static BytesRef copy(final BytesRef term,
+                                 final BytesRef scratch) {
+        assert term != null;
+
+        if ((scratch == null) || (scratch.bytes.length < term.length)) {
+            return BytesRef.deepCopyOf(term);
+        }
+        System.arraycopy(term.bytes, term.offset, scratch.bytes, 0,
+                                                                  term.length);
+        scratch.offset = 0;
+        scratch.length = term.length;
+
+        return scratch;
+    }
+
+    /**
+     * @return um vetor com os doc values ja abertos de cada segmento (null
+     * se ainda nao foi aberto), que deve ser devolvido a 'pool' depois do uso
+     */
+    private SortedSetDocValues[] borrow() {
+        final SortedSetDocValues[] values = pool.poll();
+
+        return (values == null) ? new SortedSetDocValues[leaves.size()]
+                                : values;
+    }
+
+    /**
+     * @return os doc values do campo no segmento, abertos uma unica vez para
+     * cada vetor (as instancias nao podem ser compartilhadas entre threads)
+     */
+    private SortedSetDocValues segment(final SortedSetDocValues[] values,
+                                       final int seg) throws IOException {
+        if (values[seg] == null) {
+            values[seg] = DocValues.getSortedSet(leaves.get(seg).reader(),
+                                                                   getField());
+        }
+        return values[seg];
+    }
+}
@@ -0,0 +1,70 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Gera os arquivos de dicionario (BrowseFile) de campos de um indice Lucene.
+ * Os arquivos ficam associados ao commit corrente do indice e devem ser
+ * gerados novamente sempre que o indice for alterado, nesta ordem:
+ * <ol>
+ * <li>atualizar o indice (GenLilacsIndex, completo ou -incremental);</li>
+ * <li>gerar os arquivos com este programa, a partir do novo commit;</li>
+ * <li>deixar que o servidor reabra o indice (REFRESH_INTERVAL).</li>
+ * </ol>
+ * Se o servidor reabrir o indice antes do passo 2, os campos cujos arquivos
+ * estiverem desatualizados tem o seu dicionario construido no heap, com um
+ * aviso no log, ate a proxima reabertura.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class GenBrowseFile {
+    private static void usage() {
+        System.err.println("usage: GenBrowseFile <indexDir> <outDir> " +
+                                            "<field>[,<field>...] [--freqs]");
+        System.exit(1);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 3) {
+            usage();
+        }
+
+        final String indexDir = args[0];
+        final String outDir = args[1];
+        final String[] fields = args[2].trim().split(" *[\\,\\;] *");
+        boolean freqs = false;
+
+        for (int idx = 3; idx < args.length; idx++) {
+            if (args[idx].equals("--freqs")) {
+                freqs = true;
+            } else {
+                usage();
+            }
+        }
+        new File(outDir).mkdirs();
+
+        try (Directory idir = FSDirectory.open(new File(indexDir).toPath());
+             DirectoryReader reader = DirectoryReader.open(idir);
+             Directory odir = FSDirectory.open(new File(outDir).toPath())) {
+            for (String field : fields) {
+                final long start = System.currentTimeMillis();
+                final int size = BrowseFile.write(reader, field, odir, freqs);
+
+                System.out.println("+++" + field + ": " + size + " terms, " +
+                             (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
+}
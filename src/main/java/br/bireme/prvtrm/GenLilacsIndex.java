@@ -14,28 +14,93 @@ import bruma.master.MasterFactory;
 import bruma.master.Record;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 /**
+ * Gera o indice Lucene da base LILACS. Os registros sao lidos da base
+ * isis por uma thread e entregues em lotes, por uma fila limitada, a
+ * 'threads' threads que criam os documentos e os adicionam concorrentemente
+ * ao IndexWriter.
+ * No modo incremental (-incremental) somente os registros gravados na base
+ * depois da ultima execucao sao lidos: o isis grava os registros novos e os
+ * alterados no final do arquivo master, de forma que basta comparar a posicao
+ * de cada registro (obtida do xrf, sem ler o registro) com a maior posicao
+ * indexada na execucao anterior. Os documentos sao substituidos pelo campo
+ * indexado 'mfn' e os registros apagados sao removidos do indice. A posicao e
+ * guardada nos dados do commit do indice, de forma que as alteracoes e o novo
+ * ponto de controle aparecem juntos para os leitores (servlet) com um unico
+ * commit. Junto com a posicao sao guardados o proximo mfn e o tamanho do
+ * arquivo master: se a base tiver sido recriada ou reorganizada (proximo mfn
+ * ou tamanho menores que os guardados) a posicao deixa de valer e o indice e
+ * gerado novamente por completo, o que tambem ocorre se ainda nao houver
+ * indice no diretorio de saida.
+ * Com -docValues o campo 'tit2' tambem e gravado como SortedSetDocValuesField,
+ * permitindo que o servidor use os doc values como dicionario do campo
+ * (DOCVALUES_FIELDS) em vez de copiar os termos para a memoria. A opcao
+ * tambem e guardada nos dados do commit e o modo incremental a exige igual a
+ * da execucao anterior, ja que os documentos nao alterados nao seriam
+ * regravados.
  *
  * @author Heitor Barbieri
  * date: 20160215
  */
 public class GenLilacsIndex {
+    private static final int BATCH_SIZE = 256;          // registros por lote
+    private static final long REPORT_INTERVAL = 10000;  // ms entre mensagens
+    private static final double DEFAULT_RAM_BUFFER_MB = 256;
+
+    /**
+     * Dados do commit: maior posicao no master dos registros indexados
+     */
+    public static final String MST_POSITION = "mstPosition";
+    /**
+     * Dados do commit: proximo mfn da base na ultima execucao
+     */
+    public static final String NEXT_MFN = "nextMfn";
+    /**
+     * Dados do commit: tamanho do arquivo master na ultima execucao
+     */
+    public static final String MST_SIZE = "mstSize";
+    /**
+     * Dados do commit: se o campo 'tit2' foi gravado com doc values
+     */
+    public static final String DOC_VALUES = "docValues";
+
     private static void usage() {
-        System.err.println("usage: GenLilacsIndex <LILPath> <outDir>");
+        System.err.println("usage: GenLilacsIndex <LILPath> <outDir>" +
+                           " [-threads=<n>] [-ramBufferMB=<mb>]" +
+                           " [-forceMerge=<maxSegments>] [-incremental]" +
+                           " [-docValues]");
         System.exit(1);
     }
 
-    private static void writeDocument(final IndexWriter iwriter,
-                                      final Record rec)
-                                            throws BrumaException, IOException {
+    private static Document createDocument(final Record rec,
+                                           final boolean docValues)
+                                                        throws BrumaException {
         String title = "[empty]";
         String title2 = null;
         String abstr = "[empty]";
@@ -63,6 +128,10 @@ public class GenLilacsIndex {
         final Document doc = new Document();
         final org.apache.lucene.document.Field mfnFld = new
                 org.apache.lucene.document.StoredField("mfn", rec.getMfn());
+        final org.apache.lucene.document.Field mfnKey = new
+                org.apache.lucene.document.StringField("mfn",
+                    Integer.toString(rec.getMfn()),
+                    org.apache.lucene.document.Field.Store.NO);
         final org.apache.lucene.document.Field titFld = new
                 org.apache.lucene.document.TextField("tit", title,
                     org.apache.lucene.document.Field.Store.YES);
@@ -71,6 +140,7 @@ public class GenLilacsIndex {
                     org.apache.lucene.document.Field.Store.YES);
 
         doc.add(mfnFld);
+        doc.add(mfnKey);
         doc.add(titFld);
         doc.add(absFld);
         if (title2 != null) {
@@ -79,39 +149,304 @@ public class GenLilacsIndex {
                     title2.toLowerCase(),
                     org.apache.lucene.document.Field.Store.YES);
             doc.add(titFld2);
+            if (docValues) {
+                doc.add(new org.apache.lucene.document.SortedSetDocValuesField(
+                                   "tit2", new BytesRef(title2.toLowerCase())));
+            }
+        }
+        return doc;
+    }
+
+    private static Term mfnTerm(final int mfn) {
+        return new Term("mfn", Integer.toString(mfn));
+    }
+
+    /**
+     * Cria e adiciona ao indice (ou substitui, se 'update') os documentos dos
+     * lotes da fila ate encontrar um lote vazio
+     */
+    private static void indexBatches(final IndexWriter iwriter,
+                                     final BlockingQueue<List<Record>> queue,
+                                     final boolean update,
+                                     final boolean docValues,
+                                     final AtomicLong added)
+                            throws BrumaException, IOException,
+                                                        InterruptedException {
+        while (true) {
+            final List<Record> batch = queue.take();
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (Record rec : batch) {
+                if (update) {
+                    iwriter.updateDocument(mfnTerm(rec.getMfn()),
+                                               createDocument(rec, docValues));
+                } else {
+                    iwriter.addDocument(createDocument(rec, docValues));
+                }
+            }
+            added.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * Coloca um lote na fila, desistindo se alguma thread de indexacao tiver
+     * terminado antes do tempo (por erro)
+     */
+    private static void put(final BlockingQueue<List<Record>> queue,
+                            final List<Record> batch,
+                            final List<Future<Void>> workers)
+                            throws BrumaException, IOException,
+                                                        InterruptedException {
+        while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+            for (Future<Void> worker : workers) {
+                if (worker.isDone()) {
+                    checkWorker(worker);
+                    throw new IOException("indexing thread finished early");
+                }
+            }
+        }
+    }
+
+    private static void checkWorker(final Future<Void> worker)
+                            throws BrumaException, IOException,
+                                                        InterruptedException {
+        try {
+            worker.get();
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof BrumaException) {
+                throw (BrumaException)cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @param reader leitor do ultimo commit do indice
+     * @param nextMfn proximo mfn atual da base
+     * @param mstSize tamanho atual do arquivo master
+     * @return a maior posicao no master dos registros indexados na execucao
+     * anterior ou -1 se o ponto de controle nao existir ou nao valer mais
+     * para a base (recriada ou reorganizada)
+     */
+    private static long readCheckpoint(final DirectoryReader reader,
+                                       final int nextMfn,
+                                       final long mstSize)
+                                                            throws IOException {
+        final Map<String,String> userData =
+                                      reader.getIndexCommit().getUserData();
+        final String position = userData.get(MST_POSITION);
+        final String prevNext = userData.get(NEXT_MFN);
+        final String prevSize = userData.get(MST_SIZE);
+        final String reason;
+
+        if ((position == null) || (prevNext == null) || (prevSize == null)) {
+            reason = "index without checkpoint";
+        } else if (Integer.parseInt(prevNext) > nextMfn) {
+            reason = "nextMfn " + prevNext + " > " + nextMfn;
+        } else if ((Long.parseLong(prevSize) > mstSize) ||
+                   (Long.parseLong(position) >= mstSize)) {
+            reason = "master size " + prevSize + " > " + mstSize;
+        } else {
+            reason = null;
+        }
+        if (reason != null) {
+            System.out.println("+++" + reason + ": full rebuild");
+            return -1;
+        }
+        return Long.parseLong(position);
+    }
 
+    /**
+     * @param reader leitor do ultimo commit do indice
+     * @param docValues se a execucao atual grava doc values
+     * @throws IOException se o indice anterior foi gerado com a opcao
+     * -docValues diferente
+     */
+    private static void checkDocValues(final DirectoryReader reader,
+                                       final boolean docValues)
+                                                            throws IOException {
+        final boolean prev = Boolean.parseBoolean(
+                       reader.getIndexCommit().getUserData().get(DOC_VALUES));
+        if (prev != docValues) {
+            throw new IOException("index generated with docValues=" + prev +
+                       ": -incremental requires the same -docValues option");
         }
-        iwriter.addDocument(doc);
+    }
+
+    /**
+     * @param lilPath caminho da base isis (com ou sem a extensao .mst)
+     * @return tamanho em bytes do arquivo master
+     */
+    private static long masterSize(final String lilPath) {
+        final String path = lilPath.endsWith(".mst") ? lilPath
+                                                     : lilPath + ".mst";
+        return new File(path).length();
+    }
+
+    private static void report(final long count,
+                               final long start) {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        System.out.println("+++" + count + " docs " + (elapsed / 1000) + "s " +
+                                   ((count * 1000) / elapsed) + " docs/s");
     }
 
     public static void main(final String[] args) throws IOException,
-                                                                BrumaException {
+                                                                BrumaException,
+                                                          InterruptedException {
         if (args.length < 2) {
             usage();
         }
 
         final String lilPath = args[0];
         final String outDir = args[1];
+        int threads = Runtime.getRuntime().availableProcessors();
+        double ramBufferMB = DEFAULT_RAM_BUFFER_MB;
+        int maxSegments = 0;
+        boolean incremental = false;
+        boolean docValues = false;
+
+        for (int idx = 2; idx < args.length; idx++) {
+            if (args[idx].startsWith("-threads=")) {
+                threads = Integer.parseInt(args[idx].substring(9));
+            } else if (args[idx].startsWith("-ramBufferMB=")) {
+                ramBufferMB = Double.parseDouble(args[idx].substring(13));
+            } else if (args[idx].startsWith("-forceMerge=")) {
+                maxSegments = Integer.parseInt(args[idx].substring(12));
+            } else if (args[idx].equals("-incremental")) {
+                incremental = true;
+            } else if (args[idx].equals("-docValues")) {
+                docValues = true;
+            } else {
+                usage();
+            }
+        }
+        if ((threads <= 0) || (ramBufferMB <= 0) || (maxSegments < 0)) {
+            usage();
+        }
 
         final Master mst = MasterFactory.getInstance(lilPath).open();
         final Analyzer analyzer = new StandardAnalyzer();
 
         final Directory directory = FSDirectory.open(new File(outDir)
                                                                      .toPath());
+        final int nextMfn = mst.getControlRecord().getNxtmfn();
+        final long mstSize = masterSize(lilPath);
+        DirectoryReader previous = null;
+        long checkpoint = -1;
+
+        if (incremental && !DirectoryReader.indexExists(directory)) {
+            System.out.println("+++index not found: full rebuild");
+        } else if (incremental) {
+            previous = DirectoryReader.open(directory);
+            try {
+                checkDocValues(previous, docValues);
+                checkpoint = readCheckpoint(previous, nextMfn, mstSize);
+            } catch (IOException ex) {
+                previous.close();
+                directory.close();
+                mst.close();
+                throw ex;
+            }
+            if (checkpoint < 0) {
+                previous.close();
+                previous = null;
+            }
+        }
         final IndexWriterConfig conf = new IndexWriterConfig(analyzer);
+        conf.setRAMBufferSizeMB(ramBufferMB);
+        conf.setOpenMode((previous != null)
+                                     ? IndexWriterConfig.OpenMode.APPEND
+                                     : IndexWriterConfig.OpenMode.CREATE);
         final IndexWriter iwriter = new IndexWriter(directory, conf);
-        int cur = 0;
+        final boolean update = (previous != null);
+        // conta somente os documentos nao apagados, ao contrario do docFreq
+        final IndexSearcher searcher = update ? new IndexSearcher(previous)
+                                              : null;
+        final boolean dvalues = docValues;
+        final BlockingQueue<List<Record>> queue =
+                                          new ArrayBlockingQueue<>(4 * threads);
+        final AtomicLong added = new AtomicLong();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> workers = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        final Record.Status[] status = new Record.Status[1];
+        final Record.ActiveStatus[] active = new Record.ActiveStatus[1];
+        long lastReport = start;
+        long maxPosition = checkpoint;
+        long deleted = 0;
 
-        for (Record rec : mst) {
-            if (rec.isActive()) {
-                writeDocument(iwriter, rec);
-                if (++cur % 100000 == 0) {
-                    System.out.println("+++" + cur);
+        try {
+            for (int idx = 0; idx < threads; idx++) {
+                workers.add(pool.submit(() -> {
+                    indexBatches(iwriter, queue, update, dvalues, added);
+                    return null;
+                }));
+            }
+            List<Record> batch = new ArrayList<>(BATCH_SIZE);
+            for (int mfn = 1; mfn < nextMfn; mfn++) {
+                final long position = mst.getMasterPosition(mfn, status,
+                                                                       active);
+                if (status[0] == Record.Status.ACTIVE) {
+                    maxPosition = Math.max(maxPosition, position);
+                    if (position > checkpoint) {  // novo ou alterado
+                        batch.add(mst.getRecord(mfn));
+                        if (batch.size() == BATCH_SIZE) {
+                            put(queue, batch, workers);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                } else if ((searcher != null) &&
+                        (searcher.count(new TermQuery(mfnTerm(mfn))) > 0)) {
+                    iwriter.deleteDocuments(mfnTerm(mfn));    // apagado
+                    deleted++;
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastReport >= REPORT_INTERVAL) {
+                    report(added.get(), start);
+                    lastReport = now;
                 }
             }
+            if (!batch.isEmpty()) {
+                put(queue, batch, workers);
+            }
+            for (int idx = 0; idx < threads; idx++) {
+                put(queue, Collections.<Record>emptyList(), workers);
+            }
+            for (Future<Void> worker : workers) {
+                checkWorker(worker);
+            }
+            report(added.get(), start);
+            if (update) {
+                System.out.println("+++" + deleted + " docs deleted");
+            }
+            final Map<String,String> userData = new HashMap<>();
+            userData.put(MST_POSITION, Long.toString(maxPosition));
+            userData.put(NEXT_MFN, Integer.toString(nextMfn));
+            userData.put(MST_SIZE, Long.toString(mstSize));
+            userData.put(DOC_VALUES, Boolean.toString(docValues));
+            iwriter.setLiveCommitData(userData.entrySet());
+            if (maxSegments > 0) {
+                System.out.println("+++forceMerge(" + maxSegments + ")");
+                iwriter.forceMerge(maxSegments);
+            }
+            iwriter.close();
+        } catch (IOException | BrumaException | InterruptedException |
+                 RuntimeException ex) {
+            iwriter.rollback();
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+            if (previous != null) {
+                previous.close();
+            }
+            directory.close();
+            mst.close();
         }
-
-        iwriter.close();
-        directory.close();
     }
 }
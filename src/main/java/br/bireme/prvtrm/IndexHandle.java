@@ -0,0 +1,545 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Um indice Lucene aberto para leitura que pode ser reaberto sem interromper
+ * as consultas em andamento. Cada consulta obtem a geracao corrente com
+ * 'acquire()' e a devolve com 'release()'. Quando o indice e reaberto, a nova
+ * geracao passa a ser a corrente e o leitor antigo so e fechado depois que a
+ * ultima consulta que o utiliza termina (contagem de referencias do Lucene).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class IndexHandle {
+    /**
+     * Um leitor do indice e as estruturas construidas a partir dele: os
+     * termos (MultiTerms) de cada campo, criados uma unica vez, e um conjunto
+     * de TermsEnum por campo que sao reaproveitados pelas consultas
+     * (reposicionados por 'seekCeil') em vez de serem recriados. O conjunto
+     * pertence a geracao e e esvaziado quando ela e fechada, de forma que
+     * nenhuma thread mantenha vivos os leitores antigos. Os
+     * dicionarios em memoria e as visoes coladas dos campos configurados sao
+     * construidos quando a geracao e criada. Os arquivos de dicionario
+     * (BrowseFile) gerados para o commit do leitor sao mapeados em memoria e
+     * substituem os dicionarios dos seus campos. Os campos de 'dvFields' sem
+     * arquivo usam os seus doc values (DocValuesDictionary) em vez de um
+     * dicionario em memoria. So no lugar dos arquivos gerados para outro
+     * commit cujos campos nao tenham outro dicionario configurado e
+     * construido um dicionario em memoria.
+     */
+    static class Generation {
+        private static final int MAXPOOLED = 64;   // TermsEnum por campo
+
+        final DirectoryReader reader;
+        final Map<String,TermDictionary> dictionaries;
+        final Map<String,CollatedDictionary> collated;
+        private final Map<String,TermDictionary> dictionaryView;
+        private final Map<String,CollatedDictionary> collatedView;
+        private final List<BrowseFile.Mapped> mapped;
+        private final ConcurrentHashMap<String,Terms> terms;
+        private final ConcurrentHashMap<String,List<Terms>> leafTerms;
+        private final ConcurrentHashMap<String,ArrayDeque<TermsEnum>> enums;
+        private volatile boolean closed;
+
+        Generation(final DirectoryReader reader,
+                   final Set<String> dictFields,
+                   final Set<String> dvFields,
+                   final Set<String> collFields,
+                   final Collator collator,
+                   final Directory browseDir) throws IOException {
+            assert reader != null;
+            assert dictFields != null;
+            assert dvFields != null;
+            assert collFields != null;
+            assert collFields.isEmpty() || (collator != null);
+
+            this.reader = reader;
+            this.terms = new ConcurrentHashMap<>();
+            this.leafTerms = new ConcurrentHashMap<>();
+            this.enums = new ConcurrentHashMap<>();
+            this.dictionaries = new HashMap<>();
+            this.mapped = new ArrayList<>();
+            this.collated = new HashMap<>();
+            boolean ok = false;
+            try {
+                final List<String> stale = (browseDir == null)
+                                              ? Collections.emptyList()
+                                              : openBrowseFiles(browseDir);
+                for (String field : dvFields) {
+                    if (!dictionaries.containsKey(field)) {
+                        dictionaries.put(field, DocValuesDictionary.build(
+                                                               reader, field));
+                    }
+                }
+                for (String field : dictFields) {
+                    if (!dictionaries.containsKey(field)) {
+                        dictionaries.put(field, TermDictionary.build(field,
+                                                   getTerms(field).iterator()));
+                    }
+                }
+                // arquivos desatualizados de campos sem outro dicionario
+                for (String field : stale) {
+                    if (!dictionaries.containsKey(field) &&
+                              (MultiTerms.getTerms(reader, field) != null)) {
+                        dictionaries.put(field, TermDictionary.build(field,
+                                                   getTerms(field).iterator()));
+                    }
+                }
+                for (String field : collFields) {
+                    TermDictionary dict = dictionaries.get(field);
+                    final boolean owned = (dict == null) || !dict.hasFreqs();
+                    if (owned) {
+                        dict = TermDictionary.build(field,
+                                                   getTerms(field).iterator());
+                    }
+                    collated.put(field, CollatedDictionary.build(dict,
+                                                           collator, owned));
+                }
+                ok = true;
+            } finally {
+                if (!ok) {
+                    IOUtils.closeWhileHandlingException(mapped);
+                }
+            }
+            this.dictionaryView = Collections.unmodifiableMap(dictionaries);
+            this.collatedView = Collections.unmodifiableMap(collated);
+        }
+
+        /**
+         * Mapeia em memoria os arquivos de dicionario gerados para o commit do
+         * leitor
+         * @return os campos cujos arquivos estao desatualizados ou invalidos
+         */
+        private List<String> openBrowseFiles(final Directory browseDir)
+                                                            throws IOException {
+            assert browseDir != null;
+
+            final byte[] id = BrowseFile.commitId(reader);
+            final List<String> stale = new ArrayList<>();
+
+            for (String file : browseDir.listAll()) {
+                if (file.endsWith(BrowseFile.EXTENSION)) {
+                    try {
+                        final BrowseFile.Mapped dict = BrowseFile.open(
+                                                          browseDir, file, id);
+                        mapped.add(dict);
+                        dictionaries.put(dict.getField(), dict);
+                    } catch (IOException ex) {
+                        // em geral, um arquivo gerado para outro commit
+                        logger.warn("stale or invalid browse file " + file +
+                                " (" + ex.getMessage() + "): ignored. Run " +
+                                      "GenBrowseFile after every index update");
+                        stale.add(file.substring(0, file.length() -
+                                               BrowseFile.EXTENSION.length()));
+                    }
+                }
+            }
+            return stale;
+        }
+
+        /**
+         * Descarta os TermsEnum guardados e fecha os arquivos mapeados em
+         * memoria. Chamado quando o leitor e fechado, depois que a ultima
+         * consulta que o utiliza terminou
+         */
+        void close() throws IOException {
+            closed = true;
+            enums.clear();
+            IOUtils.close(mapped);
+        }
+
+        long getVersion() {
+            return reader.getVersion();
+        }
+
+        /**
+         * @param field nome do campo
+         * @return os termos do campo considerando todos os segmentos do indice
+         * @throws IOException se o campo nao existir no indice
+         */
+        Terms getTerms(final String field) throws IOException {
+            assert field != null;
+
+            final String fld = field.trim();
+            Terms fterms = terms.get(fld);
+            if (fterms == null) {
+                fterms = MultiTerms.getTerms(reader, fld);
+                if (fterms == null) {
+                    throw new IOException("Invalid field: " + field);
+                }
+                final Terms old = terms.putIfAbsent(fld, fterms);
+                if (old != null) {
+                    fterms = old;
+                }
+            }
+            return fterms;
+        }
+
+        /**
+         * @return numero de segmentos do indice
+         */
+        int getSegmentCount() {
+            return reader.leaves().size();
+        }
+
+        /**
+         * @param field nome do campo
+         * @return os termos do campo em cada segmento do indice que o contem
+         * @throws IOException se o campo nao existir no indice
+         */
+        List<Terms> getLeafTerms(final String field) throws IOException {
+            assert field != null;
+
+            final String fld = field.trim();
+            List<Terms> lterms = leafTerms.get(fld);
+            if (lterms == null) {
+                final List<Terms> list = new ArrayList<>();
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    final Terms fterms = leaf.reader().terms(fld);
+                    if (fterms != null) {
+                        list.add(fterms);
+                    }
+                }
+                if (list.isEmpty()) {
+                    throw new IOException("Invalid field: " + field);
+                }
+                lterms = Collections.unmodifiableList(list);
+                final List<Terms> old = leafTerms.putIfAbsent(fld, lterms);
+                if (old != null) {
+                    lterms = old;
+                }
+            }
+            return lterms;
+        }
+
+        /**
+         * @param field nome do campo
+         * @return um TermsEnum do campo, que deve ser devolvido com
+         * 'returnTermsEnum()' e cuja posicao e indefinida
+         * @throws IOException se o campo nao existir no indice
+         */
+        TermsEnum borrowTermsEnum(final String field) throws IOException {
+            assert field != null;
+
+            final ArrayDeque<TermsEnum> pool = enums.get(field.trim());
+            TermsEnum tenum = null;
+
+            if (pool != null) {
+                synchronized (pool) {
+                    tenum = pool.pollFirst();
+                }
+            }
+            return (tenum == null) ? getTerms(field).iterator() : tenum;
+        }
+
+        /**
+         * @param field nome do campo
+         * @param tenum TermsEnum obtido com 'borrowTermsEnum()'
+         */
+        void returnTermsEnum(final String field,
+                             final TermsEnum tenum) {
+            assert field != null;
+            assert tenum != null;
+
+            if (closed) {
+                return;
+            }
+            final ArrayDeque<TermsEnum> pool = enums.computeIfAbsent(
+                                    field.trim(), k -> new ArrayDeque<>());
+            synchronized (pool) {
+                if (pool.size() < MAXPOOLED) {
+                    pool.addFirst(tenum);
+                }
+            }
+        }
+
+        /**
+         * @return os dicionarios em memoria da geracao, por nome de campo
+         * (visao somente de leitura)
+         */
+        Map<String,TermDictionary> getDictionaries() {
+            return dictionaryView;
+        }
+
+        /**
+         * @return as visoes coladas da geracao, por nome de campo (visao
+         * somente de leitura)
+         */
+        Map<String,CollatedDictionary> getCollatedDictionaries() {
+            return collatedView;
+        }
+
+        /**
+         * @param field nome do campo
+         * @return o dicionario em memoria do campo ou null se nao houver
+         */
+        TermDictionary getDictionary(final String field) {
+            assert field != null;
+
+            return dictionaries.get(field.trim());
+        }
+
+        /**
+         * @param field nome do campo
+         * @return a visao colada do campo ou null se nao houver
+         */
+        CollatedDictionary getCollated(final String field) {
+            assert field != null;
+
+            return collated.get(field.trim());
+        }
+    }
+
+    private static final Logger logger = LogManager.getLogger(
+                                                            IndexHandle.class);
+
+    private final String name;
+    private final String path;
+    private final Set<String> dictFields;
+    private final Set<String> dvFields;
+    private final Set<String> collFields;
+    private final Collator collator;
+    private final Directory directory;
+    private final Directory browseDir;   // null se nao houver
+    private final AtomicReference<Generation> current;
+    private final AtomicInteger openGenerations;
+    private final AtomicBoolean closing;   // 'close()' ja foi chamado
+    private final AtomicBoolean closed;    // diretorios fechados
+
+    /**
+     * @param name nome do indice
+     * @param path caminho do diretorio do indice
+     * @param dictFields campos cujos termos serao mantidos em memoria
+     * @throws IOException
+     */
+    IndexHandle(final String name,
+                final String path,
+                final Set<String> dictFields) throws IOException {
+        this(name, path, dictFields, Collections.<String>emptySet(),
+                     Collections.<String>emptySet(), null, null, false);
+    }
+
+    /**
+     * @param name nome do indice
+     * @param path caminho do diretorio do indice
+     * @param dictFields campos cujos termos serao mantidos em memoria
+     * @param dvFields campos cujos doc values (SORTED_SET) serao usados como
+     * dicionario
+     * @param collFields campos que terao uma visao colada (CollatedDictionary)
+     * @param collator regras de ordenacao das visoes coladas ou null se
+     * 'collFields' for vazio
+     * @param browsePath diretorio dos arquivos de dicionario (BrowseFile) do
+     * indice ou null se nao houver
+     * @param preload se true, os arquivos do indice sao mapeados em memoria e
+     * carregados (MMapDirectory.setPreload) quando sao abertos, trocando um
+     * tempo maior de abertura por consultas sem leituras do disco
+     * @throws IOException
+     */
+    IndexHandle(final String name,
+                final String path,
+                final Set<String> dictFields,
+                final Set<String> dvFields,
+                final Set<String> collFields,
+                final Collator collator,
+                final String browsePath,
+                final boolean preload) throws IOException {
+        assert name != null;
+        assert path != null;
+        assert dictFields != null;
+        assert dvFields != null;
+        assert collFields != null;
+        assert collFields.isEmpty() || (collator != null);
+
+        this.name = name;
+        this.path = path;
+        this.dictFields = new HashSet<>();
+        for (String field : dictFields) {
+            this.dictFields.add(field.trim());
+        }
+        this.dvFields = new HashSet<>();
+        for (String field : dvFields) {
+            this.dvFields.add(field.trim());
+        }
+        this.collFields = new HashSet<>();
+        for (String field : collFields) {
+            this.collFields.add(field.trim());
+        }
+        this.collator = collator;
+        if (preload) {
+            final MMapDirectory mdir = new MMapDirectory(new File(path)
+                                                                     .toPath());
+            mdir.setPreload(MMapDirectory.ALL_FILES);
+            this.directory = mdir;
+        } else {
+            this.directory = FSDirectory.open(new File(path).toPath());
+        }
+        this.openGenerations = new AtomicInteger();
+        this.closing = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+
+        DirectoryReader reader = null;
+        Directory bdir = null;
+        try {
+            bdir = (browsePath == null) ? null
+                          : new MMapDirectory(new File(browsePath).toPath());
+            this.browseDir = bdir;
+            reader = DirectoryReader.open(directory);
+            this.current = new AtomicReference<>(newGeneration(reader));
+        } catch (IOException | RuntimeException ex) {
+            IOUtils.closeWhileHandlingException(reader, bdir, directory);
+            throw ex;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return numero de geracoes cujo leitor ainda nao foi fechado (a
+     * corrente e as antigas que ainda estao sendo usadas por consultas)
+     */
+    public int getOpenGenerations() {
+        return openGenerations.get();
+    }
+
+    /**
+     * Cria uma geracao, contando-a como aberta ate que o leitor seja fechado
+     */
+    private Generation newGeneration(final DirectoryReader reader)
+                                                            throws IOException {
+        final Generation gen = new Generation(reader, dictFields, dvFields,
+                                              collFields, collator, browseDir);
+        openGenerations.incrementAndGet();
+        reader.getReaderCacheHelper().addClosedListener(key -> {
+            try {
+                gen.close();
+            } finally {
+                if ((openGenerations.decrementAndGet() == 0) &&
+                                                             closing.get()) {
+                    closeDirectories();
+                }
+            }
+        });
+        return gen;
+    }
+
+    /**
+     * @return a geracao corrente do indice, que deve ser devolvida com
+     * 'release()'
+     * @throws IOException se o indice estiver fechado
+     */
+    Generation acquire() throws IOException {
+        while (true) {
+            final Generation gen = current.get();
+            if (gen == null) {
+                throw new IOException("closed index: " + name);
+            }
+            if (gen.reader.tryIncRef()) {
+                return gen;
+            }
+        }
+    }
+
+    /**
+     * @param gen geracao obtida com 'acquire()'
+     * @throws IOException
+     */
+    void release(final Generation gen) throws IOException {
+        assert gen != null;
+
+        gen.reader.decRef();
+    }
+
+    /**
+     * Reabre o indice se ele foi alterado desde a ultima abertura
+     * @return true se uma nova geracao foi aberta
+     * @throws IOException
+     */
+    synchronized boolean refresh() throws IOException {
+        final Generation old = current.get();
+        if (old == null) {
+            return false;
+        }
+        final DirectoryReader reader = DirectoryReader.openIfChanged(
+                                                                  old.reader);
+        if (reader == null) {
+            return false;
+        }
+        final Generation gen;
+        try {
+            gen = newGeneration(reader);
+        } catch (IOException | RuntimeException ex) {
+            reader.close();
+            throw ex;
+        }
+        current.set(gen);
+        old.reader.decRef();  // fecha quando a ultima consulta terminar
+
+        return true;
+    }
+
+    /**
+     * Fecha o indice. As consultas em andamento terminam normalmente: os
+     * diretorios so sao fechados quando a ultima geracao em uso for liberada
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        closing.set(true);
+        final Generation gen = current.getAndSet(null);
+        if (gen != null) {
+            gen.reader.decRef();
+        }
+        if (openGenerations.get() == 0) {
+            closeDirectories();
+        }
+    }
+
+    /**
+     * Fecha, uma unica vez, o diretorio do indice e o dos arquivos de
+     * dicionario
+     */
+    private void closeDirectories() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            IOUtils.close(browseDir, directory);
+        }
+    }
+}
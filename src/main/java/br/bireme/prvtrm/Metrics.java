@@ -0,0 +1,276 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas do PreviousTerm no formato texto do Prometheus. Os contadores e
+ * histogramas usam LongAdder/DoubleAdder (acumuladores distribuidos entre as
+ * threads), de forma que o registro de uma consulta nao usa locks.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class Metrics {
+    /**
+     * Histograma com limites fixos dos intervalos
+     */
+    public static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] counts;   // um a mais para +Inf
+        private final DoubleAdder sum;
+
+        /**
+         * @param bounds limites superiores (inclusive) dos intervalos, em
+         * ordem crescente
+         */
+        public Histogram(final double[] bounds) {
+            if (bounds == null) {
+                throw new NullPointerException("bounds");
+            }
+            this.bounds = bounds.clone();
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int idx = 0; idx < counts.length; idx++) {
+                counts[idx] = new LongAdder();
+            }
+            this.sum = new DoubleAdder();
+        }
+
+        public void observe(final double value) {
+            int idx = 0;
+
+            while ((idx < bounds.length) && (value > bounds[idx])) {
+                idx++;
+            }
+            counts[idx].increment();
+            sum.add(value);
+        }
+
+        /**
+         * @return numero de valores registrados
+         */
+        public long getCount() {
+            long total = 0;
+
+            for (LongAdder count : counts) {
+                total += count.sum();
+            }
+            return total;
+        }
+
+        /**
+         * Escreve as series do histograma (sem HELP/TYPE)
+         * @param out destino do texto
+         * @param name nome da metrica
+         * @param labels rotulos no formato 'a="x",b="y"' ou string vazia
+         */
+        void write(final StringBuilder out,
+                   final String name,
+                   final String labels) {
+            final String sep = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+
+            for (int idx = 0; idx < counts.length; idx++) {
+                cumulative += counts[idx].sum();
+                out.append(name).append("_bucket{").append(labels).append(sep)
+                   .append("le=\"")
+                   .append((idx < bounds.length) ? format(bounds[idx]) : "+Inf")
+                   .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum");
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(format(sum.sum())).append('\n');
+            out.append(name).append("_count");
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // segundos
+    private static final double[] LATENCY_BOUNDS = {0.0005, 0.001, 0.0025,
+                   0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double[] COUNT_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128,
+                        256, 512, 1024, 4096, 16384, 65536, 262144, 1048576};
+
+    private final Map<String,Histogram> latency;  // "indice\tdirecao"
+    private final Histogram seeksPerRequest;
+    private final Histogram scannedPerRequest;
+    private final LongAdder seeks;
+    private final LongAdder scanned;
+    private final LongAdder rounds;
+    private final LongAdder fallbacks;
+    private final LongAdder returned;
+    private final LongAdder cached;
+    private final LongAdder coalesced;
+    private final LongAdder partial;
+    private final LongAdder errors;
+
+    public Metrics() {
+        latency = new ConcurrentHashMap<>();
+        seeksPerRequest = new Histogram(COUNT_BOUNDS);
+        scannedPerRequest = new Histogram(COUNT_BOUNDS);
+        seeks = new LongAdder();
+        scanned = new LongAdder();
+        rounds = new LongAdder();
+        fallbacks = new LongAdder();
+        returned = new LongAdder();
+        cached = new LongAdder();
+        coalesced = new LongAdder();
+        partial = new LongAdder();
+        errors = new LongAdder();
+    }
+
+    /**
+     * Registra uma consulta
+     * @param index nome do indice
+     * @param next direcao da consulta
+     * @param nanos duracao da consulta em nanossegundos
+     * @param stats contadores da consulta
+     * @param cacheHit true se a pagina veio do cache
+     */
+    void record(final String index,
+                final boolean next,
+                final long nanos,
+                final QueryStats stats,
+                final boolean cacheHit) {
+        assert index != null;
+        assert stats != null;
+
+        final String key = index + "\t" + (next ? "next" : "previous");
+        Histogram hist = latency.get(key);
+        if (hist == null) {
+            hist = latency.computeIfAbsent(key,
+                                           k -> new Histogram(LATENCY_BOUNDS));
+        }
+        hist.observe(nanos / 1e9);
+        seeksPerRequest.observe(stats.seeks);
+        scannedPerRequest.observe(stats.scanned);
+        seeks.add(stats.seeks);
+        scanned.add(stats.scanned);
+        rounds.add(stats.rounds);
+        fallbacks.add(stats.fallbacks);
+        returned.add(stats.returned);
+        if (cacheHit) {
+            cached.increment();
+        }
+        if (stats.coalesced) {
+            coalesced.increment();
+        }
+        if (stats.partial) {
+            partial.increment();
+        }
+    }
+
+    /**
+     * Registra uma consulta que falhou
+     */
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * Escreve as metricas no formato texto do Prometheus
+     * @param out destino do texto
+     */
+    public void write(final StringBuilder out) {
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+        header(out, "prvtrm_request_seconds", "histogram",
+                            "Latency of term queries by index and direction");
+        for (Map.Entry<String,Histogram> entry :
+                                              new TreeMap<>(latency).entrySet()) {
+            final String[] key = entry.getKey().split("\t", 2);
+            entry.getValue().write(out, "prvtrm_request_seconds",
+                         "index=\"" + escape(key[0]) + "\",direction=\"" +
+                                                                 key[1] + "\"");
+        }
+        header(out, "prvtrm_request_seeks", "histogram",
+                                         "seekCeil calls per term query");
+        seeksPerRequest.write(out, "prvtrm_request_seeks", "");
+        header(out, "prvtrm_request_terms_scanned", "histogram",
+                                              "Terms scanned per term query");
+        scannedPerRequest.write(out, "prvtrm_request_terms_scanned", "");
+        counter(out, "prvtrm_seeks_total", "seekCeil calls", seeks.sum());
+        counter(out, "prvtrm_terms_scanned_total", "Terms scanned",
+                                                                scanned.sum());
+        counter(out, "prvtrm_terms_returned_total", "Terms returned",
+                                                               returned.sum());
+        counter(out, "prvtrm_bisect_rounds_total",
+                 "Bisection rounds looking for previous terms", rounds.sum());
+        counter(out, "prvtrm_scan_fallbacks_total",
+                    "Previous-term lookups that gave up bisecting and scanned "
+                                            + "without limit", fallbacks.sum());
+        counter(out, "prvtrm_cached_requests_total",
+                             "Term queries answered by the cache", cached.sum());
+        counter(out, "prvtrm_coalesced_requests_total",
+                "Term queries that shared the page of an identical query in "
+                                              + "progress", coalesced.sum());
+        counter(out, "prvtrm_partial_requests_total",
+                 "Term queries that reached their time limit and returned "
+                                  + "the terms found so far", partial.sum());
+        counter(out, "prvtrm_errors_total",
+                          "Term queries that failed while running", errors.sum());
+    }
+
+    /**
+     * Escreve uma metrica do tipo counter
+     */
+    public static void counter(final StringBuilder out,
+                               final String name,
+                               final String help,
+                               final double value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    /**
+     * Escreve uma metrica do tipo gauge
+     */
+    public static void gauge(final StringBuilder out,
+                             final String name,
+                             final String help,
+                             final double value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    /**
+     * Escreve as linhas HELP e TYPE de uma metrica
+     */
+    public static void header(final StringBuilder out,
+                              final String name,
+                              final String type,
+                              final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param value valor de um rotulo
+     * @return o valor com '\', '"' e quebras de linha escapados
+     */
+    public static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                                                     .replace("\n", "\\n");
+    }
+
+    private static String format(final double value) {
+        return (value == Math.rint(value) && !Double.isInfinite(value))
+                               ? Long.toString((long)value) : Double.toString(value);
+    }
+}
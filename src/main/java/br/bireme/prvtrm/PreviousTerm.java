@@ -7,22 +7,46 @@
 
 package br.bireme.prvtrm;
 
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 //import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 /**
@@ -34,469 +58,2857 @@ import org.apache.lucene.util.BytesRef;
  * date: 20121123
  */
 public class PreviousTerm {
-    private class Tum {
-        private final IndexReader reader;
+    /**
+     * Idioma padrao das regras de ordenacao das visoes coladas
+     */
+    public static final String DEFAULT_COLLATION_LOCALE = "pt-BR";
+
+    private final Logger logger = LogManager.getLogger(PreviousTerm.class);
+
+    /**
+     * Cursor sobre os termos de um campo. 'term()' retorna o termo corrente ou
+     * null quando nao houver mais termos.
+     */
+    private interface TermCursor {
+        String field();
+
+        BytesRef term();
+
+        /**
+         * @return a posicao do termo corrente no TermDictionary do campo (ou
+         * na visao colada) ou -1
+         */
+        int ord();
+
+        /**
+         * @return a chave de ordenacao do termo corrente ou null se o cursor
+         * seguir a ordem dos bytes
+         */
+        default BytesRef sortKey() {
+            return null;
+        }
+
+        /**
+         * @return numero de documentos que contem o termo corrente
+         */
+        int docFreq() throws IOException;
+
+        /**
+         * @return numero total de ocorrencias do termo corrente
+         */
+        long totalTermFreq() throws IOException;
+
+        void next() throws IOException;
+
+        /**
+         * Libera os recursos do cursor
+         * @param stats contadores da consulta, aos quais os contadores do
+         * cursor serao somados
+         */
+        void close(QueryStats stats);
+    }
+
+    private class Tum implements TermCursor {
+        private final IndexHandle.Generation gen;
+        private final String field;
         private final TermsEnum tenum;
-        private boolean eof;
-        private String cur;
+        private final BytesRef upper;
+        private final QueryStats stats;
+        private BytesRef cur;
 
-        Tum(final String sdir,
+        /**
+         * @param gen geracao para a qual 'tenum' sera devolvido no 'close()'
+         * ou null se 'tenum' nao foi emprestado
+         * @param field nome do campo
+         * @param tenum iterador dos termos do campo
+         * @param term termo inicial (inclusive)
+         * @param lower menor termo a ser percorrido (inclusive) ou null
+         * @param upper limite superior (exclusivo) dos termos ou null
+         */
+        Tum(final IndexHandle.Generation gen,
             final String field,
-            final String term) throws IOException {
-            assert sdir != null;
+            final TermsEnum tenum,
+            final BytesRef term,
+            final BytesRef lower,
+            final BytesRef upper) throws IOException {
             assert field != null;
+            assert tenum != null;
             assert term != null;
 
-            this.reader = getIndexReader(sdir);
-            
-            //final Terms terms0 = MultiTerms.getTerms(reader, field);
-            final Terms terms = MultiTerms.getTerms(this.reader, field.trim()); // Lucene current version
-            //final Terms terms = MultiFields.getTerms(this.reader, field.trim());  // Lucene 5.4.1 and 4.0.0
-
-            if (terms == null) {
-                throw new IOException("Invalid field: " + field);
+            this.gen = gen;
+            this.field = field;
+            this.tenum = tenum;
+            this.upper = upper;
+            this.stats = new QueryStats();
+            stats.seeks++;
+            final BytesRef from = ((lower != null) && (lower.compareTo(term) > 0))
+                                                                 ? lower : term;
+            cur = (tenum.seekCeil(from) == TermsEnum.SeekStatus.END) ? null
+                                                                : tenum.term();
+            if (cur != null) {
+                stats.scanned++;
+                if ((upper != null) && (cur.compareTo(upper) >= 0)) {
+                    cur = null;   // saiu do prefixo
+                }
             }
+        }
 
-            tenum = terms.iterator();
+        @Override
+        public String field() {
+            return field;
+        }
 
-            eof = tenum.seekCeil(new BytesRef(term.trim()))
-                                                  == TermsEnum.SeekStatus.END;
-            cur = null;
+        @Override
+        public BytesRef term() {
+            return cur;
         }
 
-        void close() throws IOException {
-            reader.close();
+        @Override
+        public int ord() {
+            return -1;
         }
 
-        boolean hasNext() {
-            return !eof;
+        @Override
+        public int docFreq() throws IOException {
+            return tenum.docFreq();
         }
 
-        String next() throws IOException {
-            if (eof) {
+        @Override
+        public long totalTermFreq() throws IOException {
+            return tenum.totalTermFreq();
+        }
+
+        @Override
+        public void next() throws IOException {
+            if (cur == null) {
                 throw new IOException("end of iterator found");
             }
-            final String ret = tenum.term().utf8ToString();
-            cur = ret;
-            eof = (tenum.next() == null);
-
-            return ret;
+            cur = tenum.next();
+            if (cur != null) {
+                stats.scanned++;
+                if ((upper != null) && (cur.compareTo(upper) >= 0)) {
+                    cur = null;   // saiu do prefixo
+                }
+            }
         }
 
-        String current() throws IOException {
-            final String current;
-
-            if (cur == null) {
-                current = eof ? null : next();
-            } else {
-                current = cur;
+        @Override
+        public void close(final QueryStats qstats) {
+            qstats.add(field, stats);
+            cur = null;
+            if (gen != null) {
+                gen.returnTermsEnum(field, tenum);
             }
+        }
+    }
+
+    /**
+     * Um termo lido pelo RevTum e as suas frequencias
+     */
+    private static class FreqTerm {
+        final BytesRef term;
+        final int docFreq;
+        final long totalTermFreq;
 
-            return current;
+        FreqTerm(final BytesRef term,
+                 final int docFreq,
+                 final long totalTermFreq) {
+            this.term = term;
+            this.docFreq = docFreq;
+            this.totalTermFreq = totalTermFreq;
         }
     }
 
-    private class NextTerms {
-        final Set<String> fields;
-        final Set<Tum> lte;
-        String cur;
-        boolean first;
-        final String max;
+    /**
+     * Percorre os termos de um campo em ordem decrescente a partir de um termo
+     * inicial (inclusive).
+     * O TermsEnum do Lucene so anda para frente, entao os termos previos sao
+     * lidos em lotes: procura-se, por bissecao no espaco de bytes, um ponto
+     * abaixo do limite superior cujo intervalo ate ele contenha poucos termos,
+     * e esse intervalo e lido para frente uma unica vez. Nenhuma leitura e
+     * feita abaixo de 'floor', o que limita a busca aos termos de um prefixo.
+     * Como o TermsEnum ja avancou quando um termo do lote e retornado, o
+     * docFreq e o totalTermFreq sao lidos (se 'freqs') durante a leitura.
+     * Depois do limite de tempo da consulta, o lote termina no primeiro
+     * intervalo lido que tiver algum termo, ainda que menor que 'batchSize'.
+     */
+    private class RevTum implements TermCursor {
+        private static final int MAXSCAN = 256;     // max terms read per probe
+        private static final int MAXBISECT = 64;    // max bisection rounds
+
+        private final IndexHandle.Generation gen;
+        private final String field;
+        private final TermsEnum tenum;
+        private final int batchSize;
+        private final boolean freqs;
+        private final BytesRef floor;               // limite inferior inclusivo
+        private final ArrayDeque<FreqTerm> batch;   // ordem decrescente
+        private final QueryStats stats;
+        private final long deadline;                // limite da consulta ou 0
+        private BytesRef top;                       // limite superior exclusivo
 
-        NextTerms(final String sdir,
-                  final Set<String> fields,
-                  final String term) throws IOException {
-            assert sdir != null;
-            assert fields != null;
+        /**
+         * @param gen geracao para a qual 'tenum' sera devolvido no 'close()'
+         * ou null se 'tenum' nao foi emprestado
+         * @param field nome do campo
+         * @param tenum iterador dos termos do campo
+         * @param term termo inicial (inclusive)
+         * @param batchSize numero de termos lidos de cada vez
+         * @param freqs se true, guarda o docFreq e o totalTermFreq dos termos
+         * @param lower menor termo a ser percorrido (inclusive) ou null
+         * @param upper limite superior (exclusivo) dos termos ou null
+         * @param deadline limite (System.nanoTime()) da consulta ou 0
+         */
+        RevTum(final IndexHandle.Generation gen,
+               final String field,
+               final TermsEnum tenum,
+               final BytesRef term,
+               final int batchSize,
+               final boolean freqs,
+               final BytesRef lower,
+               final BytesRef upper,
+               final long deadline) throws IOException {
+            assert field != null;
+            assert tenum != null;
             assert term != null;
+            assert batchSize > 0;
 
-            this.fields = fields;
-            lte = new HashSet<>();
-            cur = term.trim();
-            first = true;
-            //max = new Character(Character.MAX_VALUE).toString();
-            max = Character.valueOf(Character.MAX_VALUE).toString();
+            this.gen = gen;
+            this.field = field;
+            this.tenum = tenum;
+            this.batchSize = batchSize;
+            this.freqs = freqs;
+            this.floor = (lower == null) ? new BytesRef() : lower;
+            this.batch = new ArrayDeque<>();
+            this.stats = new QueryStats();
+            this.deadline = deadline;
 
-            for (String fld : fields) {
-                lte.add(new Tum(sdir, fld, term));
+            final byte[] bytes = new byte[term.length + 1];
+            System.arraycopy(term.bytes, term.offset, bytes, 0, term.length);
+            final BytesRef after = new BytesRef(bytes); // menor maior que 'term'
+            this.top = ((upper != null) && (upper.compareTo(after) < 0))
+                                                               ? upper : after;
+            if (top.compareTo(floor) > 0) {
+                fill();
+            } else {
+                top = null;   // 'term' esta abaixo do prefixo
             }
         }
 
-        void close() throws IOException {
-            for (Tum tum : lte) {
-                tum.close();
-            }
+        @Override
+        public String field() {
+            return field;
         }
 
-        boolean hasNext() {
-            boolean ret = false;
+        @Override
+        public BytesRef term() {
+            final FreqTerm first = batch.peekFirst();
 
-            for (Tum tum : lte) {
-                if (tum.hasNext()) {
-                    ret = true;
-                    break;
-                }
+            return (first == null) ? null : first.term;
+        }
+
+        @Override
+        public int ord() {
+            return -1;
+        }
+
+        @Override
+        public int docFreq() {
+            return batch.getFirst().docFreq;
+        }
+
+        @Override
+        public long totalTermFreq() {
+            return batch.getFirst().totalTermFreq;
+        }
+
+        @Override
+        public void next() throws IOException {
+            if (batch.pollFirst() == null) {
+                throw new IOException("end of iterator found");
             }
+            if (batch.isEmpty() && (top != null)) {
+                fill();
+            }
+        }
 
-            return ret;
+        @Override
+        public void close(final QueryStats qstats) {
+            qstats.add(field, stats);
+            batch.clear();
+            top = null;
+            if (gen != null) {
+                gen.returnTermsEnum(field, tenum);
+            }
         }
 
-        String next() throws IOException {
-            String min = max;
+        /**
+         * Le o proximo lote de ate 'batchSize' termos menores que 'top'.
+         */
+        private void fill() throws IOException {
+            final ArrayDeque<FreqTerm> found = new ArrayDeque<>(); // crescente
+            final ArrayDeque<FreqTerm> ring = new ArrayDeque<>();
+            BytesRef lo = null;  // [lo, hi) tem termos suficientes
+            BytesRef hi = top;   // limite superior exclusivo ainda nao lido
+            int rounds = 0;
 
-            for (Tum tum : lte) {
-                String tcur = tum.current();
+            while (true) {
+                final int need = batchSize - found.size();
+                final BytesRef from;
+                final int limit;
 
-                while (true) {
-                    if (tcur == null) {
-                        break;
-                    } else if (first && tcur.compareTo(cur) >= 0) {
+                if (lo == null) {             // tenta prefixos cada vez menores
+                    final BytesRef shorter = new BytesRef(hi.bytes, hi.offset,
+                                                     Math.max(0, hi.length - 1));
+                    from = (shorter.compareTo(floor) < 0) ? floor : shorter;
+                    limit = Math.max(MAXSCAN, need);
+                } else {
+                    final BytesRef mid = midpoint(lo, hi);
+                    if ((++rounds > MAXBISECT) || (mid.compareTo(lo) <= 0)) {
+                        from = lo;
+                        limit = Integer.MAX_VALUE;
+                        stats.fallbacks++;
+                    } else {
+                        from = mid;
+                        stats.rounds++;
+                        limit = Math.max(MAXSCAN, need);
+                    }
+                }
+                ring.clear();
+                if (scan(from, hi, ring, need, limit)) {
+                    while (!ring.isEmpty()) {
+                        found.addFirst(ring.pollLast());
+                    }
+                    if (found.size() >= batchSize) {
+                        // 'ring' pode ter descartado termos menores
+                        top = found.peekFirst().term;
                         break;
-                    } else if (tcur.compareTo(cur) > 0) {
+                    }
+                    if (from.bytesEquals(floor)) {   // nao ha termos menores
+                        top = null;
                         break;
-                    } else if (!tum.hasNext()) {
+                    }
+                    if (!found.isEmpty() && expired(deadline)) {
+                        top = found.peekFirst().term;   // lote menor
                         break;
                     }
-                    tcur = tum.next();
+                    hi = from;
+                } else {
+                    lo = from;   // [from, hi) tem mais que 'need' termos
                 }
-                if ((tcur != null) && (tcur.compareTo(min) < 0)) {
-                    min = tcur;
+            }
+            while (!found.isEmpty()) {
+                batch.addLast(found.pollLast());
+            }
+        }
+
+        /**
+         * Le os termos do intervalo [from, to) guardando os ultimos 'keep'.
+         * @return false se o intervalo tiver mais que 'limit' termos
+         */
+        private boolean scan(final BytesRef from,
+                             final BytesRef to,
+                             final ArrayDeque<FreqTerm> ring,
+                             final int keep,
+                             final int limit) throws IOException {
+            stats.seeks++;
+            if (tenum.seekCeil(from) == TermsEnum.SeekStatus.END) {
+                return true;
+            }
+            BytesRef term = tenum.term();
+            int total = 0;
+
+            while ((term != null) && (term.compareTo(to) < 0)) {
+                stats.scanned++;
+                if (++total > limit) {
+                    return false;
                 }
+                if (ring.size() == keep) {
+                    ring.pollFirst();
+                }
+                ring.addLast(freqs
+                    ? new FreqTerm(BytesRef.deepCopyOf(term), tenum.docFreq(),
+                                                        tenum.totalTermFreq())
+                    : new FreqTerm(BytesRef.deepCopyOf(term), 0, 0));
+                term = tenum.next();
             }
-            cur = min.equals(max) ? null : min;
-            first = false;
-//System.out.println("==> " + cur);
-            return cur;
+            return true;
         }
     }
 
-    private final Map<String,String> info;
-    private final int maxSize;
-    private HashMap<String,IndexReader> readers;
+    /**
+     * Percorre os termos de um TermDictionary em qualquer direcao a partir de
+     * um termo inicial (inclusive), sem nenhum acesso ao indice. Os termos de
+     * um prefixo ocupam o intervalo de posicoes [low, high).
+     */
+    private static class DictTum implements TermCursor {
+        private final TermDictionary dict;
+        private final BytesRef[] buffer;
+        private final int step;
+        private final int low;
+        private final int high;
+        private int ord;
+        private int block;
+        private long scanned;
 
-    public Map<String,String> getInfo() {
-        return new HashMap<>(info);
-    }
+        /**
+         * @param dict dicionario do campo
+         * @param term termo inicial (inclusive)
+         * @param ascending direcao do cursor
+         * @param lower menor termo a ser percorrido (inclusive) ou null
+         * @param upper limite superior (exclusivo) dos termos ou null
+         */
+        DictTum(final TermDictionary dict,
+                final BytesRef term,
+                final boolean ascending,
+                final BytesRef lower,
+                final BytesRef upper) {
+            this(dict, ascending ? dict.ceil(term) : dict.floor(term),
+                                                ascending, lower, upper);
+        }
 
-    public int getMaxSize() {
-        return maxSize;
-    }
+        /**
+         * @param dict dicionario do campo
+         * @param ord posicao do termo inicial
+         * @param ascending direcao do cursor
+         * @param lower menor termo a ser percorrido (inclusive) ou null
+         * @param upper limite superior (exclusivo) dos termos ou null
+         */
+        DictTum(final TermDictionary dict,
+                final int ord,
+                final boolean ascending,
+                final BytesRef lower,
+                final BytesRef upper) {
+            assert dict != null;
 
-    public Set<String> getIndexes() {
-        return new HashSet<>(info.keySet());
-    }
+            this.dict = dict;
+            this.buffer = new BytesRef[TermDictionary.BLOCK_SIZE];
+            this.step = ascending ? 1 : -1;
+            this.low = (lower == null) ? 0 : dict.ceil(lower);
+            this.high = (upper == null) ? dict.size() : dict.ceil(upper);
+            this.ord = ascending ? Math.max(ord, low) : Math.min(ord, high - 1);
+            this.block = -1;
+        }
 
-    /**
-     * Construtor da classe
-     * @param info conjunto de  nomes e caminhos dos indices Lucene a
-     * serem utilizados
-     * @param maxSize numero de termos previos a serem retornados
-     * @throws IOException
-     */
-    public PreviousTerm(final Map<String,String> info,
-                        final int maxSize) throws IOException {
-        if (info == null) {
-            throw new NullPointerException("fields");
+        @Override
+        public String field() {
+            return dict.getField();
         }
-        if (maxSize <= 0) {
-            throw new IllegalArgumentException("maxSize <= 0");
+
+        @Override
+        public int ord() {
+            return ((ord < low) || (ord >= high)) ? -1 : ord;
         }
 
-        this.info = info;
-        this.maxSize = maxSize;
-        this.readers = new HashMap<>();
+        @Override
+        public BytesRef term() {
+            if ((ord < low) || (ord >= high)) {
+                return null;
+            }
+            final int blk = ord / TermDictionary.BLOCK_SIZE;
+            if (blk != block) {
+                dict.readBlock(blk, buffer);
+                block = blk;
+            }
+            return buffer[ord % TermDictionary.BLOCK_SIZE];
+        }
 
-        for (Map.Entry<String,String> entry : info.entrySet()) {
-            final Directory sdir = FSDirectory.open(
-                                           new File(entry.getValue()).toPath());
-            final IndexReader reader = DirectoryReader.open(sdir);
-            final String key = entry.getKey();
+        @Override
+        public int docFreq() {
+            return dict.docFreq(ord);
+        }
 
-            this.readers.put(key, reader);
+        @Override
+        public long totalTermFreq() {
+            return dict.totalTermFreq(ord);
         }
-    }
 
-    /**
-     * Fecha os recursos abertos
-     * @throws IOException
-     */
-    public void close() throws IOException {
-        for (IndexReader reader: readers.values()) {
-            reader.close();
+        @Override
+        public void next() throws IOException {
+            if ((ord < low) || (ord >= high)) {
+                throw new IOException("end of iterator found");
+            }
+            ord += step;
+            scanned++;
+        }
+
+        @Override
+        public void close(final QueryStats qstats) {
+            final QueryStats stats = new QueryStats();
+
+            stats.scanned = scanned;
+            qstats.add(dict.getField(), stats);
         }
     }
 
     /**
-     * Encontra os termos previos de um indice em relacao ao termo inicial
-     * @param sdir nome do indice lucene a ser utilizado
-     * @param init termo inicial em relacao ao qual os termos previos serao encontrados
-     * @param fields indica a quais campos os termos devem pertencer
-     * @param maxSize tamanho maximo da lista de termos a ser retornada
-     * @return lista de termos previos em relacao ao termo inicial
-     * @throws IOException
+     * Percorre os termos de um campo na ordem da sua visao colada
+     * (CollatedDictionary), em qualquer direcao e sem nenhum acesso ao indice.
+     * 'ord()' e a posicao na visao colada e os termos de um prefixo ocupam o
+     * intervalo de posicoes [low, high).
      */
-    public List<String> getPreviousTerms(final String sdir,
-                                         final String init,
-                                         final Set<String> fields,
-                                         final int maxSize) throws IOException {
-        if ((sdir == null) || sdir.isEmpty()) {
-            throw new IOException("empty 'sdir' parameter");
+    private static class CollTum implements TermCursor {
+        private final CollatedDictionary coll;
+        private final TermDictionary dict;
+        private final BytesRef key;
+        private final int step;
+        private final int low;
+        private final int high;
+        private int pos;
+        private int termOrd;   // posicao no TermDictionary de 'term'
+        private BytesRef term;
+        private long scanned;
+
+        /**
+         * @param coll visao colada do campo
+         * @param pos posicao do termo inicial na visao colada
+         * @param ascending direcao do cursor
+         * @param low primeira posicao a ser percorrida (inclusive)
+         * @param high ultima posicao a ser percorrida (exclusive)
+         */
+        CollTum(final CollatedDictionary coll,
+                final int pos,
+                final boolean ascending,
+                final int low,
+                final int high) {
+            assert coll != null;
+            assert low >= 0;
+            assert high <= coll.size();
+
+            this.coll = coll;
+            this.dict = coll.getTerms();
+            this.key = new BytesRef();
+            this.step = ascending ? 1 : -1;
+            this.low = low;
+            this.high = high;
+            this.pos = ascending ? Math.max(pos, low) : Math.min(pos, high - 1);
+            this.termOrd = -1;
         }
-        if ((init == null) || init.isEmpty()) {
-            throw new IOException("empty 'init' parameter");
+
+        @Override
+        public String field() {
+            return coll.getField();
         }
-        if ((fields == null) || fields.isEmpty()) {
-            throw new IOException("empty 'fields' parameter");
+
+        @Override
+        public int ord() {
+            return ((pos < low) || (pos >= high)) ? -1 : pos;
         }
-        if (maxSize <= 0) {
-            throw new IOException("invalid maxSize [" + maxSize + "]");
+
+        @Override
+        public BytesRef term() {
+            if ((pos < low) || (pos >= high)) {
+                return null;
+            }
+            // posicoes vizinhas na ordem colada estao em blocos diferentes do
+            // dicionario: le somente o termo, e nao o bloco inteiro
+            final int ord = coll.ord(pos);
+            if (ord != termOrd) {
+                term = dict.readTerm(ord, term);
+                termOrd = ord;
+            }
+            return term;
         }
 
-        final List<String> ret = new ArrayList<>();
-        int mSize = maxSize;
-        String initX = init;
+        @Override
+        public BytesRef sortKey() {
+            return ((pos < low) || (pos >= high)) ? null : coll.key(pos, key);
+        }
 
-        final NextTerms nterms = new NextTerms(sdir, fields, initX);
-        if (nterms.hasNext() && nterms.next().equals(initX)) {
-            ret.add(initX);
-            mSize--;
+        @Override
+        public int docFreq() {
+            return dict.docFreq(coll.ord(pos));
         }
-        //nterms.close();
 
-        for (int tot = 0; tot < mSize; tot++) {
-            final String prev = getPreviousTerm(sdir, initX, fields);
+        @Override
+        public long totalTermFreq() {
+            return dict.totalTermFreq(coll.ord(pos));
+        }
 
-            if (prev == null) {
-                break;
+        @Override
+        public void next() throws IOException {
+            if ((pos < low) || (pos >= high)) {
+                throw new IOException("end of iterator found");
             }
-            ret.add(prev);
-            initX = prev;
+            pos += step;
+            scanned++;
         }
 
-        return ret;
+        @Override
+        public void close(final QueryStats qstats) {
+            final QueryStats stats = new QueryStats();
+
+            stats.scanned = scanned;
+            qstats.add(coll.getField(), stats);
+        }
     }
 
     /**
-     *
-     * @param index nome do diretorio onde esta o indice Lucene a ser lido
-     * @return um objeto IndexReader em cache ou cria um novo
+     * Junta os termos de varios cursores usando uma fila de prioridade
+     * ordenada pelos bytes do termo corrente de cada cursor. Termos repetidos
+     * em mais de um cursor (campos diferentes ou segmentos diferentes do mesmo
+     * campo) sao retornados uma unica vez e somente os termos retornados sao
+     * convertidos para String.
+     * Se 'freqs', o docFreq e o totalTermFreq de um termo sao somados em
+     * todos os cursores que o contem, e os termos cujo docFreq somado for
+     * menor que 'minDocFreq' sao pulados durante a juncao.
+     * Na ordem colada, a fila e ordenada pela chave de ordenacao e depois
+     * pelos bytes do termo corrente.
      */
-    private IndexReader getIndexReader(final String index) throws IOException {
-        assert index != null;
+    private class TermMerger {
+        final Comparator<TermCursor> order;
+        final PriorityQueue<TermCursor> queue;
+        final List<TermCursor> same;   // cursores no termo a ser retornado
+        final boolean freqs;
+        final int minDocFreq;
+        final long deadline;   // limite da consulta ou 0
+        long docFreq;
+        long totalTermFreq;
+        boolean expired;       // hasNext() parou no limite de tempo
+        boolean moved;         // algum cursor ja avancou
 
-        final IndexReader reader = readers.get(index);
-        if (reader == null) {
-            throw new IOException("invalid index name: " + index);
-        }
+        TermMerger(final List<TermCursor> cursors,
+                   final boolean ascending,
+                   final boolean freqs,
+                   final int minDocFreq,
+                   final boolean collated,
+                   final long deadline) {
+            assert cursors != null;
 
-        return reader;
-    }
+            final Comparator<TermCursor> bytes =
+                                       (c1, c2) -> c1.term().compareTo(c2.term());
+            final Comparator<TermCursor> cmp = collated ? Comparator.comparing(
+                          TermCursor::sortKey).thenComparing(bytes) : bytes;
 
-    /**
-     * Encontra o termo previo em relacao ao termo inicial
-     * @param sdir nome do indice lucene a ser utilizado
-     * @param init termo inicial em relacao ao qual o termo previo sera encontrado
-     * @param fields indica a quais campos os termo deve pertencer
-     * @return o termo previo em relacao ao termo inicial
-     * @throws IOException
-     */
-    private String getPreviousTerm(final String sdir,
-                                   final String init,
-                                   final Set<String> fields)
-                                                            throws IOException {
-        assert sdir != null;
-        assert fields != null;
-        assert (init != null) && (!init.isEmpty());
-
-        final int RANGE = 10;             // next terms max buffer
-        final int MAXTOTFIRSTPOS = 210;   // max tries to guess the previous world
-
-        String initX = init;
-        String lowerBound = null;
-        String ret;
-        int totFirstPos = 0;
-        int totGetNext = 0;
-
-        while (true) {
-            final String previousWord = guessPreviousWord(initX, lowerBound);
-            if (previousWord == null) {
-                ret = null;
-                break;
-            }
-            final List<String> nextWords =
-                                getNextTerms(sdir, previousWord, fields, RANGE);
-            if (nextWords.isEmpty()) {
-                if (totGetNext++ > MAXTOTFIRSTPOS) {
-                    ret = lowerBound;
+            order = ascending ? cmp : cmp.reversed();
+            queue = new PriorityQueue<>(Math.max(1, cursors.size()), order);
+            same = new ArrayList<>(cursors.size());
+            this.freqs = freqs;
+            this.minDocFreq = minDocFreq;
+            this.deadline = deadline;
+            for (TermCursor cursor : cursors) {
+                if (cursor.term() != null) {
+                    queue.add(cursor);
+                }
+            }
+        }
+
+        /**
+         * Separa em 'same' os cursores do proximo termo a ser retornado. O
+         * limite de tempo e verificado antes de cada termo, inclusive dos
+         * descartados por 'minDocFreq', a partir do primeiro avanco dos
+         * cursores, para que cada pagina avance a listagem; ao atingi-lo
+         * 'expired' fica true e os cursores continuam na fila, prontos para
+         * 'positions()'.
+         * @return false se nao houver mais termos ou se o limite de tempo
+         * foi atingido
+         */
+        boolean hasNext() throws IOException {
+            while (same.isEmpty() && !queue.isEmpty()) {
+                if (expired || (moved && expired(deadline))) {
+                    expired = true;
                     break;
                 }
-                initX = previousWord;
-            } else {
-                final String last = nextWords.get(nextWords.size() - 1);
-                if (last.compareTo(initX) < 0) {
-                    lowerBound = last;              // init esta em um bloco adiante
-                } else {
-                    int idx = 0;
-                    for (String word : nextWords) {     // init esta no bloco corrente
-                        if (word.compareTo(init) >= 0) {
-                            break;
-                        }
-                        idx++;
+                final TermCursor first = queue.poll();
+                final BytesRef term = first.term();
+
+                same.add(first);
+                while (!queue.isEmpty() &&
+                       queue.peek().term().bytesEquals(term)) {
+                    same.add(queue.poll());
+                }
+                if (freqs) {
+                    docFreq = 0;
+                    totalTermFreq = 0;
+                    for (TermCursor cursor : same) {
+                        docFreq += cursor.docFreq();
+                        totalTermFreq += cursor.totalTermFreq();
                     }
-                    if (idx == 0) {                    // init esta na primeira posicao
-                        if (totFirstPos++ > MAXTOTFIRSTPOS) { // stop guessing previous key
-                            ret = lowerBound;
-                            break;
-                        }
-                        initX = previousWord;
-                    } else {
-                        ret = nextWords.get(idx - 1);  // achou termo previo
-                        break;
+                    if (docFreq < minDocFreq) {
+                        advance();
                     }
                 }
             }
+            return !same.isEmpty();
         }
-        return ret;
-    }
 
-    //==========================================================================
+        /**
+         * @return o proximo termo ou null se nao houver mais termos. Se
+         * 'freqs', as suas frequencias ficam em 'docFreq' e 'totalTermFreq'
+         */
+        String next() throws IOException {
+            if (!hasNext()) {
+                return null;
+            }
+            final String ret = same.get(0).term().utf8ToString();
 
-    /**
-     * Gera uma string que estaria a uma distância média entre as strings
-     * 'current' e 'lastGuess'.
-     * @param current
-     * @param lastGuess
-     * @return uma string anterior menor que a 'current' mas maior que 'lastGuess'
-     */
-    private String guessPreviousWord(final String current,
-                                     final String lastGuess) {
-        assert current != null;
-        assert (lastGuess == null) ? true : (current.compareTo(lastGuess) > 0)
-                                                    : current + ">" + lastGuess;
-
-        final String ret;
-        final int clen = current.length();
-
-        if (lastGuess == null) {
-            if (clen == 1) {
-                final char first = current.charAt(0);
-                final char med = (char)(first/2);
-                ret = "" + ((first == med)
-                                  ? first + (char)(Character.MAX_VALUE / 2)
-                                  : med);
-            } else {
-                ret = current.substring(0, clen - 1);
+            advance();
+            return ret;
+        }
+
+        private void advance() throws IOException {
+            moved = true;
+            for (TermCursor cursor : same) {
+                cursor.next();
+                if (cursor.term() != null) {
+                    queue.add(cursor);
+                }
             }
-        } else {
-            final StringBuilder builder = new StringBuilder();
-            final int llen = lastGuess.length();
-            final int max = Math.max(clen, llen);
-            boolean addLetter = false;
-
-            for (int idx = 0; idx < max; idx++) {
-                if (idx < clen) {
-                    final char cch = current.charAt(idx);
-                    if (idx < llen) {
-                        final char lch = lastGuess.charAt(idx);
-                        if (addLetter) {
-                            final char med =
-                                       (char) ((Character.MAX_VALUE - lch) / 2);
-                            if (med > 0) {
-                                builder.append((char)(lch + med));
-                                addLetter = false;
-                                break;
-                            }
-                        } else if (cch == lch) {
-                            builder.append(cch);
-                        } else {
-                            final char med = (char)((lch + cch) / 2);
-                            if (med == lch) {
-                                builder.append(lch);
-                                addLetter = true;
-                            } else {
-                                builder.append(med);
-                                addLetter = false;
-                                break;
-                            }
-                        }
-                    } else {
-                        final char med = (char)(cch / 2);
-                        if (med > 0) {
-                            builder.append(med);
-                            addLetter = false;
-                            break;
-                        } else {
-                            builder.append(cch);
-                            addLetter = true;
-                        }
-                    }
-                } else {
-                    final char lch = lastGuess.charAt(idx);
-                    final char med = (char) ((Character.MAX_VALUE - lch) / 2);
+            same.clear();
+        }
 
-                    if (med > 0) {
-                        builder.append((char)(lch + med));
-                        addLetter = false;
-                        break;
-                    } else {
-                        builder.append(lch);
-                        addLetter = true;
-                    }
+        /**
+         * Guarda o proximo termo (e sua posicao) de cada campo nao esgotado
+         * @param cursors cursores de um mesmo indice, entre os recebidos pelo
+         * construtor. Os que nao estao em 'same' nem em 'queue' estao
+         * esgotados
+         */
+        void positions(final Collection<TermCursor> cursors,
+                       final Map<String,BytesRef> terms,
+                       final Map<String,Integer> ords) {
+            final Map<String,TermCursor> first = new HashMap<>();
+
+            for (TermCursor cursor : cursors) {
+                if (cursor.term() != null) {
+                    position(cursor, first);
                 }
             }
-            if (addLetter) {
-                final char med = (char)(Character.MAX_VALUE / 2);
-                builder.append(med);
+            for (TermCursor cursor : first.values()) {
+                terms.put(cursor.field(), BytesRef.deepCopyOf(cursor.term()));
+                if (cursor.ord() >= 0) {
+                    ords.put(cursor.field(), cursor.ord());
+                }
             }
+        }
 
-            ret = builder.toString();
+        private void position(final TermCursor cursor,
+                              final Map<String,TermCursor> first) {
+            final TermCursor cur = first.get(cursor.field());
+            if ((cur == null) || (order.compare(cursor, cur) < 0)) {
+                first.put(cursor.field(), cursor);
+            }   // senao um segmento do campo esta antes deste
         }
-        return ret;
     }
 
-    //==========================================================================
     /**
-     *  Retorna os proximos 'maxSize' termos do indice a partir de 'init'
-     * @param sdir nome do indice lucene a ser utilizado
-     * @param init termo inicial a partir do qual os outros serao retornados.
-     * Pode ser null ou string vazia
-     * @param fields indica a quais campos os termos devem pertencer
-     * @param maxSize tamanho maximo da lista de termos a ser retornada
-     * @return lista ordenada de termos que são os próximos termos a partir de 'init'
-     * @throws java.io.IOException
+     * Recebe os termos de uma pagina a medida que sao encontrados.
      */
-    public List<String> getNextTerms(final String sdir,
-                                     final String init,
-                                     final Set<String> fields,
-                                     final int maxSize) throws IOException {
-        if ((sdir == null) || sdir.isEmpty()) {
-            throw new IOException("invalid sdir");
+    public interface TermSink {
+        /**
+         * Chamado uma unica vez, antes do primeiro termo, depois que a
+         * consulta foi validada e os cursores foram posicionados
+         * @throws IOException
+         */
+        default void begin() throws IOException {
         }
-        if ((init == null) || init.isEmpty()) {
-            throw new IOException("invalid init");
+
+        /**
+         * @param term proximo termo da pagina
+         * @throws IOException
+         */
+        void term(String term) throws IOException;
+
+        /**
+         * Chamado no lugar de 'term(String)' quando a consulta pedir as
+         * frequencias dos termos (QueryOptions.isFreqs())
+         * @param term proximo termo da pagina
+         * @param docFreq numero de documentos que contem o termo, somado em
+         * todos os campos da consulta
+         * @param totalTermFreq numero de ocorrencias do termo, somado em todos
+         * os campos da consulta
+         * @throws IOException
+         */
+        default void term(final String term,
+                          final long docFreq,
+                          final long totalTermFreq) throws IOException {
+            term(term);
         }
-        if ((fields == null) || fields.isEmpty()) {
-            throw new IOException("invalid fields");
+    }
+
+    /**
+     * Guarda os termos (e suas frequencias) de uma pagina, repassando-os para
+     * outro TermSink se houver. Se receber mais que 'max' termos, deixa de
+     * guarda-los e a pagina nao e criada, o que permite colocar no cache
+     * somente as paginas pequenas.
+     */
+    private static class PageSink implements TermSink {
+        static final int MAXCACHED = 1000;   // maior pagina colocada no cache
+
+        private final TermSink sink;   // null se nao houver
+        private final int max;
+        private List<String> terms;    // null se a pagina for grande demais
+        private long[] docFreqs;       // null se nao houver frequencias
+        private long[] totalTermFreqs;
+
+        PageSink(final TermSink sink,
+                 final int max) {
+            assert max > 0;
+
+            this.sink = sink;
+            this.max = max;
+            this.terms = new ArrayList<>();
         }
-        if (maxSize <= 0) {
-            throw new IOException("invalid maxSize");
+
+        @Override
+        public void begin() throws IOException {
+            if (sink != null) {
+                sink.begin();
+            }
         }
 
-        final List<String> ret = new ArrayList<>();
-        final NextTerms nterms = new NextTerms(sdir, fields, init);
-        int total = 0;
+        @Override
+        public void term(final String term) throws IOException {
+            if (terms != null) {
+                if (terms.size() < max) {
+                    terms.add(term);
+                } else {
+                    terms = null;
+                    docFreqs = null;
+                    totalTermFreqs = null;
+                }
+            }
+            if (sink != null) {
+                sink.term(term);
+            }
+        }
 
-        while (nterms.hasNext()) {
-            if (++total > maxSize) {
-                break;
+        @Override
+        public void term(final String term,
+                         final long docFreq,
+                         final long totalTermFreq) throws IOException {
+            if (terms != null) {
+                if (terms.size() < max) {
+                    final int pos = terms.size();
+
+                    terms.add(term);
+                    docFreqs = ArrayUtil.grow((docFreqs == null) ? new long[16]
+                                                           : docFreqs, pos + 1);
+                    totalTermFreqs = ArrayUtil.grow((totalTermFreqs == null)
+                                     ? new long[16] : totalTermFreqs, pos + 1);
+                    docFreqs[pos] = docFreq;
+                    totalTermFreqs[pos] = totalTermFreq;
+                } else {
+                    terms = null;
+                    docFreqs = null;
+                    totalTermFreqs = null;
+                }
             }
-            final String next = nterms.next();
-            if (next != null) {
-                ret.add(next);
+            if (sink != null) {
+                sink.term(term, docFreq, totalTermFreq);
             }
         }
-        //nterms.close();
 
-        return ret;
+        /**
+         * @param cont estado para continuar a listagem ou null
+         * @param freqs true se a pagina deve ter as frequencias dos termos
+         * @return a pagina com os termos recebidos ou null se foram mais que
+         * 'max'
+         */
+        Page toPage(final Continuation cont,
+                    final boolean freqs) {
+            if (terms == null) {
+                return null;
+            }
+            final int size = terms.size();
+
+            return new Page(terms,
+                   freqs ? copyOf(docFreqs, size) : null,
+                   freqs ? copyOf(totalTermFreqs, size) : null, cont);
+        }
+
+        private static long[] copyOf(final long[] array,
+                                     final int size) {
+            return (array == null) ? new long[size]
+                                   : ArrayUtil.copyOfSubArray(array, 0, size);
+        }
+    }
+
+    /**
+     * Uma pagina de termos e o estado para obter a pagina seguinte.
+     */
+    public static class Page {
+        private final List<String> terms;
+        private final long[] docFreqs;         // null se nao houver
+        private final long[] totalTermFreqs;   // null se nao houver
+        private final Continuation continuation;
+
+        Page(final List<String> terms,
+             final long[] docFreqs,
+             final long[] totalTermFreqs,
+             final Continuation continuation) {
+            assert terms != null;
+            assert (docFreqs == null) || (docFreqs.length == terms.size());
+            assert (totalTermFreqs == null) ||
+                   (totalTermFreqs.length == terms.size());
+
+            this.terms = Collections.unmodifiableList(terms);
+            this.docFreqs = docFreqs;
+            this.totalTermFreqs = totalTermFreqs;
+            this.continuation = continuation;
+        }
+
+        public List<String> getTerms() {
+            return terms;
+        }
+
+        /**
+         * @return true se a pagina tiver as frequencias dos termos
+         */
+        public boolean hasFreqs() {
+            return docFreqs != null;
+        }
+
+        /**
+         * @param pos posicao do termo na pagina
+         * @return numero de documentos que contem o termo, somado em todos os
+         * campos da consulta
+         */
+        public long getDocFreq(final int pos) {
+            if (docFreqs == null) {
+                throw new IllegalStateException("page without frequencies");
+            }
+            return docFreqs[pos];
+        }
+
+        /**
+         * @param pos posicao do termo na pagina
+         * @return numero de ocorrencias do termo, somado em todos os campos
+         * da consulta
+         */
+        public long getTotalTermFreq(final int pos) {
+            if (totalTermFreqs == null) {
+                throw new IllegalStateException("page without frequencies");
+            }
+            return totalTermFreqs[pos];
+        }
+
+        /**
+         * @return o estado para continuar a listagem ou null se nao houver
+         * mais termos
+         */
+        public Continuation getContinuation() {
+            return continuation;
+        }
+    }
+
+    /**
+     * Cria os cursores dos campos. Usa o TermDictionary do campo, se houver
+     * e se tiver as frequencias que a consulta precisar.
+     * Nos indices com pelo menos 'minSegments' segmentos e com o modo
+     * paralelo ligado, cria um cursor por segmento de cada campo e os
+     * posiciona concorrentemente no pool 'parallel'.
+     * @param gen geracao do indice a ser utilizada
+     * @param terms termo inicial (inclusive) de cada campo
+     * @param ords posicao do termo inicial no TermDictionary de cada campo
+     * @param ascending direcao dos cursores
+     * @param batchSize numero de termos previos lidos de cada vez
+     * @param options opcoes da consulta (frequencias, prefixo e ordem)
+     * @param resume true se 'terms' forem os termos seguintes de uma
+     * listagem (na ordem colada, posiciona exatamente neles e nao no primeiro
+     * termo com a mesma chave de ordenacao)
+     * @param stats contadores e limite de tempo da consulta
+     * @return os cursores dos campos
+     * @throws IOException
+     */
+    private List<TermCursor> openCursors(final IndexHandle.Generation gen,
+                                         final Map<String,BytesRef> terms,
+                                         final Map<String,Integer> ords,
+                                         final boolean ascending,
+                                         final int batchSize,
+                                         final QueryOptions options,
+                                         final boolean resume,
+                                         final QueryStats stats)
+                                                            throws IOException {
+        assert gen != null;
+        assert terms != null;
+        assert ords != null;
+        assert options != null;
+
+        final ForkJoinPool pool = parallel;
+        final boolean split = (pool != null) && !options.isCollated() &&
+                              (gen.getSegmentCount() >= minSegments);
+        final BytesRef lower = ((options.getPrefix() == null) ||
+                                options.isCollated()) ? null
+                                           : new BytesRef(options.getPrefix());
+        final BytesRef upper = (lower == null) ? null : prefixEnd(lower);
+        final boolean freqs = options.needsFreqs();
+        final long deadline = stats.deadline;
+        final List<TermCursor> cursors = new ArrayList<>();
+        final List<Callable<TermCursor>> tasks = new ArrayList<>();
+
+        try {
+            for (Map.Entry<String,BytesRef> entry : terms.entrySet()) {
+                final String field = entry.getKey();
+                final BytesRef term = entry.getValue();
+                final TermDictionary dict = gen.getDictionary(field);
+
+                if (options.isCollated()) {
+                    cursors.add(newCollTum(getRequiredCollated(gen, field),
+                                   term, ords.get(field), ascending,
+                                               options.getPrefix(), resume));
+                } else if ((dict != null) &&
+                           (dict.hasFreqs() || !options.needsFreqs())) {
+                    final Integer ord = ords.get(field);
+                    cursors.add(((ord != null) && (ord >= 0))
+                            ? new DictTum(dict, ord, ascending, lower, upper)
+                            : new DictTum(dict, term, ascending, lower, upper));
+                } else if (split) {
+                    for (Terms lterms : gen.getLeafTerms(field)) {
+                        tasks.add(() -> ascending
+                            ? new Tum(null, field, lterms.iterator(), term,
+                                                                 lower, upper)
+                            : new RevTum(null, field, lterms.iterator(), term,
+                                    batchSize, freqs, lower, upper, deadline));
+                    }
+                } else {
+                    final TermsEnum tenum = gen.borrowTermsEnum(field);
+                    cursors.add(ascending
+                            ? new Tum(gen, field, tenum, term, lower, upper)
+                            : new RevTum(gen, field, tenum, term, batchSize,
+                                              freqs, lower, upper, deadline));
+                }
+            }
+            if (!tasks.isEmpty()) {
+                position(pool, tasks, cursors);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (TermCursor cursor : cursors) {
+                cursor.close(stats);
+            }
+            throw ex;
+        }
+        return cursors;
+    }
+
+    /**
+     * Cria um cursor sobre a visao colada de um campo
+     * @param coll visao colada do campo
+     * @param term termo inicial
+     * @param ord posicao do termo inicial na visao colada ou null
+     * @param ascending direcao do cursor
+     * @param prefix prefixo dos termos ou null
+     * @param resume true para posicionar exatamente em 'term' e false para
+     * incluir todos os termos com a mesma chave de ordenacao que ele
+     * @return o cursor posicionado
+     */
+    private static CollTum newCollTum(final CollatedDictionary coll,
+                                      final BytesRef term,
+                                      final Integer ord,
+                                      final boolean ascending,
+                                      final String prefix,
+                                      final boolean resume) {
+        assert coll != null;
+        assert term != null;
+
+        int low = 0;
+        int high = coll.size();
+        if (prefix != null) {
+            // a chave de um prefixo tambem e prefixo das chaves dos termos
+            // que comecam com ele
+            final BytesRef pkey = new BytesRef(coll.key(prefix));
+            final BytesRef pend = prefixEnd(pkey);
+
+            low = coll.ceil(pkey.bytes);
+            high = (pend == null) ? high : coll.ceil(pend.bytes);
+        }
+        final int pos;
+        if ((ord != null) && (ord >= 0)) {
+            pos = ord;
+        } else {
+            final byte[] key = coll.key(term.utf8ToString());
+
+            if (resume) {
+                pos = ascending ? coll.ceil(key, term) : coll.floor(key, term);
+            } else {
+                pos = ascending ? coll.ceil(key) : coll.floor(key);
+            }
+        }
+        return new CollTum(coll, pos, ascending, low, high);
+    }
+
+    /**
+     * Executa concorrentemente as tarefas que criam e posicionam cursores
+     * @param pool pool onde as tarefas serao executadas ou null para
+     * executa-las em sequencia na thread atual, o que tambem e feito com as
+     * tarefas recusadas ou canceladas por um pool fechado
+     * @param tasks tarefas a serem executadas
+     * @param cursors lista que recebera os cursores criados pelas tarefas
+     * que terminaram, inclusive quando outra falhar
+     * @throws IOException se alguma tarefa falhar
+     */
+    private static <T> void position(final ForkJoinPool pool,
+                                     final List<Callable<T>> tasks,
+                                     final List<T> cursors) throws IOException {
+        assert tasks != null;
+        assert cursors != null;
+
+        if (pool == null) {
+            for (Callable<T> task : tasks) {
+                try {
+                    cursors.add(task.call());
+                } catch (IOException | RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+            return;
+        }
+        final List<ForkJoinTask<T>> futures = new ArrayList<>(tasks.size());
+
+        // 'setParallelism()' pode fechar o pool depois que a consulta o
+        // obteve: as tarefas que ele recusar ou cancelar sem executar sao
+        // executadas nesta thread
+        for (Callable<T> task : tasks) {
+            try {
+                futures.add(pool.submit(task));
+            } catch (RejectedExecutionException ex) {
+                futures.add(invokeLocally(task));
+            }
+        }
+        Throwable error = null;
+
+        for (int pos = 0; pos < futures.size(); pos++) {
+            ForkJoinTask<T> future = futures.get(pos);
+
+            future.quietlyJoin();
+            if (future.isCancelled()) {
+                future = invokeLocally(tasks.get(pos));
+            }
+            try {
+                cursors.add(future.get());
+            } catch (ExecutionException ex) {
+                error = (error == null) ? ex.getCause() : error;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                error = (error == null) ? ex : error;
+            }
+        }
+        if (error instanceof IOException) {
+            throw (IOException)error;
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    /**
+     * @return a tarefa executada na thread atual
+     */
+    private static <T> ForkJoinTask<T> invokeLocally(final Callable<T> task) {
+        assert task != null;
+
+        final ForkJoinTask<T> local = ForkJoinTask.adapt(task);
+
+        local.quietlyInvoke();
+        return local;
+    }
+
+    /**
+     * Entrega a 'sink' ate 'maxSize' termos dos cursores e os fecha. Se o
+     * limite de tempo da consulta ('stats.deadline') for atingido, para entre
+     * dois termos e marca a pagina como parcial ('stats.partial'), cujo
+     * estado continua a listagem a partir do primeiro termo nao entregue.
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     */
+    private Continuation collect(final IndexHandle.Generation gen,
+                                 final String sdir,
+                                 final Set<String> fields,
+                                 final boolean ascending,
+                                 final QueryOptions options,
+                                 final List<TermCursor> cursors,
+                                 final int maxSize,
+                                 final TermSink sink,
+                                 final QueryStats stats) throws IOException {
+        return collect(Collections.singletonList(gen),
+                       Collections.singletonList(sdir), fields, ascending,
+                       options, Collections.singletonList(cursors), maxSize,
+                                                                  sink, stats);
+    }
+
+    /**
+     * Igual ao 'collect()' de um unico indice, juntando os cursores de varios
+     * indices numa unica lista ordenada e sem termos repetidos. O estado
+     * retornado tem uma parte por indice (Continuation.getParts()).
+     * @param gens geracao de cada indice
+     * @param sdirs nome de cada indice
+     * @param cursors cursores de cada indice
+     */
+    private Continuation collect(final List<IndexHandle.Generation> gens,
+                                 final List<String> sdirs,
+                                 final Set<String> fields,
+                                 final boolean ascending,
+                                 final QueryOptions options,
+                                 final List<List<TermCursor>> cursors,
+                                 final int maxSize,
+                                 final TermSink sink,
+                                 final QueryStats stats) throws IOException {
+        assert gens != null;
+        assert sdirs != null;
+        assert fields != null;
+        assert options != null;
+        assert cursors != null;
+        assert (gens.size() == sdirs.size()) && (gens.size() == cursors.size());
+        assert sink != null;
+
+        final List<TermCursor> all = new ArrayList<>();
+        for (List<TermCursor> icursors : cursors) {
+            all.addAll(icursors);
+        }
+        try {
+            final TermMerger merger = new TermMerger(all, ascending,
+                               options.needsFreqs(), options.getMinDocFreq(),
+                                       options.isCollated(), stats.deadline);
+            int total = 0;
+
+            sink.begin();
+            while ((total < maxSize) && merger.hasNext()) {
+                final String term = merger.next();
+
+                if (options.isFreqs()) {
+                    sink.term(term, merger.docFreq, merger.totalTermFreq);
+                } else {
+                    sink.term(term);
+                }
+                total++;
+            }
+            stats.returned += total;
+            stats.partial = merger.expired;
+
+            final Continuation cont;
+            // se o limite for atingido aqui, a pagina esta completa mas nao
+            // se sabe se ha mais termos
+            if (merger.hasNext() || merger.expired) {
+                final List<Continuation> parts = new ArrayList<>();
+
+                for (int pos = 0; pos < gens.size(); pos++) {
+                    final Map<String,BytesRef> terms = new HashMap<>();
+                    final Map<String,Integer> ords = new HashMap<>();
+
+                    merger.positions(cursors.get(pos), terms, ords);
+                    parts.add(new Continuation(sdirs.get(pos), fields,
+                            ascending, options, gens.get(pos).getVersion(),
+                                                                 terms, ords));
+                }
+                cont = (parts.size() == 1) ? parts.get(0)
+                                           : new Continuation(parts);
+            } else {
+                cont = null;
+            }
+            return cont;
+        } finally {
+            for (TermCursor cursor : all) {
+                cursor.close(stats);
+            }
+        }
+    }
+
+    /**
+     * Retorna os proximos ou os previos 'maxSize' termos a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial (inclusive)
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param next true para os proximos termos, false para os previos
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return a pagina de termos e o estado para continuar a listagem
+     * @throws IOException
+     */
+    public Page getPage(final String sdir,
+                        final String init,
+                        final Set<String> fields,
+                        final boolean next,
+                        final int maxSize) throws IOException {
+        return getPage(sdir, init, fields, next, maxSize, QueryOptions.DEFAULT);
+    }
+
+    /**
+     * Retorna os proximos ou os previos 'maxSize' termos a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial (inclusive)
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param next true para os proximos termos, false para os previos
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta
+     * @return a pagina de termos e o estado para continuar a listagem
+     * @throws IOException
+     */
+    public Page getPage(final String sdir,
+                        final String init,
+                        final Set<String> fields,
+                        final boolean next,
+                        final int maxSize,
+                        final QueryOptions options) throws IOException {
+        final PageSink psink = new PageSink(null, Integer.MAX_VALUE);
+        final Continuation cont = stream(sdir, init, fields, next, maxSize,
+                                                               options, psink);
+        return psink.toPage(cont, options.isFreqs());
+    }
+
+    /**
+     * Entrega a 'sink', a medida que sao encontrados, os proximos ou os
+     * previos 'maxSize' termos a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial (inclusive)
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param next true para os proximos termos, false para os previos
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param sink destino dos termos
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     * @throws IOException
+     */
+    public Continuation stream(final String sdir,
+                               final String init,
+                               final Set<String> fields,
+                               final boolean next,
+                               final int maxSize,
+                               final TermSink sink) throws IOException {
+        return stream(sdir, init, fields, next, maxSize, QueryOptions.DEFAULT,
+                                                                         sink);
+    }
+
+    /**
+     * Entrega a 'sink', a medida que sao encontrados, os proximos ou os
+     * previos 'maxSize' termos a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial (inclusive)
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param next true para os proximos termos, false para os previos
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta
+     * @param sink destino dos termos
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     * @throws IOException
+     */
+    public Continuation stream(final String sdir,
+                               final String init,
+                               final Set<String> fields,
+                               final boolean next,
+                               final int maxSize,
+                               final QueryOptions options,
+                               final TermSink sink) throws IOException {
+        return stream(sdir, init, fields, next, maxSize, options, sink,
+                                                             new QueryStats());
+    }
+
+    /**
+     * Valida os parametros de uma consulta. Todos os pontos de entrada
+     * publicos passam por aqui, de forma que as mensagens de erro sao as
+     * mesmas em toda a API
+     * @throws IOException se algum parametro for invalido
+     */
+    private static void checkQuery(final String sdir,
+                                   final String init,
+                                   final Set<String> fields,
+                                   final int maxSize) throws IOException {
+        if ((sdir == null) || sdir.isEmpty()) {
+            throw new IOException("invalid sdir");
+        }
+        if ((init == null) || init.isEmpty()) {
+            throw new IOException("invalid init");
+        }
+        if ((fields == null) || fields.isEmpty()) {
+            throw new IOException("invalid fields");
+        }
+        checkMaxSize(maxSize);
+    }
+
+    private static void checkMaxSize(final int maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IOException("invalid maxSize [" + maxSize + "]");
+        }
+    }
+
+    /**
+     * Igual ao 'stream()' publico, acumulando os contadores e os tempos da
+     * consulta em 'stats'. Se 'stats.deadline' nao for 0, a consulta para
+     * nesse instante e entrega os termos encontrados ate entao, com
+     * 'stats.partial' true. Uma pagina parcial nao e colocada no cache.
+     */
+    Continuation stream(final String sdir,
+                        final String init,
+                        final Set<String> fields,
+                        final boolean next,
+                        final int maxSize,
+                        final QueryOptions options,
+                        final TermSink sink,
+                        final QueryStats stats) throws IOException {
+        checkQuery(sdir, init, fields, maxSize);
+        if (options == null) {
+            throw new NullPointerException("options");
+        }
+        if (sink == null) {
+            throw new NullPointerException("sink");
+        }
+        if (stats == null) {
+            throw new NullPointerException("stats");
+        }
+
+        final List<String> sdirs = indexNames(sdir);
+        if (sdirs.isEmpty()) {
+            throw new IOException("invalid sdir");
+        }
+        if (!sdirs.get(0).equals(sdir) && (sdirs.size() == 1)) {
+            return stream(sdirs.get(0), init, fields, next, maxSize, options,
+                                                                  sink, stats);
+        }
+
+        final String anchor = init.trim();
+        final BytesRef term = new BytesRef(anchor);
+        final Set<String> flds = new HashSet<>();
+        for (String field : fields) {
+            flds.add(field.trim());
+        }
+        if (sdirs.size() > 1) {
+            return streamFederated(sdirs, null, term, flds, next, maxSize,
+                                                        options, sink, stats);
+        }
+
+        final IndexHandle handle = getIndex(sdir);
+        final long start = System.nanoTime();
+        final IndexHandle.Generation gen = handle.acquire();
+        try {
+            stats.acquireNanos = System.nanoTime() - start;
+            return stream(gen, sdir, anchor, flds, next, maxSize, options,
+                                                           sink, stats, start);
+        } finally {
+            handle.release(gen);
+        }
+    }
+
+    /**
+     * Consulta de um unico indice sobre uma geracao ja obtida
+     * @param gen geracao do indice a ser utilizada
+     * @param sdir nome do indice
+     * @param anchor termo inicial (inclusive), sem espacos nas pontas
+     * @param flds campos da consulta, sem espacos nas pontas
+     * @param next direcao da consulta
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta
+     * @param sink destino dos termos
+     * @param stats contadores, tempos e limite de tempo da consulta
+     * @param start instante (nanoTime) em que a consulta comecou
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     */
+    private Continuation stream(final IndexHandle.Generation gen,
+                                final String sdir,
+                                final String anchor,
+                                final Set<String> flds,
+                                final boolean next,
+                                final int maxSize,
+                                final QueryOptions options,
+                                final TermSink sink,
+                                final QueryStats stats,
+                                final long start) throws IOException {
+        assert gen != null;
+        assert sdir != null;
+        assert anchor != null;
+        assert flds != null;
+        assert options != null;
+        assert sink != null;
+        assert stats != null;
+
+        final BytesRef term = new BytesRef(anchor);
+        boolean done = false;
+        long time = System.nanoTime();
+        Flight flight = null;   // consulta da qual esta e a lider
+        try {
+            final ResultCache rcache = cache;
+            final ResultCache.Key key = new ResultCache.Key(sdir, flds, anchor,
+                                                     next, maxSize, options);
+            if (rcache != null) {
+                final Page page = rcache.get(key, gen.getVersion());
+                stats.cacheNanos = System.nanoTime() - time;
+                if (page != null) {
+                    time = System.nanoTime();
+                    replay(page, options, sink);
+                    stats.collectNanos = System.nanoTime() - time;
+                    stats.returned = page.getTerms().size();
+                    stats.cacheHit = true;
+                    done = true;
+                    return page.getContinuation();
+                }
+            }
+
+            if (coalescing && (maxSize <= PageSink.MAXCACHED)) {
+                final Flight mine = new Flight(key, gen.getVersion());
+                final Flight other = flights.putIfAbsent(key, mine);
+
+                if (other == null) {
+                    flight = mine;
+                } else if (other.version == gen.getVersion()) {
+                    time = System.nanoTime();
+                    final Page page = other.await(stats.deadline);
+                    stats.waitNanos = System.nanoTime() - time;
+                    if (page != null) {
+                        time = System.nanoTime();
+                        replay(page, options, sink);
+                        stats.collectNanos = System.nanoTime() - time;
+                        stats.returned = page.getTerms().size();
+                        stats.coalesced = true;
+                        done = true;
+                        return page.getContinuation();
+                    }
+                }
+                // indice de outra versao, a lider falhou, parou no limite
+                // de tempo ou este limite passou: executa sozinha
+            }
+
+            final Map<String,BytesRef> terms = new HashMap<>();
+            for (String fld : flds) {
+                terms.put(fld, term);
+            }
+            time = System.nanoTime();
+            final List<TermCursor> cursors = openCursors(gen, terms,
+                                   Collections.<String,Integer>emptyMap(), next,
+                                               maxSize, options, false, stats);
+            stats.positionNanos = System.nanoTime() - time;
+            time = System.nanoTime();
+            // a lider entrega os termos ao seu cliente a medida que sao
+            // encontrados e os guarda ao mesmo tempo para as consultas que
+            // esperam por ela (e para o cache)
+            final PageSink psink = ((flight == null) && (rcache == null))
+                                   ? null
+                                   : new PageSink(sink, PageSink.MAXCACHED);
+            final Continuation cont = collect(gen, sdir, flds, next, options,
+                        cursors, maxSize, (psink == null) ? sink : psink, stats);
+            stats.collectNanos = System.nanoTime() - time;
+
+            if (psink != null) {
+                final Page page = psink.toPage(cont, options.isFreqs());
+                if ((page != null) && (rcache != null) && !stats.partial) {
+                    rcache.put(key, gen.getVersion(), page);
+                }
+                if (flight != null) {
+                    assert page != null;
+                    // as consultas que esperam tem os seus proprios limites
+                    flight.page.complete(stats.partial ? null : page);
+                }
+            }
+            done = true;
+            return cont;
+        } finally {
+            if (flight != null) {
+                flights.remove(flight.key, flight);
+                flight.page.complete(null);   // se a lider falhou
+            }
+            stats.totalNanos = System.nanoTime() - start;
+            record(sdir, anchor, next, flds, stats, done);
+        }
+    }
+
+    /**
+     * Consulta em andamento cuja pagina sera compartilhada com as consultas
+     * identicas que chegarem antes que ela termine
+     */
+    private static final class Flight {
+        final ResultCache.Key key;
+        final long version;   // versao do indice lida pela consulta
+        final CompletableFuture<Page> page;   // null se falhar ou parcial
+
+        Flight(final ResultCache.Key key,
+               final long version) {
+            this.key = key;
+            this.version = version;
+            this.page = new CompletableFuture<>();
+        }
+
+        /**
+         * @param deadline limite (System.nanoTime()) da espera ou 0
+         * @return a pagina da consulta ou null se ela falhou, se a pagina for
+         * parcial ou se o limite passou antes que ela terminasse
+         */
+        Page await(final long deadline) throws IOException {
+            try {
+                return (deadline == 0) ? page.get() : page.get(
+                     deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for an "
+                                                     + "identical query");
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());   // nunca acontece
+            }
+        }
+    }
+
+    /**
+     * Entrega a 'sink' os termos de uma pagina guardada no cache
+     */
+    private static void replay(final Page page,
+                               final QueryOptions options,
+                               final TermSink sink) throws IOException {
+        assert page != null;
+        assert options != null;
+        assert sink != null;
+
+        final List<String> pterms = page.getTerms();
+
+        sink.begin();
+        for (int pos = 0; pos < pterms.size(); pos++) {
+            if (options.isFreqs()) {
+                sink.term(pterms.get(pos), page.getDocFreq(pos),
+                                                  page.getTotalTermFreq(pos));
+            } else {
+                sink.term(pterms.get(pos));
+            }
+        }
+    }
+
+    /**
+     * Continua uma listagem a partir do ponto em que a pagina anterior parou
+     * @param cont estado retornado junto com a pagina anterior
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return a pagina de termos e o estado para continuar a listagem
+     * @throws IOException
+     */
+    public Page getPage(final Continuation cont,
+                        final int maxSize) throws IOException {
+        if (cont == null) {
+            throw new IOException("invalid cursor");
+        }
+        final PageSink psink = new PageSink(null, Integer.MAX_VALUE);
+        final Continuation ncont = stream(cont, maxSize, psink);
+
+        return psink.toPage(ncont, cont.getOptions().isFreqs());
+    }
+
+    /**
+     * Continua uma listagem a partir do ponto em que a pagina anterior parou,
+     * entregando os termos a 'sink' a medida que sao encontrados. As opcoes
+     * da consulta sao as da pagina anterior.
+     * @param cont estado retornado junto com a pagina anterior
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param sink destino dos termos
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     * @throws IOException
+     */
+    public Continuation stream(final Continuation cont,
+                               final int maxSize,
+                               final TermSink sink) throws IOException {
+        return stream(cont, maxSize, sink, new QueryStats());
+    }
+
+    /**
+     * Igual ao 'stream()' publico, acumulando os contadores e os tempos da
+     * consulta em 'stats'. Se 'stats.deadline' nao for 0, a consulta para
+     * nesse instante e entrega os termos encontrados ate entao, com
+     * 'stats.partial' true. Uma pagina parcial nao e colocada no cache.
+     */
+    Continuation stream(final Continuation cont,
+                        final int maxSize,
+                        final TermSink sink,
+                        final QueryStats stats) throws IOException {
+        if (cont == null) {
+            throw new IOException("invalid cursor");
+        }
+        checkMaxSize(maxSize);
+        if (sink == null) {
+            throw new NullPointerException("sink");
+        }
+
+        if (stats == null) {
+            throw new NullPointerException("stats");
+        }
+        final List<Continuation> parts = cont.getParts();
+        if (parts.size() > 1) {
+            final List<String> sdirs = new ArrayList<>();
+            for (Continuation part : parts) {
+                sdirs.add(part.getIndex());
+            }
+            return streamFederated(sdirs, parts, null, cont.getFields(),
+                    cont.isNext(), maxSize, cont.getOptions(), sink, stats);
+        }
+        final long start = System.nanoTime();
+        boolean done = false;
+
+        final String sdir = cont.getIndex();
+        final QueryOptions options = cont.getOptions();
+        final IndexHandle handle = getIndex(sdir);
+        final IndexHandle.Generation gen = handle.acquire();
+        long time = System.nanoTime();
+        stats.acquireNanos = time - start;
+        try {
+            final Map<String,BytesRef> terms = new HashMap<>();
+            final Map<String,Integer> ords = new HashMap<>();
+
+            resumePositions(cont, gen, terms, ords);
+            time = System.nanoTime();
+            final List<TermCursor> cursors = openCursors(gen, terms, ords,
+                                cont.isNext(), maxSize, options, true, stats);
+            stats.positionNanos = System.nanoTime() - time;
+            time = System.nanoTime();
+            final Continuation ncont = collect(gen, sdir, cont.getFields(),
+                         cont.isNext(), options, cursors, maxSize, sink, stats);
+            stats.collectNanos = System.nanoTime() - time;
+            done = true;
+            return ncont;
+        } finally {
+            handle.release(gen);
+            stats.totalNanos = System.nanoTime() - start;
+            record(sdir, null, cont.isNext(), cont.getFields(), stats, done);
+        }
+    }
+
+    /**
+     * Consulta federada: junta os termos de varios indices numa unica lista,
+     * na ordem dos bytes (ou na ordem colada) e sem termos repetidos, com as
+     * frequencias somadas em todos os indices. Os cursores de cada indice sao
+     * criados e posicionados concorrentemente no pool 'parallel' ou, se o
+     * modo paralelo estiver desligado, em sequencia na thread da consulta.
+     * As paginas federadas nao passam pelo cache nem sao compartilhadas entre
+     * consultas identicas.
+     * @param sdirs nomes dos indices em ordem alfabetica, sem repeticoes
+     * @param parts estado de cada indice para continuar a listagem ou null
+     * @param term termo inicial (inclusive) se 'parts' for null
+     * @param fields campos da consulta
+     * @param next direcao da consulta
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta
+     * @param sink destino dos termos
+     * @param stats contadores, tempos e limite de tempo da consulta
+     * @return o estado para continuar a listagem ou null se nao houver mais
+     * termos
+     */
+    private Continuation streamFederated(final List<String> sdirs,
+                                         final List<Continuation> parts,
+                                         final BytesRef term,
+                                         final Set<String> fields,
+                                         final boolean next,
+                                         final int maxSize,
+                                         final QueryOptions options,
+                                         final TermSink sink,
+                                         final QueryStats stats)
+                                                            throws IOException {
+        assert sdirs != null;
+        assert (parts == null) || (parts.size() == sdirs.size());
+        assert (parts != null) || (term != null);
+        assert fields != null;
+        assert options != null;
+        assert sink != null;
+        assert stats != null;
+
+        final String name = String.join(",", sdirs);
+        final long start = System.nanoTime();
+        boolean done = false;
+
+        final List<IndexHandle> handles = new ArrayList<>();
+        final List<IndexHandle.Generation> gens = new ArrayList<>();
+        try {
+            for (String sdir : sdirs) {
+                final IndexHandle handle = getIndex(sdir);
+
+                gens.add(handle.acquire());
+                handles.add(handle);
+            }
+            long time = System.nanoTime();
+            stats.acquireNanos = time - start;
+
+            final List<Callable<List<TermCursor>>> tasks = new ArrayList<>();
+            for (int pos = 0; pos < sdirs.size(); pos++) {
+                final IndexHandle.Generation gen = gens.get(pos);
+                final Map<String,BytesRef> terms = new HashMap<>();
+                final Map<String,Integer> ords = new HashMap<>();
+                final QueryStats tstats = new QueryStats();   // so na falha
+
+                if (parts == null) {
+                    for (String field : fields) {
+                        terms.put(field, term);
+                    }
+                } else {
+                    resumePositions(parts.get(pos), gen, terms, ords);
+                }
+                tstats.deadline = stats.deadline;
+                tasks.add(() -> openCursors(gen, terms, ords, next, maxSize,
+                                             options, parts != null, tstats));
+            }
+            final List<List<TermCursor>> cursors = new ArrayList<>();
+            try {
+                position(parallel, tasks, cursors);
+            } catch (IOException | RuntimeException ex) {
+                for (List<TermCursor> icursors : cursors) {
+                    for (TermCursor cursor : icursors) {
+                        cursor.close(stats);
+                    }
+                }
+                throw ex;
+            }
+            stats.positionNanos = System.nanoTime() - time;
+            time = System.nanoTime();
+            final Continuation cont = collect(gens, sdirs, fields, next,
+                                  options, cursors, maxSize, sink, stats);
+            stats.collectNanos = System.nanoTime() - time;
+            done = true;
+            return cont;
+        } finally {
+            for (int pos = 0; pos < gens.size(); pos++) {
+                handles.get(pos).release(gens.get(pos));
+            }
+            stats.totalNanos = System.nanoTime() - start;
+            record(name, (parts == null) ? term.utf8ToString() : null, next,
+                                                         fields, stats, done);
+        }
+    }
+
+    /**
+     * Copia de 'cont' o proximo termo de cada campo nao esgotado e, se a
+     * versao do indice nao mudou, a sua posicao
+     * @param cont estado de um unico indice
+     * @param gen geracao do indice a ser utilizada
+     * @param terms recebe o proximo termo de cada campo
+     * @param ords recebe a posicao do proximo termo de cada campo
+     */
+    private static void resumePositions(final Continuation cont,
+                                        final IndexHandle.Generation gen,
+                                        final Map<String,BytesRef> terms,
+                                        final Map<String,Integer> ords) {
+        assert cont != null;
+        assert gen != null;
+        assert terms != null;
+        assert ords != null;
+
+        // as posicoes no TermDictionary so valem para a mesma versao do indice
+        final boolean sameVersion = (cont.getVersion() == gen.getVersion());
+
+        for (String field : cont.getFields()) {
+            final BytesRef term = cont.getTerm(field);
+            if (term != null) {
+                terms.put(field, term);
+                if (sameVersion) {
+                    ords.put(field, cont.getOrd(field));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sdir nome de um indice ou nomes de varios indices separados por
+     * ',' (consulta federada)
+     * @return os nomes dos indices em ordem alfabetica e sem repeticoes, de
+     * forma que a mesma consulta federada tenha sempre o mesmo nome (nas
+     * metricas) e obtenha as vagas dos indices sempre na mesma ordem (no
+     * AdmissionControl)
+     */
+    static List<String> indexNames(final String sdir) {
+        assert sdir != null;
+
+        if (sdir.indexOf(',') < 0) {
+            return Collections.singletonList(sdir);
+        }
+        final Set<String> names = new TreeSet<>();
+        for (String name : sdir.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Envia os contadores de uma consulta ao Metrics e registra no log as
+     * consultas mais lentas que 'slowQueryNanos'
+     * @param sdir nome do indice
+     * @param init termo inicial ou null se a consulta continuar uma anterior
+     * @param next direcao da consulta
+     * @param fields campos da consulta
+     * @param stats contadores e tempos da consulta
+     * @param done false se a consulta falhou
+     */
+    private void record(final String sdir,
+                        final String init,
+                        final boolean next,
+                        final Set<String> fields,
+                        final QueryStats stats,
+                        final boolean done) {
+        if (done) {
+            metrics.record(sdir, next, stats.totalNanos, stats, stats.cacheHit);
+        } else {
+            metrics.error();
+        }
+        final long slow = slowQueryNanos;
+        if ((slow > 0) && (stats.totalNanos >= slow)) {
+            logger.warn("slow query: " + stats.toJson(sdir, init, next, fields));
+        }
+    }
+
+    private final Map<String,String> info;
+    private final int maxSize;
+    private final Map<String,IndexHandle> indexes;
+    private final ScheduledExecutorService refresher;
+    private ScheduledFuture<?> refreshTask;   // null sem reabertura periodica
+    private volatile ResultCache cache;
+    private final ConcurrentHashMap<ResultCache.Key,Flight> flights =
+                                                     new ConcurrentHashMap<>();
+    private volatile boolean coalescing = true;
+    private volatile ForkJoinPool parallel;
+    private volatile int minSegments;
+    private final Metrics metrics = new Metrics();
+    private volatile long slowQueryNanos;
+
+    public Map<String,String> getInfo() {
+        return new HashMap<>(info);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Set<String> getIndexes() {
+        return new HashSet<>(info.keySet());
+    }
+
+    /**
+     * Configuracao de um PreviousTerm. Somente os indices e o tamanho maximo
+     * da pagina sao obrigatorios; os outros atributos tem valores padrao
+     * (nenhum dicionario, visao colada ou arquivo de dicionario e locale
+     * DEFAULT_COLLATION_LOCALE).
+     */
+    public static class Builder {
+        private final Map<String,String> info;
+        private final int maxSize;
+        private Map<String,Set<String>> dictFields = new HashMap<>();
+        private Map<String,Set<String>> dvFields = new HashMap<>();
+        private Map<String,Set<String>> collFields = new HashMap<>();
+        private Locale locale = Locale.forLanguageTag(
+                                                     DEFAULT_COLLATION_LOCALE);
+        private Map<String,String> browseDirs = new HashMap<>();
+        private Set<String> preload = new HashSet<>();
+
+        /**
+         * @param info conjunto de  nomes e caminhos dos indices Lucene a
+         * serem utilizados
+         * @param maxSize numero de termos previos a serem retornados
+         */
+        public Builder(final Map<String,String> info,
+                       final int maxSize) {
+            if (info == null) {
+                throw new NullPointerException("info");
+            }
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize <= 0");
+            }
+            this.info = info;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @param dictFields para cada nome de indice, os campos cujos termos
+         * serao mantidos em memoria (TermDictionary)
+         * @return este objeto
+         */
+        public Builder dictFields(final Map<String,Set<String>> dictFields) {
+            if (dictFields == null) {
+                throw new NullPointerException("dictFields");
+            }
+            this.dictFields = dictFields;
+            return this;
+        }
+
+        /**
+         * @param dvFields para cada nome de indice, os campos cujos doc values
+         * (SORTED_SET) serao usados como dicionario (DocValuesDictionary)
+         * @return este objeto
+         */
+        public Builder docValuesFields(
+                                    final Map<String,Set<String>> dvFields) {
+            if (dvFields == null) {
+                throw new NullPointerException("dvFields");
+            }
+            this.dvFields = dvFields;
+            return this;
+        }
+
+        /**
+         * @param collFields para cada nome de indice, os campos que poderao
+         * ser percorridos na ordem colada (CollatedDictionary)
+         * @return este objeto
+         */
+        public Builder collatedFields(
+                                  final Map<String,Set<String>> collFields) {
+            if (collFields == null) {
+                throw new NullPointerException("collFields");
+            }
+            this.collFields = collFields;
+            return this;
+        }
+
+        /**
+         * @param locale idioma das regras de ordenacao das visoes coladas
+         * @return este objeto
+         */
+        public Builder locale(final Locale locale) {
+            if (locale == null) {
+                throw new NullPointerException("locale");
+            }
+            this.locale = locale;
+            return this;
+        }
+
+        /**
+         * @param browseDirs para cada nome de indice, o diretorio dos seus
+         * arquivos de dicionario (BrowseFile), que sao mapeados em memoria
+         * @return este objeto
+         */
+        public Builder browseDirs(final Map<String,String> browseDirs) {
+            if (browseDirs == null) {
+                throw new NullPointerException("browseDirs");
+            }
+            this.browseDirs = browseDirs;
+            return this;
+        }
+
+        /**
+         * @param preload nomes dos indices cujos arquivos serao carregados na
+         * memoria quando forem abertos (MMapDirectory.setPreload)
+         * @return este objeto
+         */
+        public Builder preload(final Set<String> preload) {
+            if (preload == null) {
+                throw new NullPointerException("preload");
+            }
+            this.preload = preload;
+            return this;
+        }
+
+        /**
+         * Abre os indices em paralelo
+         * @return o objeto configurado
+         * @throws IOException
+         */
+        public PreviousTerm build() throws IOException {
+            return new PreviousTerm(this);
+        }
+    }
+
+    /**
+     * Construtor da classe
+     * @param info conjunto de  nomes e caminhos dos indices Lucene a
+     * serem utilizados
+     * @param maxSize numero de termos previos a serem retornados
+     * @throws IOException
+     */
+    public PreviousTerm(final Map<String,String> info,
+                        final int maxSize) throws IOException {
+        this(new Builder(info, maxSize));
+    }
+
+    /**
+     * Construtor da classe. Os indices sao abertos em paralelo.
+     * @param config configuracao dos indices
+     * @throws IOException
+     */
+    private PreviousTerm(final Builder config) throws IOException {
+        assert config != null;
+
+        final Map<String,String> info = config.info;
+        final Map<String,Set<String>> dictFields = config.dictFields;
+        final Map<String,Set<String>> dvFields = config.dvFields;
+        final Map<String,Set<String>> collFields = config.collFields;
+        final Locale locale = config.locale;
+        final Map<String,String> browseDirs = config.browseDirs;
+        final Set<String> preload = config.preload;
+
+        this.info = info;
+        this.maxSize = config.maxSize;
+        this.indexes = new HashMap<>();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "PreviousTerm-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final List<Callable<IndexHandle>> tasks = new ArrayList<>();
+        for (Map.Entry<String,String> entry : info.entrySet()) {
+            final String key = entry.getKey();
+            final Set<String> dfields = dictFields.get(key);
+            final Set<String> vfields = dvFields.get(key);
+            final Set<String> cfields = collFields.get(key);
+
+            tasks.add(() -> {
+                final long start = System.nanoTime();
+                final IndexHandle handle = new IndexHandle(key,
+                           entry.getValue(),
+                           (dfields == null) ? new HashSet<String>() : dfields,
+                           (vfields == null) ? new HashSet<String>() : vfields,
+                           (cfields == null) ? new HashSet<String>() : cfields,
+                           CollatedDictionary.newCollator(locale),
+                           browseDirs.get(key), preload.contains(key));
+                logger.info("index opened: " + key + " (" + TimeUnit.NANOSECONDS
+                             .toMillis(System.nanoTime() - start) + " ms)");
+                return handle;
+            });
+        }
+        final List<IndexHandle> opened = new ArrayList<>();
+        try {
+            runAll(tasks, opened);
+        } catch (IOException ex) {
+            refresher.shutdownNow();
+            for (IndexHandle handle : opened) {
+                try {
+                    handle.close();
+                } catch (IOException ex2) {
+                    ex.addSuppressed(ex2);
+                }
+            }
+            throw ex;
+        }
+        for (IndexHandle handle : opened) {
+            this.indexes.put(handle.getName(), handle);
+        }
+    }
+
+    /**
+     * Executa concorrentemente as tarefas em um pool temporario com uma
+     * thread por tarefa, limitado ao numero de processadores, e espera que
+     * todas terminem
+     * @param tasks tarefas a serem executadas
+     * @param results recebe o resultado das tarefas que terminaram sem erro
+     * @throws IOException se alguma tarefa falhar
+     */
+    private static <T> void runAll(final List<Callable<T>> tasks,
+                                   final List<T> results) throws IOException {
+        assert tasks != null;
+        assert results != null;
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+               tasks.size(), Runtime.getRuntime().availableProcessors()));
+        Throwable error = null;
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    error = (error == null) ? ex.getCause() : error;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            error = (error == null) ? ex : error;
+        } finally {
+            pool.shutdownNow();
+        }
+        if (error instanceof IOException) {
+            throw (IOException)error;
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    /**
+     * Reabre periodicamente os indices que foram alterados. Substitui o
+     * intervalo definido anteriormente
+     * @param seconds intervalo em segundos entre duas verificacoes
+     */
+    public synchronized void setRefreshInterval(final long seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("seconds <= 0");
+        }
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+        refreshTask = refresher.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (IOException ex) {
+                logger.catching(Level.ERROR, ex);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reabre os indices que foram alterados desde a ultima abertura. As
+     * consultas em andamento terminam usando o leitor antigo.
+     * @return os nomes dos indices que foram reabertos
+     * @throws IOException
+     */
+    public Set<String> refresh() throws IOException {
+        final Set<String> ret = new HashSet<>();
+
+        for (IndexHandle handle : indexes.values()) {
+            if (handle.refresh()) {
+                final ResultCache rcache = cache;
+                if (rcache != null) {
+                    rcache.invalidate(handle.getName());
+                }
+                logger.info("index reopened: " + handle.getName());
+                ret.add(handle.getName());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Aquece os indices antes que eles recebam consultas: para cada campo,
+     * posiciona os cursores em 'anchors' termos espalhados entre o menor e o
+     * maior termo do campo e le 'maxSize' termos em cada direcao, carregando
+     * o indice de termos, os dicionarios e as paginas dos arquivos que as
+     * consultas usarao. Os indices sao aquecidos em paralelo. As consultas do
+     * aquecimento nao passam pelo cache nem pelas metricas.
+     * @param fields para cada nome de indice, os campos a serem aquecidos.
+     * Os indices que nao estiverem presentes tem todos os seus campos
+     * indexados aquecidos
+     * @param anchors numero de termos iniciais por campo
+     * @throws IOException
+     */
+    public void warmUp(final Map<String,Set<String>> fields,
+                       final int anchors) throws IOException {
+        if (fields == null) {
+            throw new NullPointerException("fields");
+        }
+        if (anchors <= 0) {
+            throw new IllegalArgumentException("anchors <= 0");
+        }
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (IndexHandle handle : indexes.values()) {
+            tasks.add(() -> {
+                warmUp(handle, fields.get(handle.getName()), anchors);
+                return null;
+            });
+        }
+        runAll(tasks, new ArrayList<Void>());
+    }
+
+    private void warmUp(final IndexHandle handle,
+                        final Set<String> fields,
+                        final int anchors) throws IOException {
+        assert handle != null;
+        assert anchors > 0;
+
+        final long start = System.nanoTime();
+        final IndexHandle.Generation gen = handle.acquire();
+        int total = 0;
+        try {
+            final Set<String> flds = new HashSet<>();
+            if (fields == null) {
+                for (FieldInfo finfo : FieldInfos.getMergedFieldInfos(
+                                                                  gen.reader)) {
+                    if (finfo.getIndexOptions() != IndexOptions.NONE) {
+                        flds.add(finfo.name);
+                    }
+                }
+            } else {
+                for (String field : fields) {
+                    flds.add(field.trim());
+                }
+            }
+            for (String field : flds) {
+                final Terms terms = gen.getTerms(field);
+                final BytesRef min = terms.getMin();
+                if (min == null) {
+                    continue;
+                }
+                for (BytesRef anchor : sample(min, terms.getMax(), anchors)) {
+                    warm(gen, handle.getName(), field, anchor, true);
+                    warm(gen, handle.getName(), field, anchor, false);
+                    total++;
+                }
+            }
+        } finally {
+            handle.release(gen);
+        }
+        logger.info("index warmed up: " + handle.getName() + " (" + total +
+                    " anchors, " + TimeUnit.NANOSECONDS.toMillis(
+                                      System.nanoTime() - start) + " ms)");
+    }
+
+    /**
+     * Le 'maxSize' termos de um campo a partir de 'anchor', descartando-os
+     */
+    private void warm(final IndexHandle.Generation gen,
+                      final String sdir,
+                      final String field,
+                      final BytesRef anchor,
+                      final boolean next) throws IOException {
+        final QueryStats stats = new QueryStats();
+        final List<TermCursor> cursors = openCursors(gen,
+                       Collections.singletonMap(field, anchor),
+                       Collections.<String,Integer>emptyMap(), next, maxSize,
+                                         QueryOptions.DEFAULT, false, stats);
+        collect(gen, sdir, Collections.singleton(field), next,
+                  QueryOptions.DEFAULT, cursors, maxSize, term -> { }, stats);
+    }
+
+    /**
+     * Divide sucessivamente ao meio o intervalo entre 'min' e 'max'
+     * @return ate 'count' sequencias de bytes entre 'min' e 'max' (inclusive)
+     */
+    private static List<BytesRef> sample(final BytesRef min,
+                                         final BytesRef max,
+                                         final int count) {
+        assert min != null;
+        assert max != null;
+        assert count > 0;
+
+        final List<BytesRef> ret = new ArrayList<>();
+        final ArrayDeque<BytesRef[]> intervals = new ArrayDeque<>();
+
+        ret.add(min);
+        if ((count > 1) && (min.compareTo(max) < 0)) {
+            ret.add(max);
+            intervals.add(new BytesRef[] { min, max });
+        }
+        while ((ret.size() < count) && !intervals.isEmpty()) {
+            final BytesRef[] interval = intervals.poll();
+            final BytesRef mid = midpoint(interval[0], interval[1]);
+
+            if (mid.compareTo(interval[0]) > 0) {
+                ret.add(mid);
+                intervals.add(new BytesRef[] { interval[0], mid });
+                intervals.add(new BytesRef[] { mid, interval[1] });
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Liga ou desliga o modo paralelo, no qual os termos de cada segmento do
+     * indice sao posicionados concorrentemente e depois juntados. Indices com
+     * poucos segmentos continuam sendo lidos sequencialmente.
+     * O pool anterior termina as tarefas ja recebidas; as consultas que o
+     * obtiveram e ainda nao enviaram as suas tarefas as executam em
+     * sequencia.
+     * @param threads numero de threads do pool compartilhado. Se for menor ou
+     * igual a zero, o modo paralelo e desligado
+     * @param minSegments numero minimo de segmentos de um indice para que ele
+     * seja lido em paralelo. Se for 1, todos os indices sao lidos em
+     * paralelo
+     */
+    public synchronized void setParallelism(final int threads,
+                                            final int minSegments) {
+        if (minSegments < 1) {
+            throw new IllegalArgumentException("minSegments < 1");
+        }
+        final ForkJoinPool old = parallel;
+
+        this.minSegments = minSegments;
+        parallel = (threads <= 0) ? null : new ForkJoinPool(threads);
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Registra no log (WARN) a consulta e o seu perfil de execucao sempre que
+     * ela demorar mais que 'millis'
+     * @param millis limite em milissegundos. Se for menor ou igual a zero, o
+     * registro e desligado
+     */
+    public void setSlowQueryThreshold(final long millis) {
+        slowQueryNanos = (millis <= 0) ? 0
+                                   : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return as metricas das consultas
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Escreve as metricas das consultas, do cache e dos indices no formato
+     * texto do Prometheus
+     * @param out destino do texto
+     */
+    public void writeMetrics(final StringBuilder out) {
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+        metrics.write(out);
+
+        final ResultCache rcache = cache;
+        if (rcache != null) {
+            Metrics.counter(out, "prvtrm_cache_hits_total", "Cache hits",
+                                                           rcache.getHits());
+            Metrics.counter(out, "prvtrm_cache_misses_total", "Cache misses",
+                                                         rcache.getMisses());
+            Metrics.counter(out, "prvtrm_cache_evictions_total",
+                                    "Cache evictions", rcache.getEvictions());
+            Metrics.counter(out, "prvtrm_cache_invalidations_total",
+                       "Cache entries of old index versions dropped",
+                                                   rcache.getInvalidations());
+            Metrics.gauge(out, "prvtrm_cache_bytes", "Approximate cache size",
+                                                           rcache.getBytes());
+            Metrics.gauge(out, "prvtrm_cache_entries", "Cached pages",
+                                                         rcache.getEntries());
+        }
+        Metrics.header(out, "prvtrm_open_generations", "gauge",
+                    "Open reader generations (current plus ones still in use)");
+        for (IndexHandle handle : indexes.values()) {
+            out.append("prvtrm_open_generations{index=\"")
+               .append(Metrics.escape(handle.getName())).append("\"} ")
+               .append(handle.getOpenGenerations()).append('\n');
+        }
+    }
+
+    /**
+     * Liga ou desliga o cache de paginas de termos
+     * @param maxBytes numero maximo aproximado de bytes ocupados pelo cache.
+     * Se for menor ou igual a zero, o cache e desligado
+     */
+    public void setCacheSize(final long maxBytes) {
+        cache = (maxBytes <= 0) ? null : new ResultCache(maxBytes);
+    }
+
+    /**
+     * Liga ou desliga (padrao: ligado) o compartilhamento de consultas: uma
+     * consulta que chega enquanto outra identica (mesmo indice, campos, termo
+     * inicial, direcao, tamanho e opcoes) esta em andamento espera por ela e
+     * recebe a mesma pagina, em vez de percorrer o indice novamente. Funciona
+     * com ou sem o cache e vale para paginas de ate 1000 termos.
+     * @param coalescing true para ligar
+     */
+    public void setCoalescing(final boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return o cache de paginas de termos ou null se estiver desligado
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Uma versao de um indice, fixada ate que o objeto seja fechado. As
+     * consultas, posicoes (rank) e numeros de termos obtidos atraves do mesmo
+     * Snapshot se referem todos a mesma versao do indice, ainda que ele seja
+     * reaberto nesse meio tempo.
+     */
+    public final class Snapshot implements Closeable {
+        private final IndexHandle handle;
+        private final IndexHandle.Generation gen;
+        private boolean closed;
+
+        private Snapshot(final IndexHandle handle) throws IOException {
+            assert handle != null;
+
+            this.handle = handle;
+            this.gen = handle.acquire();
+        }
+
+        /**
+         * @return o nome do indice
+         */
+        public String getIndex() {
+            return handle.getName();
+        }
+
+        /**
+         * @return a versao do indice
+         */
+        public long getVersion() {
+            return gen.getVersion();
+        }
+
+        /**
+         * @return os dicionarios em memoria do indice, por nome de campo
+         * (visao somente de leitura criada junto com a versao do indice)
+         */
+        public Map<String,TermDictionary> getDictionaries() {
+            return gen.getDictionaries();
+        }
+
+        /**
+         * @return as visoes coladas do indice, por nome de campo
+         */
+        public Map<String,CollatedDictionary> getCollatedDictionaries() {
+            return gen.getCollatedDictionaries();
+        }
+
+        /**
+         * @param field nome do campo
+         * @return numero total de termos do campo
+         * @throws IOException se o campo nao tiver um dicionario em memoria
+         */
+        public int getTermCount(final String field) throws IOException {
+            return getRequiredDictionary(gen, field).size();
+        }
+
+        /**
+         * @param field nome do campo
+         * @param rank posicao do termo na ordem do indice (iniciando em 0)
+         * @return o termo que ocupa a posicao 'rank' do campo
+         * @throws IOException se o campo nao tiver um dicionario em memoria
+         */
+        public String getTermAtRank(final String field,
+                                    final int rank) throws IOException {
+            final TermDictionary dict = getRequiredDictionary(gen, field);
+            if ((rank < 0) || (rank >= dict.size())) {
+                throw new IOException("invalid rank [" + rank + "]");
+            }
+            return dict.term(rank).utf8ToString();
+        }
+
+        /**
+         * @param field nome do campo
+         * @param term termo a ser procurado
+         * @return a posicao do primeiro termo do campo maior ou igual a 'term'
+         * @throws IOException se o campo nao tiver um dicionario em memoria
+         */
+        public int getRank(final String field,
+                           final String term) throws IOException {
+            if (term == null) {
+                throw new IOException("invalid term");
+            }
+            return getRequiredDictionary(gen, field).ceil(
+                                                     new BytesRef(term.trim()));
+        }
+
+        /**
+         * Igual ao 'stream()' de PreviousTerm, sobre esta versao do indice
+         * @param init termo inicial (inclusive)
+         * @param fields indica a quais campos os termos devem pertencer
+         * @param next true para os proximos termos, false para os previos
+         * @param maxSize tamanho maximo da lista de termos a ser retornada
+         * @param options opcoes da consulta
+         * @param sink destino dos termos
+         * @return o estado para continuar a listagem ou null se nao houver
+         * mais termos
+         * @throws IOException
+         */
+        public Continuation stream(final String init,
+                                   final Set<String> fields,
+                                   final boolean next,
+                                   final int maxSize,
+                                   final QueryOptions options,
+                                   final TermSink sink) throws IOException {
+            return stream(init, fields, next, maxSize, options, sink,
+                                                             new QueryStats());
+        }
+
+        /**
+         * Igual ao 'stream()' publico, acumulando os contadores e os tempos
+         * da consulta em 'stats'
+         */
+        Continuation stream(final String init,
+                            final Set<String> fields,
+                            final boolean next,
+                            final int maxSize,
+                            final QueryOptions options,
+                            final TermSink sink,
+                            final QueryStats stats) throws IOException {
+            checkQuery(getIndex(), init, fields, maxSize);
+            if (options == null) {
+                throw new NullPointerException("options");
+            }
+            if (sink == null) {
+                throw new NullPointerException("sink");
+            }
+            if (stats == null) {
+                throw new NullPointerException("stats");
+            }
+            if (closed) {
+                throw new IOException("closed snapshot: " + getIndex());
+            }
+            final Set<String> flds = new HashSet<>();
+            for (String field : fields) {
+                flds.add(field.trim());
+            }
+            return PreviousTerm.this.stream(gen, getIndex(), init.trim(),
+                 flds, next, maxSize, options, sink, stats, System.nanoTime());
+        }
+
+        /**
+         * Libera a versao do indice
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                handle.release(gen);
+            }
+        }
+    }
+
+    /**
+     * Fixa a versao corrente de um indice, que deve ser liberada com
+     * 'Snapshot.close()'
+     * @param index nome do indice
+     * @return a versao corrente do indice
+     * @throws IOException se o indice nao existir
+     */
+    public Snapshot snapshot(final String index) throws IOException {
+        return new Snapshot(getIndex(index));
+    }
+
+    /**
+     * @param index nome do indice
+     * @return os dicionarios em memoria do indice, por nome de campo
+     */
+    public Map<String,TermDictionary> getDictionaries(final String index)
+                                                            throws IOException {
+        try (Snapshot snap = snapshot(index)) {
+            return snap.getDictionaries();
+        }
+    }
+
+    /**
+     * @param index nome do indice
+     * @return as visoes coladas do indice, por nome de campo
+     */
+    public Map<String,CollatedDictionary> getCollatedDictionaries(
+                                                            final String index)
+                                                            throws IOException {
+        try (Snapshot snap = snapshot(index)) {
+            return snap.getCollatedDictionaries();
+        }
+    }
+
+    /**
+     * @param sdir nome do indice
+     * @param field nome do campo
+     * @return numero total de termos do campo
+     * @throws IOException se o campo nao tiver um dicionario em memoria
+     */
+    public int getTermCount(final String sdir,
+                            final String field) throws IOException {
+        try (Snapshot snap = snapshot(sdir)) {
+            return snap.getTermCount(field);
+        }
+    }
+
+    /**
+     * @param sdir nome do indice
+     * @param field nome do campo
+     * @param rank posicao do termo na ordem do indice (iniciando em 0)
+     * @return o termo que ocupa a posicao 'rank' do campo
+     * @throws IOException se o campo nao tiver um dicionario em memoria
+     */
+    public String getTermAtRank(final String sdir,
+                                final String field,
+                                final int rank) throws IOException {
+        try (Snapshot snap = snapshot(sdir)) {
+            return snap.getTermAtRank(field, rank);
+        }
+    }
+
+    /**
+     * @param sdir nome do indice
+     * @param field nome do campo
+     * @param term termo a ser procurado
+     * @return a posicao do primeiro termo do campo maior ou igual a 'term'
+     * @throws IOException se o campo nao tiver um dicionario em memoria
+     */
+    public int getRank(final String sdir,
+                       final String field,
+                       final String term) throws IOException {
+        if (term == null) {
+            throw new IOException("invalid term");
+        }
+        try (Snapshot snap = snapshot(sdir)) {
+            return snap.getRank(field, term);
+        }
+    }
+
+    /**
+     * Fecha os recursos abertos
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        refresher.shutdownNow();
+        final ForkJoinPool pool = parallel;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        for (IndexHandle handle: indexes.values()) {
+            handle.close();
+        }
+    }
+
+    /**
+     * Encontra os termos previos de um indice em relacao ao termo inicial
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial em relacao ao qual os termos previos serao encontrados
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return lista de termos previos em relacao ao termo inicial
+     * @throws IOException
+     */
+    public List<String> getPreviousTerms(final String sdir,
+                                         final String init,
+                                         final Set<String> fields,
+                                         final int maxSize) throws IOException {
+        return getPage(sdir, init, fields, false, maxSize).getTerms();
+    }
+
+    /**
+     * Encontra os termos previos de um indice em relacao ao termo inicial
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial em relacao ao qual os termos previos serao encontrados
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta (por exemplo o prefixo dos termos)
+     * @return lista de termos previos em relacao ao termo inicial
+     * @throws IOException
+     */
+    public List<String> getPreviousTerms(final String sdir,
+                                         final String init,
+                                         final Set<String> fields,
+                                         final int maxSize,
+                                         final QueryOptions options)
+                                                            throws IOException {
+        return getPage(sdir, init, fields, false, maxSize, options).getTerms();
+    }
+
+    /**
+     *
+     * @param index nome do indice Lucene a ser lido
+     * @return o indice aberto com esse nome
+     */
+    private IndexHandle getIndex(final String index) throws IOException {
+        final IndexHandle handle = (index == null) ? null : indexes.get(index);
+        if (handle == null) {
+            throw new IOException("invalid index name: " + index);
+        }
+
+        return handle;
+    }
+
+    private TermDictionary getRequiredDictionary(
+                                             final IndexHandle.Generation gen,
+                                             final String field)
+                                                            throws IOException {
+        assert gen != null;
+
+        if (field == null) {
+            throw new IOException("invalid field");
+        }
+        final TermDictionary dict = gen.getDictionary(field);
+        if (dict == null) {
+            throw new IOException("no term dictionary for field: " + field);
+        }
+        return dict;
+    }
+
+    private CollatedDictionary getRequiredCollated(
+                                             final IndexHandle.Generation gen,
+                                             final String field)
+                                                            throws IOException {
+        assert gen != null;
+        assert field != null;
+
+        final CollatedDictionary coll = gen.getCollated(field);
+        if (coll == null) {
+            throw new IOException("no collated view for field: " + field);
+        }
+        return coll;
+    }
+
+    //==========================================================================
+
+    /**
+     * @param deadline limite (System.nanoTime()) de uma consulta ou 0 se ela
+     * nao tiver limite de tempo
+     * @return true se o limite ja passou
+     */
+    private static boolean expired(final long deadline) {
+        return (deadline != 0) && (System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Calcula uma sequencia de bytes a meia distancia entre 'lo' e 'hi',
+     * tratando-as como fracoes na base 256.
+     * @param lo limite inferior
+     * @param hi limite superior (maior que 'lo')
+     * @return uma sequencia de bytes maior ou igual a 'lo' e menor que 'hi'
+     */
+    private static BytesRef midpoint(final BytesRef lo,
+                                     final BytesRef hi) {
+        assert lo != null;
+        assert hi != null;
+        assert lo.compareTo(hi) < 0;
+
+        final int len = Math.max(lo.length, hi.length) + 1;
+        final int[] sum = new int[len];
+        final byte[] ret = new byte[len];
+        int carry = 0;
+
+        for (int idx = len - 1; idx >= 0; idx--) {
+            final int lch = (idx < lo.length) ? lo.bytes[lo.offset + idx] & 0xff
+                                              : 0;
+            final int hch = (idx < hi.length) ? hi.bytes[hi.offset + idx] & 0xff
+                                              : 0;
+            final int value = lch + hch + carry;
+            sum[idx] = value & 0xff;
+            carry = value >> 8;
+        }
+        for (int idx = 0; idx < len; idx++) {
+            final int value = (carry << 8) | sum[idx];
+            ret[idx] = (byte)(value >> 1);
+            carry = value & 1;
+        }
+        return new BytesRef(ret);
+    }
+
+    /**
+     * @param prefix prefixo dos termos
+     * @return a menor sequencia de bytes maior que todas as que comecam com
+     * 'prefix' ou null se nao houver (prefixo formado somente por 0xff)
+     */
+    private static BytesRef prefixEnd(final BytesRef prefix) {
+        assert prefix != null;
+
+        int len = prefix.length;
+        while ((len > 0) &&
+               (prefix.bytes[prefix.offset + len - 1] == (byte)0xff)) {
+            len--;
+        }
+        if (len == 0) {
+            return null;
+        }
+        final byte[] ret = new byte[len];
+        System.arraycopy(prefix.bytes, prefix.offset, ret, 0, len);
+        ret[len - 1]++;
+
+        return new BytesRef(ret);
+    }
+
+    //==========================================================================
+    /**
+     *  Retorna os proximos 'maxSize' termos do indice a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial a partir do qual os outros serao retornados.
+     * Pode ser null ou string vazia
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @return lista ordenada de termos que são os próximos termos a partir de 'init'
+     * @throws java.io.IOException
+     */
+    public List<String> getNextTerms(final String sdir,
+                                     final String init,
+                                     final Set<String> fields,
+                                     final int maxSize) throws IOException {
+        return getPage(sdir, init, fields, true, maxSize).getTerms();
+    }
+
+    /**
+     *  Retorna os proximos 'maxSize' termos do indice a partir de 'init'
+     * @param sdir nome do indice lucene a ser utilizado
+     * @param init termo inicial a partir do qual os outros serao retornados
+     * @param fields indica a quais campos os termos devem pertencer
+     * @param maxSize tamanho maximo da lista de termos a ser retornada
+     * @param options opcoes da consulta (por exemplo o prefixo dos termos)
+     * @return lista ordenada de termos que são os próximos termos a partir de 'init'
+     * @throws java.io.IOException
+     */
+    public List<String> getNextTerms(final String sdir,
+                                     final String init,
+                                     final Set<String> fields,
+                                     final int maxSize,
+                                     final QueryOptions options)
+                                                            throws IOException {
+        return getPage(sdir, init, fields, true, maxSize, options).getTerms();
     }
 }
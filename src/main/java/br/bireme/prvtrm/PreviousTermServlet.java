@@ -8,15 +8,39 @@
 package br.bireme.prvtrm;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -26,8 +50,6 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
 /**
  *
@@ -35,19 +57,214 @@ import org.json.simple.JSONObject;
  * date: 20121129
  */
 @WebServlet(name = "PreviousTermServlet", urlPatterns =
-                                                       {"/PreviousTermServlet"})
+                           {"/PreviousTermServlet"}, asyncSupported = true)
 public class PreviousTermServlet extends HttpServlet {
 
+    private static final int DEFAULT_PARALLEL_MIN_SEGMENTS = 8;
+    private static final int DEFAULT_BATCH_MAX_QUERIES = 50;
+    private static final int DEFAULT_QUERY_QUEUE_SIZE = 100;
+    private static final long DEFAULT_INDEX_WAIT_MS = 1000;
+    private static final int DEFAULT_RETRY_AFTER = 1;
+    private static final long DEFAULT_ASYNC_TIMEOUT_MS = 30000;
+    // sem fechar automaticamente os objetos abertos, uma resposta
+    // interrompida por um erro nao se parece com uma resposta completa
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(
+                                 JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+    /**
+     * Escreve a resposta de uma consulta a medida que os termos sao
+     * encontrados. O cabecalho so e escrito quando a consulta ja foi validada,
+     * de forma que um erro antes disso ainda pode gerar uma resposta de erro.
+     * Com a opcao 'freqs' cada termo e escrito como o objeto
+     * {"term":..., "docFreq":..., "totalTermFreq":...}.
+     */
+    private static class JsonTermSink implements PreviousTerm.TermSink {
+        private final JsonGenerator jgen;
+        private final String index;
+        private final String init;
+        private final String direction;
+        private final int maxSize;
+        private final Set<String> fields;
+        private final QueryOptions options;
+        private final int rank;
+        private final int total;
+
+        JsonTermSink(final JsonGenerator jgen,
+                     final String index,
+                     final String init,
+                     final String direction,
+                     final int maxSize,
+                     final Set<String> fields,
+                     final QueryOptions options,
+                     final int rank,
+                     final int total) {
+            this.jgen = jgen;
+            this.index = index;
+            this.init = init;
+            this.direction = direction;
+            this.maxSize = maxSize;
+            this.fields = fields;
+            this.options = options;
+            this.rank = rank;
+            this.total = total;
+        }
+
+        @Override
+        public void begin() throws IOException {
+            jgen.writeStartObject();
+            jgen.writeStringField("index", index);
+            if (init != null) {
+                jgen.writeStringField("init", init);
+            }
+            jgen.writeStringField("direction", direction);
+            jgen.writeNumberField("maxTerms", maxSize);
+            jgen.writeArrayFieldStart("fields");
+            for (String field : fields) {
+                jgen.writeString(field);
+            }
+            jgen.writeEndArray();
+            if (options.getPrefix() != null) {
+                jgen.writeStringField("prefix", options.getPrefix());
+            }
+            if (options.getMinDocFreq() > 1) {
+                jgen.writeNumberField("minDocFreq", options.getMinDocFreq());
+            }
+            if (options.isCollated()) {
+                jgen.writeBooleanField("collated", true);
+            }
+            if (rank >= 0) {
+                jgen.writeNumberField("rank", rank);
+                jgen.writeNumberField("total", total);
+            }
+            jgen.writeArrayFieldStart("terms");
+            jgen.flush();
+        }
+
+        @Override
+        public void term(final String term) throws IOException {
+            jgen.writeString(term);
+        }
+
+        @Override
+        public void term(final String term,
+                         final long docFreq,
+                         final long totalTermFreq) throws IOException {
+            jgen.writeStartObject();
+            jgen.writeStringField("term", term);
+            jgen.writeNumberField("docFreq", docFreq);
+            jgen.writeNumberField("totalTermFreq", totalTermFreq);
+            jgen.writeEndObject();
+        }
+
+        /**
+         * Termina a resposta
+         * @param cont estado para continuar a listagem ou null
+         * @param partial true se a consulta parou no limite de tempo
+         * @param profile perfil de execucao da consulta ou null
+         * @throws IOException
+         */
+        void end(final Continuation cont,
+                 final boolean partial,
+                 final QueryStats profile) throws IOException {
+            jgen.writeEndArray();
+            if (partial) {
+                jgen.writeBooleanField("partial", true);
+            }
+            if (cont != null) {
+                jgen.writeStringField("cursor", cont.encode());
+            }
+            if (profile != null) {
+                jgen.writeFieldName("profile");
+                profile.write(jgen);
+            }
+            jgen.writeEndObject();
+        }
+    }
+
     private final Logger logger = LogManager.getLogger(PreviousTermServlet.class);
     private String maxTerms;
     private Map<String,String> iinfo;
+    private Map<String,Set<String>> dinfo;
     private PreviousTerm previous;
+    private ExecutorService batchExecutor;
+    private int batchMaxQueries;
+    private AdmissionControl admission;
+    private int retryAfter;
+    private long asyncTimeout;
+    private long queryTimeout;         // milissegundos ou 0 se nao houver
+    private byte[] refreshToken;       // null sem reabertura por requisicao
+    private Thread warmer;             // null se nao houver aquecimento
+    private volatile boolean ready;    // false ate o aquecimento terminar
 
     /**
      * INDEX_DIR diretorio contendo o indice Lucene
      * MAX_TERMS numero maximo de termos a serem retornados
      * DOC_FIELDS nomes dos campos cujos termos serao retornados
      * (separados por ',' ';' ou '-' )
+     * TERM_DICTIONARIES (opcional) campos de cada indice cujos termos serao
+     * mantidos em memoria [name="<index name>" fields="<field1>,<field2>"]
+     * DOCVALUES_FIELDS (opcional) campos de cada indice gravados tambem como
+     * SortedSetDocValuesField cujos doc values serao usados como dicionario,
+     * sem copiar os termos para a memoria
+     * [name="<index name>" fields="<field1>,<field2>"]
+     * COLLATED_FIELDS (opcional) campos de cada indice que poderao ser
+     * percorridos na ordem colada, sem distinguir acentos e maiusculas
+     * [name="<index name>" fields="<field1>,<field2>"]
+     * COLLATION_LOCALE (opcional) idioma (tag BCP 47) das regras de ordenacao
+     * dos campos de COLLATED_FIELDS (padrao pt-BR)
+     * BROWSE_FILES (opcional) diretorio dos arquivos de dicionario gerados por
+     * GenBrowseFile para cada indice, que sao mapeados em memoria
+     * [name="<index name>" path="<browse files dir>"]
+     * PRELOAD_INDEXES (opcional) nomes dos indices cujos arquivos serao
+     * carregados na memoria quando forem abertos (separados por ',' ou ';')
+     * WARMUP_ANCHORS (opcional) numero de termos iniciais por campo lidos no
+     * aquecimento dos indices, feito em segundo plano depois que eles sao
+     * abertos. Ate o aquecimento terminar, o parametro 'ready' responde 503
+     * (NOT_READY). Sem ele nao ha aquecimento
+     * WARMUP_FIELDS (opcional) campos de cada indice a serem aquecidos
+     * [name="<index name>" fields="<field1>,<field2>"]. Os indices que nao
+     * estiverem presentes tem todos os seus campos indexados aquecidos
+     * CACHE_MAX_BYTES (opcional) tamanho maximo em bytes do cache de paginas
+     * de termos. Sem ele o cache fica desligado
+     * COALESCE_QUERIES (opcional) 'false' para que consultas identicas
+     * simultaneas nao compartilhem o resultado da primeira (padrao true)
+     * REFRESH_INTERVAL (opcional) intervalo em segundos entre duas
+     * verificacoes de alteracao dos indices. Sem ele os indices so sao
+     * reabertos pelo parametro 'refresh'
+     * REFRESH_TOKEN (opcional) segredo que autoriza a reabertura dos indices
+     * pelo parametro 'refresh', enviado por POST com o cabecalho
+     * X-Refresh-Token. Sem ele o parametro 'refresh' fica desligado
+     * PARALLEL_THREADS (opcional) numero de threads usadas para ler os
+     * segmentos de um indice em paralelo. Sem ele a leitura e sequencial
+     * PARALLEL_MIN_SEGMENTS (opcional) numero minimo de segmentos de um indice
+     * para que ele seja lido em paralelo (padrao 8)
+     * BATCH_THREADS (opcional) numero de threads que executam as consultas
+     * dos lotes (padrao: numero de processadores). E o limite de consultas
+     * simultaneas de todos os lotes, separado de QUERY_THREADS
+     * BATCH_MAX_QUERIES (opcional) numero maximo de consultas de um lote
+     * (padrao 50)
+     * QUERY_THREADS (opcional) numero de threads que executam as consultas
+     * fora das threads do container (padrao: 2 x numero de processadores)
+     * QUERY_QUEUE_SIZE (opcional) numero maximo de consultas esperando por
+     * uma thread. Acima dele a resposta e 503 (padrao 100)
+     * VIRTUAL_THREADS (opcional) 'true' para usar virtual threads, se a JVM
+     * as tiver
+     * INDEX_MAX_QUERIES (opcional) numero maximo de consultas simultaneas de
+     * um indice. Sem ele nao ha limite por indice
+     * INDEX_WAIT_MS (opcional) tempo maximo de espera por uma vaga de um
+     * indice (padrao 1000)
+     * RETRY_AFTER (opcional) valor em segundos do cabecalho Retry-After das
+     * respostas 503 (padrao 1)
+     * ASYNC_TIMEOUT_MS (opcional) tempo maximo de uma consulta assincrona
+     * (padrao 30000). Ao atingi-lo, uma consulta que ainda nao comecou
+     * recebe 503 e uma consulta em execucao retorna os termos encontrados ate
+     * entao com "partial":true
+     * TIMEOUT_MS (opcional) limite de tempo padrao das consultas, que pode
+     * ser mudado pelo parametro 'timeoutMs'. Ao atingi-lo, a consulta retorna
+     * os termos encontrados ate entao com "partial":true. Sem ele as
+     * consultas nao tem limite
+     * SLOW_QUERY_MS (opcional) consultas mais lentas que este numero de
+     * milissegundos sao registradas no log com o seu perfil de execucao
      * @param servletConfig
      * @throws ServletException
      */
@@ -66,13 +283,178 @@ public class PreviousTermServlet extends HttpServlet {
                              "missing LUCENE_INDEXES configuration parameter.");
             }
             iinfo = getIndexInfo(indexes);
-            previous = new PreviousTerm(iinfo, Integer.parseInt(maxTerms));
+            final String dicts = servletConfig.getInitParameter(
+                                                          "TERM_DICTIONARIES");
+            dinfo = (dicts == null) ? new HashMap<String,Set<String>>()
+                                    : getDictionaryInfo(dicts);
+            final String dvs = servletConfig.getInitParameter(
+                                                           "DOCVALUES_FIELDS");
+            final String colls = servletConfig.getInitParameter(
+                                                            "COLLATED_FIELDS");
+            final String locale = servletConfig.getInitParameter(
+                                                           "COLLATION_LOCALE");
+            final String browse = servletConfig.getInitParameter(
+                                                               "BROWSE_FILES");
+            final String preload = servletConfig.getInitParameter(
+                                                            "PRELOAD_INDEXES");
+            final PreviousTerm.Builder builder = new PreviousTerm.Builder(
+                      iinfo, Integer.parseInt(maxTerms)).dictFields(dinfo);
+            if (dvs != null) {
+                builder.docValuesFields(getDictionaryInfo(dvs));
+            }
+            if (colls != null) {
+                builder.collatedFields(getDictionaryInfo(colls));
+            }
+            if (locale != null) {
+                builder.locale(Locale.forLanguageTag(locale.trim()));
+            }
+            if (browse != null) {
+                builder.browseDirs(getIndexInfo(browse));
+            }
+            if (preload != null) {
+                builder.preload(new HashSet<String>(Arrays.asList(
+                                      preload.trim().split(" *[\\,\\;] *"))));
+            }
+            previous = builder.build();
+            final String cacheSize = servletConfig.getInitParameter(
+                                                            "CACHE_MAX_BYTES");
+            if (cacheSize != null) {
+                previous.setCacheSize(Long.parseLong(cacheSize.trim()));
+            }
+            final String coalesce = servletConfig.getInitParameter(
+                                                           "COALESCE_QUERIES");
+            if (coalesce != null) {
+                previous.setCoalescing(Boolean.parseBoolean(coalesce.trim()));
+            }
+            final String refresh = servletConfig.getInitParameter(
+                                                           "REFRESH_INTERVAL");
+            if (refresh != null) {
+                previous.setRefreshInterval(Long.parseLong(refresh.trim()));
+            }
+            final String rtoken = servletConfig.getInitParameter(
+                                                              "REFRESH_TOKEN");
+            if ((rtoken != null) && !rtoken.trim().isEmpty()) {
+                refreshToken = rtoken.trim().getBytes(StandardCharsets.UTF_8);
+            }
+            final String slow = servletConfig.getInitParameter(
+                                                              "SLOW_QUERY_MS");
+            if (slow != null) {
+                previous.setSlowQueryThreshold(Long.parseLong(slow.trim()));
+            }
+            final String threads = servletConfig.getInitParameter(
+                                                           "PARALLEL_THREADS");
+            if (threads != null) {
+                final String segments = servletConfig.getInitParameter(
+                                                      "PARALLEL_MIN_SEGMENTS");
+                previous.setParallelism(Integer.parseInt(threads.trim()),
+                          (segments == null) ? DEFAULT_PARALLEL_MIN_SEGMENTS
+                                             : Integer.parseInt(segments.trim()));
+            }
+            final String bthreads = servletConfig.getInitParameter(
+                                                              "BATCH_THREADS");
+            final int nthreads = (bthreads == null)
+                                   ? Runtime.getRuntime().availableProcessors()
+                                   : Integer.parseInt(bthreads.trim());
+            batchExecutor = Executors.newFixedThreadPool(nthreads, r -> {
+                final Thread thread = new Thread(r, "PreviousTerm-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final String bmax = servletConfig.getInitParameter(
+                                                          "BATCH_MAX_QUERIES");
+            batchMaxQueries = (bmax == null) ? DEFAULT_BATCH_MAX_QUERIES
+                                             : Integer.parseInt(bmax.trim());
+            final String qthreads = servletConfig.getInitParameter(
+                                                              "QUERY_THREADS");
+            final String qsize = servletConfig.getInitParameter(
+                                                           "QUERY_QUEUE_SIZE");
+            final String ilimit = servletConfig.getInitParameter(
+                                                          "INDEX_MAX_QUERIES");
+            final String iwait = servletConfig.getInitParameter(
+                                                              "INDEX_WAIT_MS");
+            admission = new AdmissionControl(
+                (qthreads == null) ? 2 * Runtime.getRuntime().availableProcessors()
+                                   : Integer.parseInt(qthreads.trim()),
+                (qsize == null) ? DEFAULT_QUERY_QUEUE_SIZE
+                                : Integer.parseInt(qsize.trim()),
+                Boolean.parseBoolean(servletConfig.getInitParameter(
+                                                           "VIRTUAL_THREADS")),
+                iinfo.keySet(),
+                (ilimit == null) ? 0 : Integer.parseInt(ilimit.trim()),
+                (iwait == null) ? DEFAULT_INDEX_WAIT_MS
+                                : Long.parseLong(iwait.trim()));
+            final String retry = servletConfig.getInitParameter("RETRY_AFTER");
+            retryAfter = (retry == null) ? DEFAULT_RETRY_AFTER
+                                         : Integer.parseInt(retry.trim());
+            final String atimeout = servletConfig.getInitParameter(
+                                                           "ASYNC_TIMEOUT_MS");
+            asyncTimeout = (atimeout == null) ? DEFAULT_ASYNC_TIMEOUT_MS
+                                              : Long.parseLong(atimeout.trim());
+            final String qtimeout = servletConfig.getInitParameter(
+                                                                 "TIMEOUT_MS");
+            queryTimeout = (qtimeout == null) ? 0
+                                              : Long.parseLong(qtimeout.trim());
+            final String anchors = servletConfig.getInitParameter(
+                                                             "WARMUP_ANCHORS");
+            if (anchors == null) {
+                ready = true;
+            } else {
+                final String wfields = servletConfig.getInitParameter(
+                                                              "WARMUP_FIELDS");
+                warmUp((wfields == null) ? new HashMap<String,Set<String>>()
+                                         : getDictionaryInfo(wfields),
+                       Integer.parseInt(anchors.trim()));
+            }
         } catch (Exception ex) {
             logger.catching(Level.ERROR, ex);
             throw new ServletException(ex);
         }
     }
 
+    /**
+     * Aquece os indices em uma thread separada, marcando o servidor como
+     * pronto quando terminar. Um erro no aquecimento e registrado no log e
+     * nao impede que o servidor fique pronto, pois os indices ja foram
+     * abertos.
+     */
+    private void warmUp(final Map<String,Set<String>> fields,
+                        final int anchors) {
+        assert fields != null;
+
+        warmer = new Thread(() -> {
+            try {
+                previous.warmUp(fields, anchors);
+            } catch (Exception ex) {
+                logger.catching(Level.ERROR, ex);
+            } finally {
+                ready = true;
+            }
+        }, "PreviousTerm-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    @Override
+    public void destroy() {
+        if (warmer != null) {
+            warmer.interrupt();
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+        if (admission != null) {
+            admission.close();
+        }
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ex) {
+                logger.catching(Level.ERROR, ex);
+            }
+        }
+        super.destroy();
+    }
+
     // [name="<index name>" path="<index path>"]
     private Map<String,String> getIndexInfo(final String in) {
         assert in != null;
@@ -88,6 +470,21 @@ public class PreviousTermServlet extends HttpServlet {
         return infol;
     }
 
+    // [name="<index name>" fields="<field1>,<field2>"]
+    private Map<String,Set<String>> getDictionaryInfo(final String in) {
+        assert in != null;
+
+        final Map<String,Set<String>> infol = new HashMap<>();
+        final Matcher mat = Pattern.compile(
+       "\\[\\s*name\\s*=\\s*\"([^\"]+)\"\\s+fields\\s*=\\s*\"([^\"]+)\"\\s*\\]")
+                                                                   .matcher(in);
+        while (mat.find()) {
+            infol.put(mat.group(1), new HashSet<String>(Arrays.asList(
+                               mat.group(2).trim().split(" *[\\,\\;] *"))));
+        }
+        return infol;
+    }
+
     private void info(final HttpServletRequest request,
                       final HttpServletResponse response)
                                           throws ServletException, IOException {
@@ -110,6 +507,55 @@ public class PreviousTermServlet extends HttpServlet {
                             entry.getValue() + "</td></tr>");
             }
             out.println("</table>");
+            out.println("<p>Term dictionaries:</p>");
+            out.println("<table><tr><th>index</th><th>field</th><th>terms</th>"
+                      + "<th>bytes</th><th>off-heap bytes</th></tr>");
+            for (String index: iinfo.keySet()) {
+                for (TermDictionary dict:
+                                 previous.getDictionaries(index).values()) {
+                    out.println("<tr><td>" + index + "</td><td>" +
+                                dict.getField() + "</td><td>" + dict.size() +
+                                "</td><td>" + dict.ramBytesUsed() +
+                                "</td><td>" + dict.offHeapBytesUsed() +
+                                "</td></tr>");
+                }
+            }
+            out.println("</table>");
+            out.println("<p>Collated views:</p>");
+            out.println("<table><tr><th>index</th><th>field</th><th>terms</th>"
+                                                      + "<th>bytes</th></tr>");
+            for (String index: iinfo.keySet()) {
+                for (CollatedDictionary coll:
+                          previous.getCollatedDictionaries(index).values()) {
+                    out.println("<tr><td>" + index + "</td><td>" +
+                                coll.getField() + "</td><td>" + coll.size() +
+                                "</td><td>" + coll.ramBytesUsed() +
+                                "</td></tr>");
+                }
+            }
+            out.println("</table>");
+            final ResultCache cache = previous.getCache();
+            if (cache == null) {
+                out.println("<p>Cache: disabled</p>");
+            } else {
+                out.println("<p>Cache:</p>");
+                out.println("<table>");
+                out.println("<tr><td>max bytes</td><td>" + cache.getMaxBytes()
+                                                              + "</td></tr>");
+                out.println("<tr><td>bytes</td><td>" + cache.getBytes()
+                                                              + "</td></tr>");
+                out.println("<tr><td>entries</td><td>" + cache.getEntries()
+                                                              + "</td></tr>");
+                out.println("<tr><td>hits</td><td>" + cache.getHits()
+                                                              + "</td></tr>");
+                out.println("<tr><td>misses</td><td>" + cache.getMisses()
+                                                              + "</td></tr>");
+                out.println("<tr><td>evictions</td><td>" + cache.getEvictions()
+                                                              + "</td></tr>");
+                out.println("<tr><td>invalidations</td><td>" +
+                                     cache.getInvalidations() + "</td></tr>");
+                out.println("</table>");
+            }
             out.println("</body></html>");
         } finally {
             if (out != null) {
@@ -118,6 +564,354 @@ public class PreviousTermServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Reabre os indices alterados. Como reabre todos os indices e reconstroi
+     * os seus dicionarios, so e aceito por POST e com o cabecalho
+     * X-Refresh-Token igual ao REFRESH_TOKEN, de forma que robos e
+     * navegadores (prefetch) nao o disparem
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException
+     */
+    private void refresh(final HttpServletRequest request,
+                         final HttpServletResponse response)
+                                                            throws IOException {
+        final String token = request.getHeader("X-Refresh-Token");
+
+        if ((refreshToken == null) || (token == null) ||
+            !MessageDigest.isEqual(refreshToken,
+                                   token.getBytes(StandardCharsets.UTF_8))) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("application/json; charset=UTF-8");
+
+        try (JsonGenerator jgen = JSON_FACTORY.createGenerator(
+                         response.getOutputStream(), JsonEncoding.UTF8)) {
+            jgen.writeStartObject();
+            jgen.writeArrayFieldStart("refreshed");
+            for (String index : previous.refresh()) {
+                jgen.writeString(index);
+            }
+            jgen.writeEndArray();
+            jgen.writeEndObject();
+        }
+    }
+
+    /**
+     * Responde READY (200) ou NOT_READY (503), para os balanceadores de carga
+     */
+    private void ready(final HttpServletResponse response) throws IOException {
+        final boolean isReady = ready;
+
+        response.setContentType("text/plain; charset=UTF-8");
+        if (!isReady) {
+            busy(response);
+        }
+        try (PrintWriter out = response.getWriter()) {
+            out.print(isReady ? "READY" : "NOT_READY");
+        }
+    }
+
+    private void metrics(final HttpServletResponse response)
+                                                            throws IOException {
+        final StringBuilder builder = new StringBuilder();
+
+        previous.writeMetrics(builder);
+        Metrics.counter(builder, "prvtrm_rejected_total",
+                         "Requests refused with 503 because all query slots "
+                                        + "were taken", admission.getRejected());
+        Metrics.counter(builder, "prvtrm_index_rejected_total",
+                          "Queries refused because an index had too many "
+                           + "simultaneous queries", admission.getIndexRejected());
+        Metrics.gauge(builder, "prvtrm_free_query_slots",
+                      "Free query slots (running plus waiting)",
+                                                    admission.getAvailable());
+
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        try (PrintWriter out = response.getWriter()) {
+            out.print(builder);
+        }
+    }
+
+    /**
+     * Executa uma consulta escrevendo o seu resultado em 'jgen'
+     * @param params fornece o valor de cada parametro da consulta ou null
+     * @param jgen destino do resultado
+     * @param limit limite (System.nanoTime()) da requisicao assincrona ou 0
+     * @throws Exception se a consulta for invalida ou falhar
+     */
+    private void query(final Function<String,String> params,
+                       final JsonGenerator jgen,
+                       final long limit) throws Exception {
+        assert params != null;
+        assert jgen != null;
+
+        final String maxTermsStr = params.apply("maxTerms");
+        final int maxSize = (maxTermsStr == null) ? previous.getMaxSize()
+                                                : Integer.parseInt(maxTermsStr);
+        final JsonTermSink sink;
+        final Continuation ncont;
+        final QueryStats stats = new QueryStats();
+
+        final String stimeout = params.apply("timeoutMs");
+        final long timeout = (stimeout == null) ? queryTimeout
+                                                : Long.parseLong(stimeout);
+        if (timeout < 0) {
+            throw new ServletException("invalid 'timeoutMs' parameter");
+        }
+        if (timeout > 0) {
+            stats.deadline = System.nanoTime() +
+                                     TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+        // a consulta termina antes que o container encerre a requisicao
+        if ((limit != 0) &&
+            ((stats.deadline == 0) || (stats.deadline - limit > 0))) {
+            stats.deadline = limit;
+        }
+
+        final String scursor = params.apply("cursor");
+        if (scursor != null) {   // continua a partir da pagina anterior
+            final Continuation cont = Continuation.decode(scursor);
+
+            sink = new JsonTermSink(jgen, cont.getIndex(), null,
+                                 cont.isNext() ? "next" : "previous", maxSize,
+                                     cont.getFields(), cont.getOptions(), -1, 0);
+            admission.acquire(cont.getIndex());
+            try {
+                ncont = previous.stream(cont, maxSize, sink, stats);
+            } finally {
+                admission.release(cont.getIndex());
+            }
+        } else {
+            final String index = params.apply("index");
+            if (index == null) {
+                throw new ServletException("missing 'index' parameter");
+            }
+
+            final Set<String> fields;
+            final String sfields = params.apply("fields");
+            if (sfields == null) {
+                throw new ServletException("missing 'fields' parameter");
+            } else {
+                fields = new HashSet<String>(
+                        Arrays.asList(sfields.trim().split(" *[\\,\\;] *")));
+            }
+
+            // uma consulta de um unico indice fixa a versao dele, de forma
+            // que a posicao (rank), o total e a pagina venham da mesma versao
+            final PreviousTerm.Snapshot snap = (index.indexOf(',') < 0)
+                                             ? previous.snapshot(index) : null;
+            try {
+                // campo unico de um unico indice com dicionario em memoria:
+                // permite posicionar pelo numero de ordem do termo (rank) na
+                // ordem dos bytes
+                final boolean collated = Boolean.parseBoolean(
+                                                     params.apply("collated"));
+                String dfield = null;
+                final String field = fields.iterator().next();
+                if (!collated && (fields.size() == 1) && (snap != null) &&
+                    snap.getDictionaries().containsKey(field)) {
+                    dfield = field;
+                }
+
+                final String direction;
+                final String sdirection = params.apply("direction");
+                if ((sdirection == null) ||
+                    (sdirection.compareToIgnoreCase("previous") == 0)) {
+                    direction = "previous";
+                } else if (sdirection.compareToIgnoreCase("next") == 0) {
+                    direction = "next";
+                } else {
+                    throw new IOException("invalid direction parameter");
+                }
+
+                // sem termo inicial, a listagem de um prefixo comeca no seu
+                // primeiro termo (next) ou no seu ultimo termo (previous)
+                final String prefix = params.apply("prefix");
+                final String init;
+                boolean showInit = true;
+                final String srank = params.apply("rank");
+                if (params.apply("init") != null) {
+                    init = params.apply("init");
+                } else if ((srank != null) && (dfield != null)) {
+                    init = snap.getTermAtRank(dfield, Integer.parseInt(srank));
+                } else if ((prefix != null) && !prefix.isEmpty()) {
+                    init = direction.equals("next") ? prefix
+                      : prefix + Character.toString(Character.MAX_CODE_POINT);
+                    showInit = false;
+                } else {
+                    throw new ServletException("missing 'init' parameter");
+                }
+
+                final String sminDocFreq = params.apply("minDocFreq");
+                final QueryOptions options = new QueryOptions(
+                                 Boolean.parseBoolean(params.apply("freqs")),
+                   (sminDocFreq == null) ? 1 : Integer.parseInt(sminDocFreq),
+                                                             prefix, collated);
+
+                admission.acquire(index);
+                try {
+                    sink = new JsonTermSink(jgen, index,
+                                  showInit ? init : null, direction, maxSize,
+                      fields, options,
+                      (dfield == null) ? -1 : snap.getRank(dfield, init),
+                      (dfield == null) ? 0 : snap.getTermCount(dfield));
+                    final boolean next = direction.equals("next");
+                    ncont = (snap == null)
+                          ? previous.stream(index, init, fields, next,
+                                             maxSize, options, sink, stats)
+                          : snap.stream(init, fields, next, maxSize, options,
+                                                                 sink, stats);
+                } finally {
+                    admission.release(index);
+                }
+            } finally {
+                if (snap != null) {
+                    snap.close();
+                }
+            }
+        }
+        sink.end(ncont, stats.partial,
+                 Boolean.parseBoolean(params.apply("profile")) ? stats : null);
+    }
+
+    /**
+     * Executa concorrentemente um lote de consultas recebido como um vetor
+     * JSON de objetos {index, init, fields, direction, maxTerms} (ou {cursor,
+     * maxTerms}) e retorna {"results":[...]} na mesma ordem. Uma consulta que
+     * falhar tem como resultado {"error":"<mensagem>"}.
+     * O lote ocupa uma unica vaga de QUERY_THREADS, e as suas consultas sao
+     * executadas no pool de BATCH_THREADS, compartilhado por todos os lotes:
+     * as consultas de lotes tem assim o seu proprio limite de consultas
+     * simultaneas (BATCH_THREADS), separado do limite de QUERY_THREADS. O
+     * limite por indice (INDEX_MAX_QUERIES) vale para cada uma delas.
+     * @param request servlet request
+     * @param response servlet response
+     * @param limit limite (System.nanoTime()) da requisicao assincrona ou 0
+     * @throws IOException
+     */
+    private void batch(final HttpServletRequest request,
+                       final HttpServletResponse response,
+                       final long limit) throws IOException {
+        final List<Map<String,String>> queries;
+
+        response.setContentType("application/json; charset=UTF-8");
+        try (JsonParser parser = JSON_FACTORY.createParser(
+                                                    request.getInputStream())) {
+            queries = parseBatch(parser);
+        } catch (IOException ex) {
+            logger.catching(Level.ERROR, ex);
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (JsonGenerator jgen = JSON_FACTORY.createGenerator(
+                             response.getOutputStream(), JsonEncoding.UTF8)) {
+                jgen.writeStartObject();
+                jgen.writeStringField("error", ex.getMessage());
+                jgen.writeEndObject();
+            }
+            return;
+        }
+
+        final List<Callable<String>> tasks = new ArrayList<>();
+        for (Map<String,String> params : queries) {
+            tasks.add(() -> {
+                final StringWriter result = new StringWriter();
+
+                try (JsonGenerator qgen = JSON_FACTORY.createGenerator(
+                                                                    result)) {
+                    query(params::get, qgen, limit);
+                } catch (Exception ex) {
+                    logger.catching(Level.ERROR, ex);
+                    // o resultado parcial da consulta e descartado
+                    final StringWriter error = new StringWriter();
+                    try (JsonGenerator egen = JSON_FACTORY.createGenerator(
+                                                                     error)) {
+                        egen.writeStartObject();
+                        egen.writeStringField("error", message(ex));
+                        egen.writeEndObject();
+                    }
+                    return error.toString();
+                }
+                return result.toString();
+            });
+        }
+
+        try (JsonGenerator jgen = JSON_FACTORY.createGenerator(
+                             response.getOutputStream(), JsonEncoding.UTF8)) {
+            jgen.writeStartObject();
+            jgen.writeArrayFieldStart("results");
+            for (Future<String> future : batchExecutor.invokeAll(tasks)) {
+                try {
+                    jgen.writeRawValue(future.get());
+                } catch (ExecutionException ex) {
+                    jgen.writeStartObject();
+                    jgen.writeStringField("error", ex.getCause().toString());
+                    jgen.writeEndObject();
+                }
+            }
+            jgen.writeEndArray();
+            jgen.writeEndObject();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch interrupted");
+        }
+    }
+
+    /**
+     * Le o vetor de consultas de um lote. Os valores de cada consulta sao
+     * convertidos para String e 'fields' pode ser um vetor de nomes.
+     * @param parser leitor do corpo da requisicao
+     * @return os parametros de cada consulta
+     * @throws IOException se o lote for invalido
+     */
+    private List<Map<String,String>> parseBatch(final JsonParser parser)
+                                                            throws IOException {
+        assert parser != null;
+
+        final List<Map<String,String>> queries = new ArrayList<>();
+
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("batch must be a JSON array");
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            final Map<String,String> params = new HashMap<>();
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+
+                if (token == JsonToken.START_ARRAY) {
+                    final StringBuilder builder = new StringBuilder();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (!parser.currentToken().isScalarValue()) {
+                            throw new IOException("invalid value of: " + name);
+                        }
+                        if (builder.length() > 0) {
+                            builder.append(',');
+                        }
+                        builder.append(parser.getValueAsString());
+                    }
+                    params.put(name, builder.toString());
+                } else if (token.isScalarValue()) {
+                    if (token != JsonToken.VALUE_NULL) {
+                        params.put(name, parser.getValueAsString());
+                    }
+                } else {
+                    throw new IOException("invalid value of: " + name);
+                }
+            }
+            queries.add(params);
+            if (queries.size() > batchMaxQueries) {
+                throw new IOException("too many queries in batch (max " +
+                                                      batchMaxQueries + ")");
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw new IOException("batch must be a JSON array of objects");
+        }
+        return queries;
+    }
+
     /**
      * Processes requests for both HTTP
      * <code>GET</code> and
@@ -131,86 +925,254 @@ public class PreviousTermServlet extends HttpServlet {
     protected void processRequest(final HttpServletRequest request,
                                   final HttpServletResponse response)
                                           throws ServletException, IOException {
-        PrintWriter out = null;
+        processRequest(request, response, 0);
+    }
+
+    /**
+     * @param request servlet request
+     * @param response servlet response
+     * @param limit limite (System.nanoTime()) da requisicao assincrona ou 0
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void processRequest(final HttpServletRequest request,
+                                final HttpServletResponse response,
+                                final long limit)
+                                          throws ServletException, IOException {
+        JsonGenerator jgen = null;
         String verbose = null;
 
         if (request.getParameter("info") != null) {
             info(request, response);
             return;
         }
+        if (request.getParameter("metrics") != null) {
+            metrics(response);
+            return;
+        }
+        if (request.getParameter("ready") != null) {
+            ready(response);
+            return;
+        }
 
         try {
             response.setContentType("application/json; charset=UTF-8");
-            out = response.getWriter();
-
+            jgen = JSON_FACTORY.createGenerator(response.getOutputStream(),
+                                                            JsonEncoding.UTF8);
             verbose = request.getParameter("verbose");
-
-            final String index = request.getParameter("index");
-            if (index == null) {
-                throw new ServletException("missing 'index' parameter");
+            query(request::getParameter, jgen, limit);
+        } catch (Exception ex) {
+            logger.catching(Level.ERROR, ex);
+            if ((jgen != null) && jgen.getOutputContext().inRoot()) {
+                if (ex instanceof AdmissionControl.BusyException) {
+                    busy(response);
+                }
+                jgen.writeStartObject();
+                if (verbose != null) {
+                    jgen.writeStringField("Exception", ex.toString());
+                }
+                jgen.writeEndObject();
+            } else if (jgen != null) {
+                // a resposta ja comecou a ser escrita (status 200): o erro e
+                // escrito no objeto aberto, sem "cursor", para que ela nao
+                // seja confundida com a ultima pagina
+                writeError(jgen, ex);
             }
-
-            final String init = request.getParameter("init");
-            if (init == null) {
-                throw new ServletException("missing 'init' parameter");
+        } finally {
+            if (jgen != null) {
+                jgen.close();
             }
+        }
+    }
 
-            final String maxTermsStr = request.getParameter("maxTerms");
-            final int maxSize = (maxTermsStr == null) ? previous.getMaxSize()
-                                                : Integer.parseInt(maxTermsStr);
+    /**
+     * @return a mensagem de erro de 'ex' a ser retornada ao cliente
+     */
+    private static String message(final Exception ex) {
+        assert ex != null;
 
-            final String sfields = request.getParameter("fields");
-            final Set<String> fields;
-            if (sfields == null) {
-                throw new ServletException("missing 'fields' parameter");
-            } else {
-                fields = new HashSet<String>(
-                        Arrays.asList(sfields.trim().split(" *[\\,\\;] *")));
-            }
+        return (ex.getMessage() == null) ? ex.toString() : ex.getMessage();
+    }
 
-            final List<String> terms;
-            String direction = request.getParameter("direction");
-            if ((direction == null) ||
-                (direction.compareToIgnoreCase("previous") == 0)) {
-                terms = previous.getPreviousTerms(index, init, fields, maxSize);
-                direction = "previous";
-            } else if (direction.compareToIgnoreCase("next") == 0) {
-                terms = previous.getNextTerms(index, init, fields, maxSize);
-                direction = "next";
+    /**
+     * Termina uma resposta interrompida por um erro: fecha os vetores e
+     * objetos internos abertos e escreve o membro "error" no objeto principal
+     * @param jgen gerador com o objeto principal aberto
+     * @param ex erro que interrompeu a resposta
+     * @throws IOException
+     */
+    private static void writeError(final JsonGenerator jgen,
+                                   final Exception ex) throws IOException {
+        assert jgen != null;
+        assert ex != null;
+
+        JsonStreamContext context = jgen.getOutputContext();
+        while (!context.inRoot() && !context.getParent().inRoot()) {
+            if (context.inArray()) {
+                jgen.writeEndArray();
             } else {
-                throw new IOException("invalid direction parameter");
+                jgen.writeEndObject();
             }
+            context = jgen.getOutputContext();
+        }
+        if (context.inObject()) {
+            jgen.writeStringField("error", message(ex));
+            jgen.writeEndObject();
+        }
+    }
 
-            final JSONObject jobj = new JSONObject();
-            final JSONArray jlistTerms = new JSONArray();
-            final JSONArray jlistFields = new JSONArray();
+    /**
+     * Requisicao executada no executor do AdmissionControl. A resposta
+     * pertence a quem a obtiver primeiro: a thread que executa a consulta ou
+     * o limite de tempo do container ('onTimeout'), que entao responde 503.
+     * Se a consulta ja estiver sendo executada, ela para nesse mesmo limite
+     * (com "partial":true) e o 'onTimeout' espera que ela termine, para que o
+     * container nao encerre a resposta enquanto ela e escrita.
+     */
+    private class AsyncQuery implements Runnable, AsyncListener {
+        private final AsyncContext actx;
+        private final boolean batch;
+        private final long limit;    // limite (System.nanoTime()) da consulta
+        private final AtomicBoolean claimed;
+        private final CountDownLatch finished;
 
-            jlistTerms.addAll(terms);
-            jlistFields.addAll(fields);
-            jobj.put("index", index);
-            jobj.put("init", init);
-            jobj.put("direction", direction);
-            jobj.put("maxTerms", maxSize);
-            jobj.put("fields", jlistFields);
-            jobj.put("terms", jlistTerms);
+        AsyncQuery(final AsyncContext actx,
+                   final boolean batch) {
+            assert actx != null;
 
-            out.println(jobj.toJSONString());
+            this.actx = actx;
+            this.batch = batch;
+            this.limit = System.nanoTime() +
+                                  TimeUnit.MILLISECONDS.toNanos(asyncTimeout);
+            this.claimed = new AtomicBoolean();
+            this.finished = new CountDownLatch(1);
+        }
 
-        } catch (Exception ex) {
-            logger.catching(Level.ERROR, ex);
-            if (out != null) {
-                if (verbose == null) {
-                    out.println("{}");
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;     // ja respondida pelo 'onTimeout'
+            }
+            try {
+                final HttpServletRequest arequest =
+                                        (HttpServletRequest)actx.getRequest();
+                final HttpServletResponse aresponse =
+                                      (HttpServletResponse)actx.getResponse();
+                if (batch) {
+                    batch(arequest, aresponse, limit);
                 } else {
-                    out.println("{Exception:\"" + ex.toString() + "\"}");
+                    processRequest(arequest, aresponse, limit);
+                }
+            } catch (Exception ex) {
+                logger.catching(Level.ERROR, ex);
+            } finally {
+                try {
+                    actx.complete();
+                } catch (IllegalStateException ex) {
+                    logger.catching(Level.WARN, ex);
+                } finally {
+                    finished.countDown();
                 }
             }
-        } finally {
-            if (out != null) {
-                out.close();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            if (claimed.compareAndSet(false, true)) {  // consulta nao iniciada
+                try {
+                    busy((HttpServletResponse)actx.getResponse(),
+                                                              "query timeout");
+                } finally {
+                    actx.complete();
+                }
+            } else {
+                try {
+                    if (!finished.await(asyncTimeout, TimeUnit.MILLISECONDS)) {
+                        logger.warn("query still running after async timeout");
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
-}
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+        }
+    }
+
+    /**
+     * Executa a requisicao assincronamente no executor do AdmissionControl,
+     * liberando a thread do container. Se nao houver vaga, responde
+     * imediatamente com 503. Se o limite ASYNC_TIMEOUT_MS for atingido antes
+     * que a consulta comece, tambem responde 503.
+     * @param request servlet request
+     * @param response servlet response
+     * @param batch true se for um lote de consultas
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void dispatch(final HttpServletRequest request,
+                          final HttpServletResponse response,
+                          final boolean batch)
+                                          throws ServletException, IOException {
+        if (!request.isAsyncSupported()) {
+            if (batch) {
+                batch(request, response, 0);
+            } else {
+                processRequest(request, response);
+            }
+            return;
+        }
+
+        final AsyncContext actx = request.startAsync();
+        final AsyncQuery query = new AsyncQuery(actx, batch);
+
+        actx.setTimeout(asyncTimeout);
+        actx.addListener(query);
+        if (!admission.execute(query)) {
+            try {
+                busy(response, "server busy");
+            } finally {
+                actx.complete();
+            }
+        }
+    }
+
+    /**
+     * Responde 503 (servico indisponivel) com a mensagem de erro 'message'
+     * @param response servlet response
+     * @param message mensagem de erro
+     * @throws IOException
+     */
+    private void busy(final HttpServletResponse response,
+                      final String message) throws IOException {
+        busy(response);
+        response.setContentType("application/json; charset=UTF-8");
+        try (JsonGenerator jgen = JSON_FACTORY.createGenerator(
+                             response.getOutputStream(), JsonEncoding.UTF8)) {
+            jgen.writeStartObject();
+            jgen.writeStringField("error", message);
+            jgen.writeEndObject();
+        }
+    }
+
+    /**
+     * Marca a resposta como 503 (servico indisponivel)
+     * @param response servlet response
+     */
+    private void busy(final HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setIntHeader("Retry-After", retryAfter);
+    }
 
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
     /**
@@ -226,7 +1188,16 @@ public class PreviousTermServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request,
                          HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        if (request.getParameter("refresh") != null) {
+            response.setHeader("Allow", "POST");
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        } else if ((request.getParameter("info") != null) ||
+                   (request.getParameter("metrics") != null) ||
+                   (request.getParameter("ready") != null)) {
+            processRequest(request, response);
+        } else {
+            dispatch(request, response, false);
+        }
     }
 
     /**
@@ -242,7 +1213,16 @@ public class PreviousTermServlet extends HttpServlet {
     protected void doPost(HttpServletRequest request,
                            HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        final String type = request.getContentType();
+
+        if (request.getParameter("refresh") != null) {
+            refresh(request, response);
+        } else if ((type != null) &&
+                   type.toLowerCase().startsWith("application/json")) {
+            dispatch(request, response, true);
+        } else {
+            doGet(request, response);
+        }
     }
 
     /**
@@ -0,0 +1,128 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.util.Objects;
+
+/**
+ * Opcoes de uma consulta de termos alem do indice, termo inicial, campos,
+ * direcao e tamanho da pagina.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class QueryOptions {
+    /**
+     * Opcoes padrao: somente os termos, sem filtro
+     */
+    public static final QueryOptions DEFAULT = new QueryOptions(false, 1);
+
+    private final boolean freqs;
+    private final int minDocFreq;
+    private final String prefix;
+    private final boolean collated;
+
+    /**
+     * @param freqs se true, cada termo e retornado com o seu docFreq e
+     * totalTermFreq somados em todos os campos da consulta
+     * @param minDocFreq termos cujo docFreq (somado em todos os campos) for
+     * menor que este valor sao ignorados
+     */
+    public QueryOptions(final boolean freqs,
+                        final int minDocFreq) {
+        this(freqs, minDocFreq, null);
+    }
+
+    /**
+     * @param freqs se true, cada termo e retornado com o seu docFreq e
+     * totalTermFreq somados em todos os campos da consulta
+     * @param minDocFreq termos cujo docFreq (somado em todos os campos) for
+     * menor que este valor sao ignorados
+     * @param prefix somente os termos que comecam com estes bytes (UTF-8)
+     * sao percorridos. Se for null ou vazio, todos os termos sao percorridos
+     */
+    public QueryOptions(final boolean freqs,
+                        final int minDocFreq,
+                        final String prefix) {
+        this(freqs, minDocFreq, prefix, false);
+    }
+
+    /**
+     * @param freqs se true, cada termo e retornado com o seu docFreq e
+     * totalTermFreq somados em todos os campos da consulta
+     * @param minDocFreq termos cujo docFreq (somado em todos os campos) for
+     * menor que este valor sao ignorados
+     * @param prefix somente os termos que comecam com este prefixo sao
+     * percorridos. Se for null ou vazio, todos os termos sao percorridos
+     * @param collated se true, os termos sao percorridos na ordem da visao
+     * colada dos campos (CollatedDictionary), que ignora acentos e
+     * maiusculas, inclusive ao comparar o prefixo. Se false, na ordem dos
+     * bytes
+     */
+    public QueryOptions(final boolean freqs,
+                        final int minDocFreq,
+                        final String prefix,
+                        final boolean collated) {
+        if (minDocFreq < 1) {
+            throw new IllegalArgumentException("minDocFreq < 1");
+        }
+        this.freqs = freqs;
+        this.minDocFreq = minDocFreq;
+        this.prefix = ((prefix == null) || prefix.isEmpty()) ? null : prefix;
+        this.collated = collated;
+    }
+
+    public boolean isFreqs() {
+        return freqs;
+    }
+
+    public int getMinDocFreq() {
+        return minDocFreq;
+    }
+
+    /**
+     * @return o prefixo dos termos ou null se nao houver
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return true se os termos forem percorridos na ordem da visao colada
+     */
+    public boolean isCollated() {
+        return collated;
+    }
+
+    /**
+     * @return true se os cursores precisarem ler o docFreq dos termos
+     */
+    boolean needsFreqs() {
+        return freqs || (minDocFreq > 1);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryOptions)) {
+            return false;
+        }
+        final QueryOptions other = (QueryOptions)obj;
+
+        return (freqs == other.freqs) && (minDocFreq == other.minDocFreq) &&
+               (collated == other.collated) &&
+                                          Objects.equals(prefix, other.prefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(freqs, minDocFreq, prefix, collated);
+    }
+}
@@ -0,0 +1,163 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Contadores do trabalho feito por uma consulta. Nao e thread-safe: cada
+ * cursor acumula os seus proprios contadores, que sao somados aos da consulta
+ * (no total e no campo do cursor) quando o cursor e fechado, e o total e
+ * enviado ao Metrics uma unica vez no final da consulta.
+ * Tambem guarda o tempo gasto em cada fase da consulta, o que permite
+ * retornar o perfil de execucao de uma consulta ('profile') e registrar as
+ * consultas lentas, e o limite de tempo da consulta ('deadline'), definido
+ * por quem a chama.
+ *
+ * @author agent
+ * date: 20261017
+ */
+final class QueryStats {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    long seeks;       // chamadas a TermsEnum.seekCeil
+    long scanned;     // termos lidos do indice ou do TermDictionary
+    long rounds;      // rodadas de bissecao dos termos previos
+    long fallbacks;   // leituras sem limite apos esgotar as bissecoes
+    long returned;    // termos retornados (e convertidos para String)
+
+    boolean cacheHit;
+    boolean coalesced;    // pagina recebida de uma consulta identica
+    boolean partial;      // a consulta parou no limite de tempo
+    long deadline;        // limite (System.nanoTime()) da consulta ou 0
+    long acquireNanos;    // obtencao da geracao do indice
+    long cacheNanos;      // consulta ao cache
+    long waitNanos;       // espera por uma consulta identica
+    long positionNanos;   // criacao e posicionamento dos cursores
+    long collectNanos;    // juncao e entrega dos termos
+    long totalNanos;
+
+    private Map<String,QueryStats> fields;   // contadores por campo
+
+    /**
+     * Soma os contadores de outra consulta ou cursor a estes
+     * @param other contadores a serem somados
+     */
+    void add(final QueryStats other) {
+        assert other != null;
+
+        seeks += other.seeks;
+        scanned += other.scanned;
+        rounds += other.rounds;
+        fallbacks += other.fallbacks;
+        returned += other.returned;
+    }
+
+    /**
+     * Soma os contadores do cursor de um campo a estes
+     * @param field nome do campo
+     * @param other contadores do cursor
+     */
+    void add(final String field,
+             final QueryStats other) {
+        assert field != null;
+        assert other != null;
+
+        add(other);
+        if (fields == null) {
+            fields = new TreeMap<>();
+        }
+        fields.computeIfAbsent(field, k -> new QueryStats()).add(other);
+    }
+
+    /**
+     * Escreve o perfil de execucao como um objeto JSON
+     * @param jgen destino do objeto
+     * @throws IOException
+     */
+    void write(final JsonGenerator jgen) throws IOException {
+        assert jgen != null;
+
+        jgen.writeStartObject();
+        jgen.writeNumberField("totalMs", millis(totalNanos));
+        jgen.writeBooleanField("cacheHit", cacheHit);
+        jgen.writeBooleanField("coalesced", coalesced);
+        jgen.writeBooleanField("partial", partial);
+        jgen.writeObjectFieldStart("phasesMs");
+        jgen.writeNumberField("acquire", millis(acquireNanos));
+        jgen.writeNumberField("cache", millis(cacheNanos));
+        jgen.writeNumberField("wait", millis(waitNanos));
+        jgen.writeNumberField("position", millis(positionNanos));
+        jgen.writeNumberField("collect", millis(collectNanos));
+        jgen.writeEndObject();
+        writeCounters(jgen);
+        jgen.writeNumberField("returned", returned);
+        if (fields != null) {
+            jgen.writeObjectFieldStart("fields");
+            for (Map.Entry<String,QueryStats> entry : fields.entrySet()) {
+                jgen.writeObjectFieldStart(entry.getKey());
+                entry.getValue().writeCounters(jgen);
+                jgen.writeEndObject();
+            }
+            jgen.writeEndObject();
+        }
+        jgen.writeEndObject();
+    }
+
+    /**
+     * @param index nome do indice
+     * @param init termo inicial ou null se a consulta continuar uma anterior
+     * @param next direcao da consulta
+     * @param flds campos da consulta
+     * @return a consulta e o seu perfil de execucao como um objeto JSON
+     */
+    String toJson(final String index,
+                  final String init,
+                  final boolean next,
+                  final Set<String> flds) {
+        final StringWriter writer = new StringWriter();
+
+        try (JsonGenerator jgen = JSON_FACTORY.createGenerator(writer)) {
+            jgen.writeStartObject();
+            jgen.writeStringField("index", index);
+            if (init != null) {
+                jgen.writeStringField("init", init);
+            }
+            jgen.writeStringField("direction", next ? "next" : "previous");
+            jgen.writeArrayFieldStart("fields");
+            for (String field : new TreeSet<>(flds)) {
+                jgen.writeString(field);
+            }
+            jgen.writeEndArray();
+            jgen.writeFieldName("profile");
+            write(jgen);
+            jgen.writeEndObject();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);   // StringWriter
+        }
+        return writer.toString();
+    }
+
+    private void writeCounters(final JsonGenerator jgen) throws IOException {
+        jgen.writeNumberField("seeks", seeks);
+        jgen.writeNumberField("scanned", scanned);
+        jgen.writeNumberField("bisectRounds", rounds);
+        jgen.writeNumberField("scanFallbacks", fallbacks);
+    }
+
+    private static double millis(final long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
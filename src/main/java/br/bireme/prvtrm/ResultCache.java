@@ -0,0 +1,245 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Cache LRU das paginas de termos retornadas por PreviousTerm, limitado pelo
+ * numero aproximado de bytes ocupados. Cada pagina guarda a versao do indice
+ * de onde foi lida e e descartada quando essa versao muda.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class ResultCache {
+    /**
+     * Chave de uma pagina: indice, campos (ordenados), termo inicial, direcao
+     * e tamanho da pagina.
+     */
+    static class Key {
+        private final String index;
+        private final List<String> fields;
+        private final String init;
+        private final boolean next;
+        private final int maxSize;
+        private final QueryOptions options;
+
+        Key(final String index,
+            final Set<String> fields,
+            final String init,
+            final boolean next,
+            final int maxSize,
+            final QueryOptions options) {
+            assert index != null;
+            assert fields != null;
+            assert init != null;
+            assert options != null;
+
+            final List<String> flds = new ArrayList<>(fields);
+            Collections.sort(flds);
+
+            this.index = index;
+            this.fields = flds;
+            this.init = init;
+            this.next = next;
+            this.maxSize = maxSize;
+            this.options = options;
+        }
+
+        String getIndex() {
+            return index;
+        }
+
+        long bytesUsed() {
+            long size = 96 + (2L * (index.length() + init.length()));
+            for (String field : fields) {
+                size += 40 + (2L * field.length());
+            }
+            return size;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key)obj;
+
+            return (next == other.next) && (maxSize == other.maxSize) &&
+                   index.equals(other.index) && init.equals(other.init) &&
+                   fields.equals(other.fields) && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, fields, init, next, maxSize, options);
+        }
+    }
+
+    private static class Entry {
+        final PreviousTerm.Page page;
+        final long version;
+        final long size;
+
+        Entry(final PreviousTerm.Page page,
+              final long version,
+              final long size) {
+            this.page = page;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key,Entry> map;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param maxBytes numero maximo aproximado de bytes ocupados pelo cache
+     */
+    public ResultCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);  // ordem de acesso
+        this.bytes = 0;
+    }
+
+    /**
+     * @param key chave da pagina
+     * @param version versao corrente do indice
+     * @return a pagina guardada ou null se nao houver uma pagina valida
+     */
+    synchronized PreviousTerm.Page get(final Key key,
+                                       final long version) {
+        assert key != null;
+
+        final Entry entry = map.get(key);
+        final PreviousTerm.Page ret;
+
+        if (entry == null) {
+            misses++;
+            ret = null;
+        } else if (entry.version != version) {
+            map.remove(key);
+            bytes -= entry.size;
+            invalidations++;
+            misses++;
+            ret = null;
+        } else {
+            hits++;
+            ret = entry.page;
+        }
+        return ret;
+    }
+
+    /**
+     * @param key chave da pagina
+     * @param version versao do indice de onde a pagina foi lida
+     * @param page pagina a ser guardada
+     */
+    synchronized void put(final Key key,
+                          final long version,
+                          final PreviousTerm.Page page) {
+        assert key != null;
+        assert page != null;
+
+        final long size = key.bytesUsed() + bytesUsed(page);
+        if (size > maxBytes) {
+            return;
+        }
+        final Entry old = map.put(key, new Entry(page, version, size));
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+
+        final Iterator<Map.Entry<Key,Entry>> iter = map.entrySet().iterator();
+        while ((bytes > maxBytes) && iter.hasNext()) {
+            final Entry eldest = iter.next().getValue();
+            iter.remove();
+            bytes -= eldest.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Descarta todas as paginas de um indice
+     * @param index nome do indice
+     */
+    synchronized void invalidate(final String index) {
+        final Iterator<Map.Entry<Key,Entry>> iter = map.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<Key,Entry> elem = iter.next();
+            if (elem.getKey().getIndex().equals(index)) {
+                iter.remove();
+                bytes -= elem.getValue().size;
+                invalidations++;
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntries() {
+        return map.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private static long bytesUsed(final PreviousTerm.Page page) {
+        long size = 96;
+
+        for (String term : page.getTerms()) {
+            size += 56 + (2L * term.length());
+        }
+        if (page.hasFreqs()) {
+            size += 32 + (16L * page.getTerms().size());
+        }
+        if (page.getContinuation() != null) {
+            size += page.getContinuation().bytesUsed();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,432 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * Dicionario ordenado e compacto dos termos de um campo.
+ * Os termos sao gravados em blocos de BLOCK_SIZE termos com codificacao de
+ * prefixo (o primeiro termo do bloco completo e os seguintes como tamanho do
+ * prefixo comum mais o sufixo), de forma que a posicao (ordinal) de um termo
+ * e encontrada por busca binaria nos primeiros termos dos blocos.
+ * O docFreq e o totalTermFreq de cada termo sao guardados em vetores
+ * indexados pela posicao do termo.
+ * Os blocos e os vetores ficam em memoria ('build()') ou em um arquivo
+ * mapeado em memoria (BrowseFile). O dicionario tambem pode ser uma visao dos
+ * valores SORTED_SET (doc values) do campo (DocValuesDictionary).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public abstract class TermDictionary {
+    public static final int BLOCK_SIZE = 16;
+
+    private final String field;
+    private final int size;
+
+    TermDictionary(final String field,
+                   final int size) {
+        assert field != null;
+        assert size >= 0;
+
+        this.field = field;
+        this.size = size;
+    }
+
+    /**
+     * Dicionario mantido em vetores na memoria (heap)
+     */
+    private static final class HeapDictionary extends TermDictionary {
+        private final byte[] data;
+        private final int[] blocks;   // posicao de cada bloco em 'data'
+        private final int[] docFreqs;
+        private final long[] totalTermFreqs;
+
+        private HeapDictionary(final String field,
+                               final int size,
+                               final byte[] data,
+                               final int[] blocks,
+                               final int[] docFreqs,
+                               final long[] totalTermFreqs) {
+            super(field, size);
+            this.data = data;
+            this.blocks = blocks;
+            this.docFreqs = docFreqs;
+            this.totalTermFreqs = totalTermFreqs;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return data.length + (4L * blocks.length) + (12L * size()) + 96;
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return true;
+        }
+
+        @Override
+        int getDocFreq(final int ord) {
+            return docFreqs[ord];
+        }
+
+        @Override
+        long getTotalTermFreq(final int ord) {
+            return totalTermFreqs[ord];
+        }
+
+        @Override
+        int blockCount() {
+            return blocks.length;
+        }
+
+        @Override
+        int readBlock(final int block,
+                      final BytesRef[] buffer) {
+            assert (block >= 0) && (block < blocks.length);
+
+            return readBlock(new ByteArrayDataInput(data, blocks[block],
+                                                 data.length - blocks[block]),
+                             Math.min(BLOCK_SIZE, size() - (block * BLOCK_SIZE)),
+                             buffer);
+        }
+
+        @Override
+        BytesRef readTerm(final int ord,
+                          final BytesRef scratch) {
+            assert (ord >= 0) && (ord < size());
+
+            final int block = ord / BLOCK_SIZE;
+            final BytesRef[] buffer = new BytesRef[BLOCK_SIZE];
+
+            readBlock(new ByteArrayDataInput(data, blocks[block],
+                                                 data.length - blocks[block]),
+                      (ord % BLOCK_SIZE) + 1, buffer);
+            return buffer[ord % BLOCK_SIZE];
+        }
+
+        @Override
+        int compareFirst(final int block,
+                         final BytesRef term) {
+            final ByteArrayDataInput in = new ByteArrayDataInput(data);
+
+            in.setPosition(blocks[block]);
+            final int len = in.readVInt();
+            final int pos = in.getPosition();
+
+            return Arrays.compareUnsigned(data, pos, pos + len, term.bytes,
+                                         term.offset, term.offset + term.length);
+        }
+    }
+
+    /**
+     * Cria o dicionario em memoria lendo todos os termos de um campo
+     * @param field nome do campo
+     * @param tenum iterador dos termos do campo, posicionado antes do primeiro
+     * @return o dicionario dos termos do campo
+     * @throws IOException
+     */
+    public static TermDictionary build(final String field,
+                                       final TermsEnum tenum)
+                                                            throws IOException {
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+        if (tenum == null) {
+            throw new NullPointerException("tenum");
+        }
+        final ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        final BytesRefBuilder last = new BytesRefBuilder();
+        int[] blocks = new int[16];
+        int[] docFreqs = new int[64];
+        long[] totalTermFreqs = new long[64];
+        int size = 0;
+        BytesRef term;
+
+        while ((term = tenum.next()) != null) {
+            if (size % BLOCK_SIZE == 0) {
+                final int block = size / BLOCK_SIZE;
+                blocks = ArrayUtil.grow(blocks, block + 1);
+                blocks[block] = Math.toIntExact(out.size());
+                writeTerm(out, null, term);
+            } else {
+                writeTerm(out, last.get(), term);
+            }
+            docFreqs = ArrayUtil.grow(docFreqs, size + 1);
+            totalTermFreqs = ArrayUtil.grow(totalTermFreqs, size + 1);
+            docFreqs[size] = tenum.docFreq();
+            totalTermFreqs[size] = tenum.totalTermFreq();
+            last.copyBytes(term);
+            size++;
+        }
+        final int nblocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        return new HeapDictionary(field, size, out.toArrayCopy(),
+                          ArrayUtil.copyOfSubArray(blocks, 0, nblocks),
+                          ArrayUtil.copyOfSubArray(docFreqs, 0, size),
+                          ArrayUtil.copyOfSubArray(totalTermFreqs, 0, size));
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return numero total de termos do campo
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return numero aproximado de bytes do heap ocupados pelo dicionario
+     */
+    public abstract long ramBytesUsed();
+
+    /**
+     * @return numero de bytes ocupados pelo dicionario fora do heap (arquivo
+     * mapeado em memoria)
+     */
+    public long offHeapBytesUsed() {
+        return 0;
+    }
+
+    /**
+     * @return true se o dicionario tiver o docFreq e o totalTermFreq dos
+     * termos
+     */
+    public abstract boolean hasFreqs();
+
+    /**
+     * @param ord posicao do termo
+     * @return numero de documentos que contem o termo
+     */
+    public int docFreq(final int ord) {
+        checkFreqs(ord);
+        return getDocFreq(ord);
+    }
+
+    /**
+     * @param ord posicao do termo
+     * @return numero total de ocorrencias do termo
+     */
+    public long totalTermFreq(final int ord) {
+        checkFreqs(ord);
+        return getTotalTermFreq(ord);
+    }
+
+    private void checkFreqs(final int ord) {
+        if ((ord < 0) || (ord >= size)) {
+            throw new IllegalArgumentException("invalid ord [" + ord + "]");
+        }
+        if (!hasFreqs()) {
+            throw new IllegalStateException("dictionary without frequencies: "
+                                                                      + field);
+        }
+    }
+
+    /**
+     * @param ord posicao do termo
+     * @return o termo que esta na posicao 'ord'
+     */
+    public BytesRef term(final int ord) {
+        if ((ord < 0) || (ord >= size)) {
+            throw new IllegalArgumentException("invalid ord [" + ord + "]");
+        }
+        final BytesRef[] buffer = new BytesRef[BLOCK_SIZE];
+
+        readBlock(ord / BLOCK_SIZE, buffer);
+
+        return buffer[ord % BLOCK_SIZE];
+    }
+
+    /**
+     * Le um unico termo, decodificando do seu bloco somente os termos que o
+     * precedem (ou, nos doc values, somente o proprio termo). Usado nos
+     * acessos sem ordem, como os da visao colada
+     * @param ord posicao valida de um termo
+     * @param scratch BytesRef que pode ser reaproveitado ou null
+     * @return o termo, possivelmente em 'scratch'
+     */
+    BytesRef readTerm(final int ord,
+                      final BytesRef scratch) {
+        assert (ord >= 0) && (ord < size);
+
+        final BytesRef[] buffer = new BytesRef[BLOCK_SIZE];
+
+        readBlock(ord / BLOCK_SIZE, buffer);
+        return buffer[ord % BLOCK_SIZE];
+    }
+
+    /**
+     * @param term termo a ser procurado
+     * @return a posicao do primeiro termo maior ou igual a 'term' ou size() se
+     * nao houver nenhum
+     */
+    public int ceil(final BytesRef term) {
+        if (term == null) {
+            throw new NullPointerException("term");
+        }
+        if (size == 0) {
+            return 0;
+        }
+        // ultimo bloco cujo primeiro termo e menor ou igual a 'term'
+        int low = 0;
+        int high = blockCount() - 1;
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+
+            if (compareFirst(mid, term) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final BytesRef[] buffer = new BytesRef[BLOCK_SIZE];
+        final int tot = readBlock(low, buffer);
+        int idx = 0;
+
+        while ((idx < tot) && (buffer[idx].compareTo(term) < 0)) {
+            idx++;
+        }
+        return (low * BLOCK_SIZE) + idx;
+    }
+
+    /**
+     * @param term termo a ser procurado
+     * @return a posicao do ultimo termo menor ou igual a 'term' ou -1 se nao
+     * houver nenhum
+     */
+    public int floor(final BytesRef term) {
+        if (term == null) {
+            throw new NullPointerException("term");
+        }
+        final byte[] next = new byte[term.length + 1];   // menor termo > term
+        System.arraycopy(term.bytes, term.offset, next, 0, term.length);
+
+        return ceil(new BytesRef(next)) - 1;
+    }
+
+    /**
+     * Decodifica todos os termos de um bloco
+     * @param block numero do bloco
+     * @param buffer vetor de tamanho BLOCK_SIZE que recebera os termos
+     * @return numero de termos do bloco
+     */
+    abstract int readBlock(int block,
+                           BytesRef[] buffer);
+
+    /**
+     * Decodifica os termos de um bloco gravado com 'writeTerm()'
+     * @param in leitor posicionado no inicio do bloco
+     * @param tot numero de termos do bloco
+     * @param buffer vetor de tamanho BLOCK_SIZE que recebera os termos
+     * @return 'tot'
+     */
+    static int readBlock(final DataInput in,
+                         final int tot,
+                         final BytesRef[] buffer) {
+        assert in != null;
+        assert (tot > 0) && (tot <= BLOCK_SIZE);
+        assert buffer.length >= BLOCK_SIZE;
+
+        try {
+            for (int idx = 0; idx < tot; idx++) {
+                final byte[] bytes;
+
+                if (idx == 0) {
+                    bytes = new byte[in.readVInt()];
+                    in.readBytes(bytes, 0, bytes.length);
+                } else {
+                    final BytesRef last = buffer[idx - 1];
+                    final int prefix = in.readVInt();
+                    final int suffix = in.readVInt();
+                    bytes = new byte[prefix + suffix];
+                    System.arraycopy(last.bytes, last.offset, bytes, 0, prefix);
+                    in.readBytes(bytes, prefix, suffix);
+                }
+                buffer[idx] = new BytesRef(bytes);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return tot;
+    }
+
+    /**
+     * @return numero de blocos do dicionario
+     */
+    abstract int blockCount();
+
+    /**
+     * @param block numero do bloco
+     * @param term termo a ser comparado
+     * @return o resultado da comparacao do primeiro termo do bloco com 'term'
+     */
+    abstract int compareFirst(int block,
+                              BytesRef term);
+
+    /**
+     * @param ord posicao valida de um termo
+     */
+    abstract int getDocFreq(int ord);
+
+    /**
+     * @param ord posicao valida de um termo
+     */
+    abstract long getTotalTermFreq(int ord);
+
+    /**
+     * Grava um termo com codificacao de prefixo
+     * @param out destino
+     * @param last termo anterior do bloco ou null se 'term' for o primeiro
+     * @param term termo a ser gravado
+     * @throws IOException
+     */
+    static void writeTerm(final DataOutput out,
+                          final BytesRef last,
+                          final BytesRef term) throws IOException {
+        assert out != null;
+        assert term != null;
+
+        if (last == null) {
+            out.writeVInt(term.length);
+            out.writeBytes(term.bytes, term.offset, term.length);
+        } else {
+            final int prefix = prefixLength(last, term);
+            out.writeVInt(prefix);
+            out.writeVInt(term.length - prefix);
+            out.writeBytes(term.bytes, term.offset + prefix,
+                                                         term.length - prefix);
+        }
+    }
+
+    private static int prefixLength(final BytesRef t1,
+                                    final BytesRef t2) {
+        final int max = Math.min(t1.length, t2.length);
+        int idx = 0;
+
+        while ((idx < max) &&
+               (t1.bytes[t1.offset + idx] == t2.bytes[t2.offset + idx])) {
+            idx++;
+        }
+        return idx;
+    }
+}
@@ -25,9 +25,52 @@
         given term.</p>
         <p>Get parameters are:</p>
         <p>index=&lt;Lucene index name&gt; <br/>init=&lt;initial key&gt; <br/>fields=&lt;field1,field2,...&gt; <br/>[direction=&lt;'next' or 'previous'&gt;] <br/>[maxTerms=&lt;max returned keys&gt;]</p>
+        <p>index=&lt;name1,name2,...&gt; browses several indexes at once:
+        their terms are merged into a single list, in byte order (or in the
+        collated order) and without repeated terms, and with freqs=true the
+        frequencies are summed over the indexes. The cursor keeps the
+        position of each index. Federated queries are not cached.</p>
+        <p>If a single field with a term dictionary (TERM_DICTIONARIES) is
+        used, the response also has the 'rank' of the initial key and the
+        'total' number of terms of the field, and 'init' may be replaced by
+        rank=&lt;position of the initial key&gt;</p>
+        <p>The response has a 'cursor' token while there are more terms to be
+        returned. The next page is retrieved with cursor=&lt;token&gt;
+        [maxTerms=&lt;max returned keys&gt;]</p>
+        <p>Several queries can be sent at once by a POST with content type
+        'application/json' whose body is an array of queries
+        [{"index":"lil","init":"baar","fields":["tit","abs"],"direction":"previous","maxTerms":10}, ...].
+        The queries are run concurrently and the response is
+        {"results":[...]} in the same order, where a failed query is
+        {"error":"&lt;message&gt;"}</p>
+        <p>freqs=true adds to each term its 'docFreq' and 'totalTermFreq'
+        summed over the requested fields ("terms":[{"term":"baar",
+        "docFreq":3,"totalTermFreq":3}, ...]) and minDocFreq=&lt;n&gt; skips
+        the terms whose summed docFreq is lower than n. Both are kept by the
+        cursor of the following pages.</p>
+        <p>prefix=&lt;prefix&gt; returns only the terms that start with the
+        prefix. Without 'init' the listing starts at the first (next) or at
+        the last (previous) term of the prefix.</p>
+        <p>collated=true walks the terms ignoring accents and case ("acao",
+        "ação" and "AÇÃO" are listed together), in the order of the
+        COLLATION_LOCALE. It needs every requested field to be listed in
+        COLLATED_FIELDS, and it also applies to 'init' and 'prefix'.</p>
+        <p>timeoutMs=&lt;milliseconds&gt; limits the time of the query
+        (default TIMEOUT_MS). When it is reached the response has the terms
+        found so far and "partial":true, and its 'cursor' continues from the
+        first term not returned. Partial pages are not cached.</p>
+        <p>When the server is saturated the response is 503 with a
+        'Retry-After' header.</p>
         <p>Other parameters are:</p>
         <p>verbose=   - shows exception message</p>
+        <p>profile=true - adds to the response a 'profile' object with the
+        time spent in each phase of the query and the index work (seeks,
+        scanned terms, bisection rounds) per field</p>
         <p>info=      - shows instalation/indexes information
+        <p>refresh=   - reopens the indexes that were changed
+        <p>metrics=   - shows the service metrics in Prometheus text format
+        <p>ready=     - READY (200) after the indexes are opened and warmed up,
+        NOT_READY (503) before that
         <p>Example:</p>
         <p>/PreviousTermServlet?index=lil&init=baar&direction=previous&fields=tit,abs</p>
     </body>
@@ -0,0 +1,316 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Controle de admissao: consultas recusadas quando o executor e a fila
+ * estao cheios ou quando um indice atinge o seu limite, e as respostas 503
+ * com Retry-After do servlet (sem vaga e limite de tempo antes de a consulta
+ * comecar). O servlet usa requisicoes e respostas simuladas com
+ * java.lang.reflect.Proxy.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class AdmissionControlTest {
+    private static final long WAIT_SECONDS = 10;
+
+    @Test
+    public void executeRejectsWhenFull() throws InterruptedException {
+        final AdmissionControl admission = new AdmissionControl(1, 1, false,
+                                      new HashSet<>(Arrays.asList("a")), 0, 0);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch ran = new CountDownLatch(2);
+            final Runnable task = () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.countDown();
+            };
+
+            assertTrue(admission.execute(task));   // em execucao
+            assertTrue(admission.execute(task));   // na fila
+            assertEquals(0, admission.getAvailable());
+            assertFalse(admission.execute(task));
+            assertEquals(1, admission.getRejected());
+
+            release.countDown();
+            assertTrue(ran.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            final long limit = System.currentTimeMillis() + 1000 * WAIT_SECONDS;
+            while (admission.getAvailable() < 2) {
+                assertTrue(System.currentTimeMillis() < limit);
+                Thread.sleep(1);
+            }
+            assertTrue(admission.execute(ran::countDown));
+        } finally {
+            admission.close();
+        }
+    }
+
+    @Test
+    public void indexLimit() throws IOException {
+        final AdmissionControl admission = new AdmissionControl(4, 0, false,
+                                 new HashSet<>(Arrays.asList("a", "b")), 1, 0);
+        try {
+            admission.acquire("a");
+            try {
+                admission.acquire("a");
+                fail("second query on index a accepted");
+            } catch (AdmissionControl.BusyException ex) {
+                // esperado
+            }
+            // a consulta federada falha em "a" e devolve a vaga de "b"
+            try {
+                admission.acquire("b,a");
+                fail("federated query accepted");
+            } catch (AdmissionControl.BusyException ex) {
+                // esperado
+            }
+            assertEquals(2, admission.getIndexRejected());
+            admission.acquire("b");
+            admission.release("b");
+            admission.release("a");
+            admission.acquire("a,b");
+            admission.release("a,b");
+            admission.acquire(null);   // indice desconhecido: sem limite
+        } finally {
+            admission.close();
+        }
+    }
+
+    /**
+     * Resposta simulada: status, cabecalhos e corpo
+     */
+    private static final class Response {
+        final Map<String,String> headers = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile int status = HttpServletResponse.SC_OK;
+        final HttpServletResponse proxy = proxy(HttpServletResponse.class,
+                                                         this::invoke);
+
+        private Object invoke(final Method method,
+                              final Object[] args) {
+            switch (method.getName()) {
+                case "setStatus":
+                case "sendError":
+                    status = (Integer)args[0];
+                    return null;
+                case "setIntHeader":
+                case "setHeader":
+                    headers.put((String)args[0], String.valueOf(args[1]));
+                    return null;
+                case "getOutputStream":
+                    return new ServletOutputStream() {
+                        @Override
+                        public void write(final int bt) {
+                            body.write(bt);
+                        }
+
+                        @Override
+                        public boolean isReady() {
+                            return true;
+                        }
+
+                        @Override
+                        public void setWriteListener(
+                                                 final WriteListener listener) {
+                        }
+                    };
+                default:
+                    return null;
+            }
+        }
+
+        String getBody() {
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Requisicao assincrona simulada. A thread que executa a consulta le os
+     * parametros de 'worker', que para ate que 'release' seja liberado.
+     */
+    private static final class Request {
+        final Response response = new Response();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicInteger completions = new AtomicInteger();
+        volatile AsyncListener listener;
+        final AsyncContext actx;
+        final HttpServletRequest container;
+
+        Request(final Map<String,String> params) {
+            final HttpServletRequest worker = proxy(HttpServletRequest.class,
+                (method, args) -> {
+                    if (method.getName().equals("getParameter")) {
+                        release.await();
+                        return params.get((String)args[0]);
+                    }
+                    return null;
+                });
+            actx = proxy(AsyncContext.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "getRequest":
+                        return worker;
+                    case "getResponse":
+                        return response.proxy;
+                    case "addListener":
+                        listener = (AsyncListener)args[0];
+                        return null;
+                    case "complete":
+                        completions.incrementAndGet();
+                        completed.countDown();
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+            container = proxy(HttpServletRequest.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "isAsyncSupported":
+                        return true;
+                    case "startAsync":
+                        return actx;
+                    default:
+                        return null;
+                }
+            });
+        }
+    }
+
+    private interface Handler {
+        Object invoke(Method method,
+                      Object[] args) throws Exception;
+    }
+
+    /**
+     * @return um objeto que implementa 'type' repassando as chamadas a
+     * 'handler' (os metodos sem resposta retornam 0 ou false)
+     */
+    private static <T> T proxy(final Class<T> type,
+                               final Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                                                new Class<?>[] {type},
+            (obj, method, args) -> {
+                final Object ret = handler.invoke(method, args);
+                final Class<?> rtype = method.getReturnType();
+
+                if ((ret == null) && rtype.isPrimitive()) {
+                    return (rtype == boolean.class) ? Boolean.FALSE
+                         : (rtype == void.class) ? null
+                         : (rtype == long.class) ? (Object)0L : (Object)0;
+                }
+                return ret;
+            }));
+    }
+
+    @Test
+    public void servletAnswers503WhenSaturated() throws Exception {
+        try (TestIndex index = new TestIndex()) {
+            index.add("f", "a", "b", "c");
+            index.write(1);
+
+            final Map<String,String> config = new HashMap<>();
+            config.put("MAX_TERMS", "10");
+            config.put("LUCENE_INDEXES", "[name=\"" + TestIndex.NAME +
+                                  "\" path=\"" + index.getDir() + "\"]");
+            config.put("QUERY_THREADS", "1");
+            config.put("QUERY_QUEUE_SIZE", "1");
+            config.put("RETRY_AFTER", "7");
+            config.put("BATCH_THREADS", "1");
+
+            final PreviousTermServlet servlet = new PreviousTermServlet();
+            servlet.init(proxy(ServletConfig.class, (method, args) ->
+                  method.getName().equals("getInitParameter")
+                                     ? config.get((String)args[0]) : null));
+            try {
+                final Map<String,String> params = new HashMap<>();
+                params.put("index", TestIndex.NAME);
+                params.put("fields", "f");
+                params.put("init", "a");
+                params.put("direction", "next");
+
+                final Request running = new Request(params);
+                final Request queued = new Request(params);
+                final Request rejected = new Request(params);
+
+                servlet.doGet(running.container, running.response.proxy);
+                servlet.doGet(queued.container, queued.response.proxy);
+                servlet.doGet(rejected.container, rejected.response.proxy);
+
+                // sem vaga no executor nem na fila
+                assertEquals(1, rejected.completions.get());
+                assertBusy(rejected.response, "server busy");
+
+                // limite de tempo do container antes de a consulta comecar
+                assertNotNull(queued.listener);
+                queued.listener.onTimeout(null);
+                assertEquals(1, queued.completions.get());
+                assertBusy(queued.response, "query timeout");
+
+                running.release.countDown();
+                queued.release.countDown();
+                assertTrue(running.completed.await(WAIT_SECONDS,
+                                                            TimeUnit.SECONDS));
+                assertEquals(HttpServletResponse.SC_OK,
+                                                     running.response.status);
+                assertTrue(running.response.getBody(),
+                     running.response.getBody().contains("\"a\",\"b\",\"c\""));
+
+                // a consulta respondida pelo limite de tempo nao executa
+                final Request after = new Request(params);
+                after.release.countDown();
+                servlet.doGet(after.container, after.response.proxy);
+                assertTrue(after.completed.await(WAIT_SECONDS,
+                                                            TimeUnit.SECONDS));
+                assertEquals(1, queued.completions.get());
+                assertBusy(queued.response, "query timeout");
+            } finally {
+                servlet.destroy();
+            }
+        }
+    }
+
+    private static void assertBusy(final Response response,
+                                   final String message) {
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                                              response.status);
+        assertEquals("7", response.headers.get("Retry-After"));
+        assertEquals("{\"error\":\"" + message + "\"}", response.getBody());
+    }
+}
@@ -0,0 +1,272 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Termos previos (RevTum): cada pagina deve ser igual a leitura crescente de
+ * todos os termos dos campos, invertida, nos motores serial, dictionary e
+ * parallel, inclusive quando o pool paralelo e trocado durante as consultas.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class BackwardCursorTest {
+    private static final String[] FIELDS = {"f1", "f2", "f3"};
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(1, 3000, 8, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void previousPagesMatchReversedScan() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(2);
+            final PreviousTerm previous = index.open(engine, FIELDS);
+            try {
+                for (int it = 0; it < 300; it++) {
+                    final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                    final String init = TestIndex.randomInit(rnd);
+                    final int max = 1 + rnd.nextInt((rnd.nextInt(4) == 0)
+                                                                  ? 400 : 15);
+                    final int minDocFreq = (rnd.nextInt(3) == 0)
+                                                    ? 1 + rnd.nextInt(4) : 1;
+                    final String prefix = (rnd.nextInt(4) == 0)
+                                ? TestIndex.randomInit(rnd).substring(0, 1)
+                                : null;
+                    final QueryOptions options = new QueryOptions(
+                                         rnd.nextBoolean(), minDocFreq, prefix);
+
+                    assertEquals(engine + " " + init + " " + fields,
+                         index.previous(fields, init, max, minDocFreq, prefix),
+                         previous.getPage(TestIndex.NAME, init, fields, false,
+                                                    max, options).getTerms());
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void continuationPaging() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(3);
+            final PreviousTerm previous = index.open(engine, FIELDS);
+            try {
+                for (int it = 0; it < 100; it++) {
+                    final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                    final String init = TestIndex.randomInit(rnd);
+                    final int size = 1 + rnd.nextInt(7);
+                    final int minDocFreq = (rnd.nextInt(3) == 0) ? 2 : 1;
+                    final String prefix = (rnd.nextInt(4) == 0)
+                                          ? init.substring(0, 1) : null;
+                    final List<String> expected = index.previous(fields, init,
+                                        Integer.MAX_VALUE, minDocFreq, prefix);
+                    final List<String> got = new ArrayList<>();
+                    PreviousTerm.Page page = previous.getPage(TestIndex.NAME,
+                                init, fields, false, size,
+                                new QueryOptions(false, minDocFreq, prefix));
+
+                    got.addAll(page.getTerms());
+                    while (page.getContinuation() != null) {
+                        page = previous.getPage(Continuation.decode(
+                                 page.getContinuation().encode()), size);
+                        got.addAll(page.getTerms());
+                    }
+                    assertEquals(engine + " " + init + " " + fields, expected,
+                                                                          got);
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void parallelismChangedDuringQueries() throws Exception {
+        final PreviousTerm previous = index.open("parallel", FIELDS);
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Void>> tasks = new ArrayList<>();
+
+            for (int thread = 0; thread < 4; thread++) {
+                final Random rnd = new Random(10 + thread);
+                tasks.add(pool.submit(() -> {
+                    for (int it = 0; it < 200; it++) {
+                        final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                        final String init = TestIndex.randomInit(rnd);
+                        final int max = 1 + rnd.nextInt(15);
+
+                        assertEquals(init + " " + fields,
+                                 index.previous(fields, init, max, 1, null),
+                                 previous.getPreviousTerms(TestIndex.NAME,
+                                                        init, fields, max));
+                    }
+                    return null;
+                }));
+            }
+            // cada troca fecha o pool que as consultas em andamento obtiveram
+            for (int change = 0; !allDone(tasks); change++) {
+                previous.setParallelism(2 + (change % 3), 1);
+                Thread.sleep(1);
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+            previous.close();
+        }
+    }
+
+    private static boolean allDone(final List<Future<Void>> tasks) {
+        for (Future<Void> task : tasks) {
+            if (!task.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void emptyTermAndSparseGaps() throws IOException {
+        try (TestIndex sparse = new TestIndex()) {
+            final Set<String> fields = new HashSet<>(Arrays.asList("a", "b"));
+
+            sparse.add("a", "", "a", "zzzzzzzz");
+            sparse.add("b", "ÿÿ", "中文", "m");
+            for (int idx = 0; idx < 2000; idx++) {
+                sparse.add("a", String.format("p%05d", idx * 37));
+            }
+            sparse.write(5);
+            for (String engine : ENGINES) {
+                final PreviousTerm previous = sparse.open(engine, "a", "b");
+                try {
+                    for (String init : new String[] {"a", "b", "p", "p00037",
+                                        "q", "zzzzzzzzz", "￿", "中"}) {
+                        for (int max : new int[] {1, 3, 10, 3000}) {
+                            assertEquals(engine + " " + init + " " + max,
+                                   sparse.previous(fields, init, max, 1, null),
+                                   previous.getPreviousTerms(TestIndex.NAME,
+                                                          init, fields, max));
+                        }
+                    }
+                    final List<String> all = previous.getPreviousTerms(
+                                           TestIndex.NAME, "￿", fields,
+                                                                         5000);
+                    assertEquals("", all.get(all.size() - 1));
+                    assertEquals(sparse.scan(fields, 1, null).size(),
+                                                                  all.size());
+                } finally {
+                    previous.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scanLimits() throws IOException {
+        // mais que MAXSCAN termos por segmento cujos prefixos se encadeiam:
+        // as bissecoes se esgotam (MAXBISECT) antes de isolar um intervalo
+        // com poucos termos e o intervalo e lido sem limite
+        try (TestIndex chain = new TestIndex()) {
+            final Set<String> fields = Collections.singleton("c");
+            final StringBuilder term = new StringBuilder("q");
+
+            for (int idx = 0; idx < 1500; idx++) {
+                term.append('a');
+                chain.add("c", term.toString());
+            }
+            chain.add("c", "b", "r");
+            chain.write(3);
+            for (String engine : ENGINES) {
+                final PreviousTerm previous = chain.open(engine, "c");
+                try {
+                    final QueryStats stats = new QueryStats();
+                    final Collector sink = new Collector();
+
+                    try (PreviousTerm.Snapshot snap = previous.snapshot(
+                                                             TestIndex.NAME)) {
+                        assertNotNull(snap.stream("qb", fields, false, 10,
+                                        QueryOptions.DEFAULT, sink, stats));
+                    }
+                    assertEquals(engine,
+                                 chain.previous(fields, "qb", 10, 1, null),
+                                 sink.terms);
+                    if (!engine.equals("dictionary")) {
+                        assertTrue(engine, stats.rounds > 0);
+                        assertTrue(engine, stats.fallbacks > 0);
+                    }
+                    for (int max : new int[] {1, 300, 2000}) {
+                        assertEquals(engine,
+                               chain.previous(fields, "qb", max, 1, null),
+                               previous.getPreviousTerms(TestIndex.NAME, "qb",
+                                                                fields, max));
+                    }
+                } finally {
+                    previous.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Guarda os termos recebidos
+     */
+    static class Collector implements PreviousTerm.TermSink {
+        final List<String> terms = new ArrayList<>();
+        final Map<String,long[]> freqs = new HashMap<>();
+
+        @Override
+        public void term(final String term) {
+            terms.add(term);
+        }
+
+        @Override
+        public void term(final String term,
+                         final long docFreq,
+                         final long totalTermFreq) {
+            terms.add(term);
+            freqs.put(term, new long[] {docFreq, totalTermFreq});
+        }
+    }
+}
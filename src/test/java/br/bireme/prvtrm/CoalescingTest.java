@@ -0,0 +1,221 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Consultas identicas e simultaneas (single-flight): as que chegam enquanto
+ * a primeira (lider) esta em andamento recebem a pagina dela; se a lider
+ * falhar, cada uma executa sozinha e recebe a sua propria pagina.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class CoalescingTest {
+    private static final String[] FIELDS = {"f1", "f2"};
+    private static final Set<String> QFIELDS = Collections.singleton("f1");
+    private static final int WAITERS = 4;
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(31, 2000, 3, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    /**
+     * Consulta cujo destino para no 'begin()' ate que 'release' seja
+     * liberado e entao, se 'fail' for true, falha
+     */
+    private static final class Leader extends BackwardCursorTest.Collector {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final boolean fail;
+
+        Leader(final boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void begin() throws IOException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            if (fail) {
+                throw new IOException("leader failed");
+            }
+        }
+    }
+
+    /**
+     * Consulta executada numa thread propria
+     */
+    private static final class Query extends Thread {
+        final PreviousTerm previous;
+        final BackwardCursorTest.Collector sink;
+        final QueryStats stats = new QueryStats();
+        Throwable error;
+
+        Query(final PreviousTerm previous,
+              final BackwardCursorTest.Collector sink) {
+            this.previous = previous;
+            this.sink = sink;
+        }
+
+        @Override
+        public void run() {
+            try {
+                previous.stream(TestIndex.NAME, "c", QFIELDS, true, 10,
+                                          QueryOptions.DEFAULT, sink, stats);
+            } catch (IOException | RuntimeException | AssertionError ex) {
+                error = ex;
+            }
+        }
+    }
+
+    /**
+     * Inicia a lider e as consultas identicas e espera ate que todas estas
+     * estejam paradas esperando pela lider
+     */
+    private static List<Query> start(final PreviousTerm previous,
+                                     final Query leader,
+                                     final Leader sink) throws Exception {
+        final List<Query> waiters = new ArrayList<>();
+
+        leader.start();
+        sink.started.await();
+        for (int idx = 0; idx < WAITERS; idx++) {
+            final Query query = new Query(previous,
+                                           new BackwardCursorTest.Collector());
+            query.start();
+            waiters.add(query);
+        }
+        final long limit = System.currentTimeMillis() + 10000;
+        for (Query query : waiters) {
+            while (query.getState() != Thread.State.WAITING) {
+                if (System.currentTimeMillis() > limit) {
+                    fail("query is not waiting for the leader");
+                }
+                Thread.sleep(1);
+            }
+        }
+        return waiters;
+    }
+
+    @Test
+    public void identicalQueriesShareThePage() throws Exception {
+        final PreviousTerm previous = index.open("serial", FIELDS);
+        try {
+            final Leader sink = new Leader(false);
+            final Query leader = new Query(previous, sink);
+            final List<Query> waiters = start(previous, leader, sink);
+            final List<String> expected = index.next(QFIELDS, "c", 10, 1,
+                                                                         null);
+            int coalesced = 0;
+
+            sink.release.countDown();
+            leader.join();
+            assertNull(leader.error);
+            assertFalse(leader.stats.coalesced);
+            assertEquals(expected, sink.terms);
+            for (Query query : waiters) {
+                query.join();
+                assertNull(query.error);
+                assertEquals(expected, query.sink.terms);
+                if (query.stats.coalesced) {
+                    coalesced++;
+                }
+            }
+            assertEquals(WAITERS, coalesced);
+
+            // sem a lider em andamento, a consulta executa sozinha
+            final Query alone = new Query(previous,
+                                           new BackwardCursorTest.Collector());
+            alone.run();
+            assertFalse(alone.stats.coalesced);
+            assertEquals(expected, alone.sink.terms);
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void failedLeaderReleasesWaiters() throws Exception {
+        final PreviousTerm previous = index.open("serial", FIELDS);
+        try {
+            final Leader sink = new Leader(true);
+            final Query leader = new Query(previous, sink);
+            final List<Query> waiters = start(previous, leader, sink);
+            final List<String> expected = index.next(QFIELDS, "c", 10, 1,
+                                                                         null);
+
+            sink.release.countDown();
+            leader.join();
+            assertTrue(leader.error instanceof IOException);
+            assertEquals("leader failed", leader.error.getMessage());
+            for (Query query : waiters) {
+                query.join();
+                // a falha da lider nao e repassada: cada uma executa sozinha
+                assertNull(query.error);
+                assertFalse(query.stats.coalesced);
+                assertEquals(expected, query.sink.terms);
+            }
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void coalescingDisabled() throws Exception {
+        final PreviousTerm previous = index.open("serial", FIELDS);
+        try {
+            previous.setCoalescing(false);
+
+            final Leader sink = new Leader(false);
+            final Query leader = new Query(previous, sink);
+            final Query other = new Query(previous,
+                                           new BackwardCursorTest.Collector());
+
+            leader.start();
+            sink.started.await();
+            other.start();
+            other.join();      // nao espera pela lider
+            sink.release.countDown();
+            leader.join();
+            assertNull(other.error);
+            assertFalse(other.stats.coalesced);
+            assertEquals(index.next(QFIELDS, "c", 10, 1, null),
+                                                             other.sink.terms);
+        } finally {
+            previous.close();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Ordem colada (CollatedDictionary), que ignora acentos e maiusculas,
+ * comparada com a ordenacao dos termos por um Collator (e, entre termos
+ * equivalentes, pela ordem dos bytes).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class CollatedOrderTest {
+    private static final String[] FIELDS = {"c1", "c2"};
+    private static final String[] WORDS = {"acao", "ação", "AÇÃO", "Acao",
+        "ábaco", "abaco", "cor", "Cór", "coração", "élan", "elan", "niño",
+        "nino", "NINO", "zebra", "Zé", "ze", "ca", "çá", "a", "Á", "b"};
+    // ordem colada dos termos de cada conjunto de campos
+    private static final Map<Set<String>,List<String>> orders =
+                                                              new HashMap<>();
+
+    private static TestIndex index;
+    private static Collator collator;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        final Random rnd = new Random(15);
+
+        collator = CollatedDictionary.newCollator(Locale.forLanguageTag(
+                                      PreviousTerm.DEFAULT_COLLATION_LOCALE));
+        index = new TestIndex();
+        for (int idx = 0; idx < 3000; idx++) {
+            final Map<String,List<String>> doc = new HashMap<>();
+            for (String field : FIELDS) {
+                final List<String> values = new ArrayList<>();
+                if (rnd.nextBoolean()) {
+                    values.add(WORDS[rnd.nextInt(WORDS.length)] +
+                               ((rnd.nextInt(3) == 0) ? ""
+                                   : " " + WORDS[rnd.nextInt(WORDS.length)]));
+                }
+                doc.put(field, values);
+            }
+            index.add(doc);
+        }
+        index.write(5);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    /**
+     * @return a chave de ordenacao de 'text' sem os terminadores dos niveis
+     * secundario e terciario, de forma que a chave de um prefixo seja prefixo
+     * da chave do texto
+     */
+    private static byte[] key(final String text) {
+        final byte[] key = collator.getCollationKey(text).toByteArray();
+        int len = key.length;
+
+        while ((len >= 2) && (key[len - 1] == 0) && (key[len - 2] == 0)) {
+            len -= 2;
+        }
+        return Arrays.copyOf(key, len);
+    }
+
+    private static boolean startsWith(final byte[] key,
+                                      final byte[] prefix) {
+        return (key.length >= prefix.length) &&
+               Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * @return os termos da ordem colada a partir de 'init' (inclusive, com
+     * todos os termos equivalentes a ele) na direcao 'next'
+     */
+    private static List<String> expected(final Set<String> fields,
+                                         final String init,
+                                         final boolean next,
+                                         final int max,
+                                         final int minDocFreq,
+                                         final String prefix) {
+        final List<String> all = new ArrayList<>(orders.computeIfAbsent(
+                          fields, k -> index.collated(k, collator::compare)));
+        final byte[] ikey = key(init);
+        final byte[] pkey = (prefix == null) ? null : key(prefix);
+        final List<String> ret = new ArrayList<>();
+
+        if (!next) {
+            Collections.reverse(all);
+        }
+        for (String term : all) {
+            final byte[] tkey = key(term);
+            final int cmp = Arrays.compareUnsigned(tkey, ikey);
+
+            if ((next ? (cmp >= 0) : (cmp <= 0)) &&
+                ((pkey == null) || startsWith(tkey, pkey)) &&
+                (index.docFreq(fields, term) >= minDocFreq)) {
+                ret.add(term);
+                if (ret.size() == max) {
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void dictionaryOrder() throws IOException {
+        try (Directory directory = FSDirectory.open(index.getDir());
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            for (String field : FIELDS) {
+                final TermDictionary terms = TermDictionary.build(field,
+                                MultiTerms.getTerms(reader, field).iterator());
+                final CollatedDictionary dict = CollatedDictionary.build(
+                                                             terms, collator);
+                final List<String> expected = index.collated(
+                              Collections.singleton(field), collator::compare);
+
+                assertEquals(expected.size(), dict.size());
+                assertTrue(dict.ramBytesUsed() > 0);
+                for (int pos = 0; pos < dict.size(); pos++) {
+                    final String term = expected.get(pos);
+                    final BytesRef bytes = new BytesRef(term);
+                    final byte[] tkey = dict.key(term);
+
+                    assertEquals(term, terms.term(dict.ord(pos))
+                                                             .utf8ToString());
+                    assertTrue(Arrays.equals(key(term), tkey));
+                    assertEquals(term, pos, dict.ceil(tkey, bytes));
+                    assertEquals(term, pos, dict.floor(tkey, bytes));
+                    assertTrue(dict.ceil(tkey) <= pos);
+                    assertTrue(dict.floor(tkey) >= pos);
+                }
+                assertEquals(0, dict.ceil(new byte[0]));
+                assertEquals(-1, dict.floor(new byte[0]));
+            }
+        }
+    }
+
+    @Test
+    public void collatedPages() throws IOException {
+        final Set<String> all = new HashSet<>(Arrays.asList(FIELDS));
+
+        for (boolean withDict : new boolean[] {false, true}) {
+            final Map<String,Set<String>> dict = withDict
+                       ? Collections.singletonMap(TestIndex.NAME,
+                                                Collections.singleton("c1"))
+                       : Collections.emptyMap();
+            final PreviousTerm previous = new PreviousTerm.Builder(
+                        index.info(), 10).dictFields(dict)
+                        .collatedFields(Collections.singletonMap(
+                                                     TestIndex.NAME, all))
+                        .build();
+            try {
+                final Random rnd = new Random(16);
+
+                for (int it = 0; it < 300; it++) {
+                    final Set<String> fields = new HashSet<>();
+                    for (String field : FIELDS) {
+                        if (rnd.nextBoolean()) {
+                            fields.add(field);
+                        }
+                    }
+                    if (fields.isEmpty()) {
+                        fields.add("c2");
+                    }
+                    final String init = WORDS[rnd.nextInt(WORDS.length)];
+                    final boolean next = rnd.nextBoolean();
+                    final int size = 1 + rnd.nextInt(12);
+                    final int minDocFreq = (rnd.nextInt(4) == 0) ? 2 : 1;
+                    final String prefix = (rnd.nextInt(3) == 0)
+                        ? WORDS[rnd.nextInt(WORDS.length)].substring(0, 1)
+                        : null;
+                    final QueryOptions options = new QueryOptions(
+                                rnd.nextBoolean(), minDocFreq, prefix, true);
+                    final List<String> got = new ArrayList<>();
+                    PreviousTerm.Page page = previous.getPage(TestIndex.NAME,
+                                          init, fields, next, size, options);
+
+                    got.addAll(page.getTerms());
+                    for (int pg = 1; (pg < 3) &&
+                                     (page.getContinuation() != null); pg++) {
+                        page = previous.getPage(Continuation.decode(
+                                      page.getContinuation().encode()), size);
+                        got.addAll(page.getTerms());
+                    }
+                    assertEquals(init + " " + fields + " " + next + " " +
+                                 prefix, expected(fields, init, next,
+                                         3 * size, minDocFreq, prefix), got);
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void fieldWithoutCollatedView() throws IOException {
+        final PreviousTerm previous = new PreviousTerm.Builder(index.info(),
+                 10).collatedFields(Collections.singletonMap(TestIndex.NAME,
+                                      Collections.singleton("c2"))).build();
+        try {
+            previous.getPage(TestIndex.NAME, "a",
+                    new HashSet<>(Arrays.asList(FIELDS)), true, 5,
+                    new QueryOptions(false, 1, null, true));
+            fail("collated query accepted without collated view");
+        } catch (IOException ex) {
+            // esperado
+        } finally {
+            previous.close();
+        }
+    }
+}
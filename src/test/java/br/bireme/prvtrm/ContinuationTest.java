@@ -0,0 +1,177 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Codificacao do estado de uma listagem (Continuation) em um token: ida e
+ * volta sem perdas e rejeicao, sempre com IOException, dos tokens
+ * malformados.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class ContinuationTest {
+    static Continuation create(final String index,
+                               final QueryOptions options,
+                               final long version) {
+        final Set<String> fields = new HashSet<>(Arrays.asList("f1", "f2",
+                                                                       "f3"));
+        final Map<String,BytesRef> terms = new HashMap<>();
+        final Map<String,Integer> ords = new HashMap<>();
+
+        terms.put("f1", new BytesRef("ação"));
+        ords.put("f1", 17);
+        terms.put("f2", new BytesRef(""));    // termo vazio
+        ords.put("f2", -1);                   // f3 esgotado
+
+        return new Continuation(index, fields, false, options, version, terms,
+                                                                         ords);
+    }
+
+    static byte[] bytes(final String token) {
+        return Base64.getUrlDecoder().decode(token);
+    }
+
+    static String token(final byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    static void assertInvalid(final String token) {
+        try {
+            Continuation.decode(token);
+            fail("invalid token accepted: " + token);
+        } catch (IOException ex) {
+            // esperado
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (QueryOptions options : new QueryOptions[] {
+                    QueryOptions.DEFAULT, new QueryOptions(true, 3),
+                    new QueryOptions(false, 1, "pré"),
+                    new QueryOptions(true, 2, "ab", true)}) {
+            final Continuation cont = create("idx", options, 42);
+            final String token = cont.encode();
+            final Continuation decoded = Continuation.decode(token);
+
+            assertEquals("idx", decoded.getIndex());
+            assertEquals(cont.getFields(), decoded.getFields());
+            assertEquals(false, decoded.isNext());
+            assertEquals(options, decoded.getOptions());
+            assertEquals(42, decoded.getVersion());
+            assertEquals(new BytesRef("ação"), decoded.getTerm("f1"));
+            assertEquals(17, decoded.getOrd("f1"));
+            assertEquals(new BytesRef(""), decoded.getTerm("f2"));
+            assertEquals(-1, decoded.getOrd("f2"));
+            assertNull(decoded.getTerm("f3"));
+            assertEquals(token, decoded.encode());
+            // o token pode ser usado em uma URL sem ser escapado
+            assertFalse(token, token.matches(".*[+/=].*"));
+        }
+    }
+
+    @Test
+    public void malformedTokens() throws IOException {
+        final byte[] valid = bytes(create("idx", new QueryOptions(true, 2,
+                                                          "ab"), 7).encode());
+
+        assertInvalid(null);
+        assertInvalid("");
+        assertInvalid("!!!");
+        assertInvalid("a b+c/");
+        // cada prefixo do token e invalido
+        for (int len = 0; len < valid.length; len++) {
+            assertInvalid(token(Arrays.copyOf(valid, len)));
+        }
+        // bytes a mais no final
+        assertInvalid(token(Arrays.copyOf(valid, valid.length + 1)));
+
+        final byte[] format = valid.clone();
+        format[0] = 2;
+        assertInvalid(token(format));
+
+        final byte[] zero = valid.clone();   // nenhum indice
+        zero[1] = zero[2] = zero[3] = zero[4] = 0;
+        assertInvalid(token(zero));
+
+        final byte[] huge = valid.clone();   // mais indices que bytes
+        huge[1] = 0x7f;
+        assertInvalid(token(huge));
+
+        // bytes aleatorios nunca provocam outra excecao
+        final Random rnd = new Random(12);
+        for (int it = 0; it < 2000; it++) {
+            final byte[] noise = valid.clone();
+            noise[rnd.nextInt(noise.length)] = (byte)rnd.nextInt(256);
+            try {
+                Continuation.decode(token(noise));
+            } catch (IOException ex) {
+                // esperado ou nao, mas sempre IOException
+            }
+        }
+    }
+
+    /**
+     * @return um token de um unico campo cujo termo tem o tamanho 'len' e
+     * os bytes 'term'
+     */
+    private static String token(final int len,
+                                final byte[] term) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(1);           // formato
+            out.writeInt(1);            // um indice
+            out.writeUTF("idx");
+            out.writeBoolean(true);     // next
+            out.writeBoolean(false);    // freqs
+            out.writeInt(1);            // minDocFreq
+            out.writeBoolean(false);    // sem prefixo
+            out.writeBoolean(false);    // nao colado
+            out.writeLong(1);           // versao
+            out.writeInt(1);            // um campo
+            out.writeUTF("f1");
+            out.writeBoolean(true);     // com termo
+            out.writeInt(len);
+            out.write(term);
+            out.writeInt(-1);           // sem posicao
+        }
+        return token(bytes.toByteArray());
+    }
+
+    @Test
+    public void invalidTermLength() throws IOException {
+        final byte[] term = {'a', 'b'};
+
+        assertEquals(new BytesRef("ab"),
+                      Continuation.decode(token(2, term)).getTerm("f1"));
+        assertInvalid(token(-5, term));
+        assertInvalid(token(3, term));
+        assertInvalid(token(1, term));
+        assertInvalid(token(0x10000000, term));
+    }
+}
@@ -0,0 +1,150 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Consultas com limite de tempo: ao atingi-lo a pagina e parcial
+ * ('QueryStats.partial'), tem ao menos um termo e o seu estado continua a
+ * listagem sem perder nem repetir termos. Paginas parciais nao vao para o
+ * cache.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class DeadlineTest {
+    private static final String[] FIELDS = {"f1", "f2"};
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(41, 400, 4, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    /**
+     * @return contadores de uma consulta cujo limite de tempo ja passou
+     */
+    private static QueryStats expired() {
+        final QueryStats stats = new QueryStats();
+
+        stats.deadline = System.nanoTime();
+        return stats;
+    }
+
+    @Test
+    public void partialPagesContinueTheListing() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(42);
+            final PreviousTerm previous = index.open(engine, FIELDS);
+            int partial = 0;
+            try {
+                for (int it = 0; it < 60; it++) {
+                    final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                    final String init = TestIndex.randomInit(rnd);
+                    final boolean next = rnd.nextBoolean();
+                    final int size = 2 + rnd.nextInt(8);
+                    final QueryOptions options = new QueryOptions(
+                                                 rnd.nextBoolean(), 1, null);
+                    final List<String> expected = next
+                        ? index.next(fields, init, Integer.MAX_VALUE, 1, null)
+                        : index.previous(fields, init, Integer.MAX_VALUE, 1,
+                                                                         null);
+                    final String msg = engine + " " + init + " " + fields +
+                                                                   " " + next;
+                    final List<String> got = new ArrayList<>();
+                    BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+                    QueryStats stats = expired();
+                    Continuation cont = previous.stream(TestIndex.NAME, init,
+                                    fields, next, size, options, sink, stats);
+
+                    // algumas paginas parciais e o restante sem limite
+                    for (int pg = 0; ; pg++) {
+                        if (got.size() < expected.size()) {
+                            assertFalse(msg, sink.terms.isEmpty());
+                        }
+                        if (stats.partial) {
+                            assertNotNull(msg, cont);
+                            partial++;
+                        } else if (cont != null) {
+                            assertEquals(msg, size, sink.terms.size());
+                        }
+                        got.addAll(sink.terms);
+                        if (cont == null) {
+                            break;
+                        }
+                        sink = new BackwardCursorTest.Collector();
+                        stats = (pg < 4) ? expired() : new QueryStats();
+                        cont = previous.stream(Continuation.decode(
+                                           cont.encode()), size, sink, stats);
+                    }
+                    assertEquals(msg, expected, got);
+                }
+            } finally {
+                previous.close();
+            }
+            assertTrue(engine, partial > 0);
+        }
+    }
+
+    @Test
+    public void partialPagesAreNotCached() throws IOException {
+        final PreviousTerm previous = index.open("serial", FIELDS);
+        try {
+            previous.setCacheSize(1 << 20);
+
+            final Set<String> fields = TestIndex.randomFields(new Random(43),
+                                                                      FIELDS);
+            final BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+            final QueryStats stats = expired();
+
+            assertNotNull(previous.stream(TestIndex.NAME, "b", fields, true,
+                                  10, QueryOptions.DEFAULT, sink, stats));
+            assertTrue(stats.partial);
+            assertEquals(1, sink.terms.size());
+            assertEquals(0, previous.getCache().getEntries());
+
+            // a mesma consulta sem limite e completa e vai para o cache
+            final BackwardCursorTest.Collector full =
+                                           new BackwardCursorTest.Collector();
+            final QueryStats fstats = new QueryStats();
+
+            previous.stream(TestIndex.NAME, "b", fields, true, 10,
+                                       QueryOptions.DEFAULT, full, fstats);
+            assertFalse(fstats.partial);
+            assertFalse(fstats.cacheHit);
+            assertEquals(index.next(fields, "b", 10, 1, null), full.terms);
+            assertEquals(1, previous.getCache().getEntries());
+        } finally {
+            previous.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paginas com as frequencias dos termos (QueryOptions.isFreqs()) e com o
+ * filtro minDocFreq, inclusive quando continuadas por um Continuation.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class DocFreqTest {
+    private static final String[] FIELDS = {"f1", "f2", "f3"};
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(9, 5000, 5, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void freqsAndMinDocFreq() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(10);
+            final PreviousTerm previous = index.open(engine, "f1", "f2");
+            try {
+                for (int it = 0; it < 200; it++) {
+                    final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                    final String init = TestIndex.randomInit(rnd);
+                    final boolean next = rnd.nextBoolean();
+                    final int max = 1 + rnd.nextInt(40);
+                    final int minDocFreq = 1 + rnd.nextInt(6);
+                    final PreviousTerm.Page page = previous.getPage(
+                                  TestIndex.NAME, init, fields, next, max,
+                                  new QueryOptions(true, minDocFreq));
+                    final List<String> terms = page.getTerms();
+                    final String msg = engine + " " + init + " " + fields +
+                                                           " " + minDocFreq;
+
+                    assertEquals(msg, next
+                        ? index.next(fields, init, max, minDocFreq, null)
+                        : index.previous(fields, init, max, minDocFreq, null),
+                        terms);
+                    assertTrue(page.hasFreqs());
+                    for (int pos = 0; pos < terms.size(); pos++) {
+                        final String term = terms.get(pos);
+
+                        assertEquals(msg, index.docFreq(fields, term),
+                                                        page.getDocFreq(pos));
+                        assertEquals(msg, index.totalTermFreq(fields, term),
+                                                  page.getTotalTermFreq(pos));
+                        assertTrue(page.getDocFreq(pos) >= minDocFreq);
+                    }
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void minDocFreqWithoutFreqs() throws IOException {
+        final PreviousTerm previous = index.open("serial");
+        try {
+            final Set<String> fields = new HashSet<>();
+            fields.add("f1");
+            fields.add("f3");
+            final PreviousTerm.Page page = previous.getPage(TestIndex.NAME,
+                     "b", fields, true, 30, new QueryOptions(false, 3));
+
+            assertFalse(page.hasFreqs());
+            assertEquals(index.next(fields, "b", 30, 3, null),
+                                                              page.getTerms());
+            try {
+                page.getDocFreq(0);
+                throw new AssertionError("page without frequencies");
+            } catch (IllegalStateException ex) {
+                // esperado
+            }
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void continuationKeepsOptions() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(11);
+            final PreviousTerm previous = index.open(engine, "f2");
+            try {
+                for (int it = 0; it < 60; it++) {
+                    final Set<String> fields = TestIndex.randomFields(rnd,
+                                                                      FIELDS);
+                    final String init = TestIndex.randomInit(rnd);
+                    final boolean next = rnd.nextBoolean();
+                    final int size = 1 + rnd.nextInt(9);
+                    final int minDocFreq = 1 + rnd.nextInt(4);
+                    final QueryOptions options = new QueryOptions(true,
+                                                                 minDocFreq);
+                    final List<String> expected = next
+                        ? index.next(fields, init, 10 * size, minDocFreq, null)
+                        : index.previous(fields, init, 10 * size, minDocFreq,
+                                                                         null);
+                    final List<String> got = new ArrayList<>();
+                    PreviousTerm.Page page = previous.getPage(TestIndex.NAME,
+                                         init, fields, next, size, options);
+
+                    got.addAll(page.getTerms());
+                    for (int pg = 1; (pg < 10) &&
+                                     (page.getContinuation() != null); pg++) {
+                        final Continuation cont = Continuation.decode(
+                                             page.getContinuation().encode());
+
+                        assertEquals(options, cont.getOptions());
+                        assertEquals(next, cont.isNext());
+                        assertEquals(fields, cont.getFields());
+                        page = previous.getPage(cont, size);
+                        assertTrue(page.hasFreqs());
+                        for (int pos = 0; pos < page.getTerms().size(); pos++) {
+                            assertEquals(index.docFreq(fields,
+                                                   page.getTerms().get(pos)),
+                                                   page.getDocFreq(pos));
+                        }
+                        got.addAll(page.getTerms());
+                    }
+                    assertEquals(engine + " " + init + " " + fields,
+                                                             expected, got);
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+}
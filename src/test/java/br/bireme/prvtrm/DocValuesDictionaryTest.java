@@ -0,0 +1,191 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Dicionario formado pelos doc values (SORTED_SET) de um campo
+ * (DocValuesDictionary): consultas concorrentes, arquivos de navegacao
+ * obsoletos e as paginas obtidas com ele, comparadas com o TreeSet dos
+ * termos (a comparacao do dicionario com os termos esta em
+ * TermDictionaryTest).
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class DocValuesDictionaryTest {
+    private static final String[] FIELDS = {"d1", "d2"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(17, 4000, 9, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void concurrentLookups() throws Exception {
+        try (Directory directory = FSDirectory.open(index.getDir());
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            final DocValuesDictionary dict = DocValuesDictionary.build(reader,
+                                                                         "d1");
+            final List<BytesRef> sorted = new ArrayList<>(index.terms("d1"));
+            final ExecutorService pool = Executors.newFixedThreadPool(8);
+            final List<Future<Void>> tasks = new ArrayList<>();
+
+            try {
+                for (int thread = 0; thread < 8; thread++) {
+                    final Random rnd = new Random(thread);
+                    tasks.add(pool.submit(() -> {
+                        for (int it = 0; it < 3000; it++) {
+                            final int ord = rnd.nextInt(sorted.size());
+                            assertEquals(sorted.get(ord), dict.term(ord));
+                            assertEquals(ord, dict.ceil(sorted.get(ord)));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<Void> task : tasks) {
+                    task.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void fieldWithoutDocValues() throws IOException {
+        try (TestIndex plain = new TestIndex()) {
+            plain.add("p", "a", "b");
+            plain.write(1);
+            try (Directory directory = FSDirectory.open(plain.getDir());
+                 DirectoryReader reader = DirectoryReader.open(directory)) {
+                DocValuesDictionary.build(reader, "p");
+                fail("field without doc values accepted");
+            } catch (IOException ex) {
+                // esperado
+            }
+        }
+    }
+
+    @Test
+    public void staleBrowseFileKeepsDocValues() throws IOException {
+        final Path browse = Files.createTempDirectory("prvtrm");
+
+        try (TestIndex stale = new TestIndex("d")) {
+            stale.add("d", "a", "b");
+            stale.add("h", "c", "d");
+            stale.write(1);
+            try (Directory directory = FSDirectory.open(stale.getDir());
+                 DirectoryReader reader = DirectoryReader.open(directory);
+                 Directory bdir = FSDirectory.open(browse)) {
+                BrowseFile.write(reader, "d", bdir, false);
+                BrowseFile.write(reader, "h", bdir, false);
+            }
+            stale.write(1);     // outro commit: os arquivos ficam obsoletos
+
+            final PreviousTerm previous = new PreviousTerm.Builder(
+                     stale.info(), 10).browseDirs(Collections.singletonMap(
+                                          TestIndex.NAME, browse.toString()))
+                     .docValuesFields(Collections.singletonMap(TestIndex.NAME,
+                                              Collections.singleton("d")))
+                     .build();
+            try {
+                final Map<String,TermDictionary> dicts =
+                                     previous.getDictionaries(TestIndex.NAME);
+
+                // o campo com doc values nao e copiado para o heap
+                assertTrue(dicts.get("d") instanceof DocValuesDictionary);
+                // o campo sem outro dicionario e construido no heap
+                assertFalse(dicts.get("h") instanceof BrowseFile.Mapped);
+                assertTrue(dicts.get("h").hasFreqs());
+                assertEquals(Arrays.asList("c", "d"), previous.getNextTerms(
+                                  TestIndex.NAME, "a",
+                                  Collections.singleton("h"), 10));
+            } finally {
+                previous.close();
+            }
+        } finally {
+            TestIndex.delete(browse);
+        }
+    }
+
+    @Test
+    public void docValuesPages() throws IOException {
+        final Set<String> all = new HashSet<>(Arrays.asList(FIELDS));
+        final PreviousTerm previous = index.open("docvalues", FIELDS);
+        try {
+            final Random rnd = new Random(19);
+
+            for (int it = 0; it < 300; it++) {
+                final Set<String> fields = rnd.nextBoolean() ? all
+                        : Collections.singleton(FIELDS[rnd.nextInt(2)]);
+                final String term = TestIndex.randomTerm(rnd).trim();
+                final String init = term.isEmpty() ? "c" : term;
+                final boolean next = rnd.nextBoolean();
+                final int size = 1 + rnd.nextInt(10);
+                final boolean freqs = rnd.nextInt(4) == 0;
+                final String prefix = (rnd.nextInt(4) == 0)
+                        ? init.substring(0, init.offsetByCodePoints(0, 1))
+                        : null;
+                final QueryOptions options = new QueryOptions(freqs,
+                                                     freqs ? 2 : 1, prefix);
+                final List<String> got = new ArrayList<>();
+                PreviousTerm.Page page = previous.getPage(TestIndex.NAME,
+                                          init, fields, next, size, options);
+
+                got.addAll(page.getTerms());
+                for (int pg = 1; (pg < 4) &&
+                                 (page.getContinuation() != null); pg++) {
+                    page = previous.getPage(Continuation.decode(
+                                      page.getContinuation().encode()), size);
+                    got.addAll(page.getTerms());
+                }
+                assertEquals(init + " " + fields + " " + next, next
+                    ? index.next(fields, init, 4 * size, freqs ? 2 : 1, prefix)
+                    : index.previous(fields, init, 4 * size, freqs ? 2 : 1,
+                                                                      prefix),
+                    got);
+            }
+        } finally {
+            previous.close();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Consultas federadas (varios indices separados por ',' em 'sdir'): uniao
+ * dos termos dos indices, sem repeticoes e com as frequencias somadas,
+ * comparada com a uniao dos TreeSet de cada indice, e os tokens dessas
+ * consultas.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class FederatedTest {
+    private static final String[] FIELDS = {"f1", "f2"};
+    private static final String[] NAMES = {"a", "b", "c"};
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    private static final Map<String,TestIndex> indexes = new HashMap<>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        for (int pos = 0; pos < NAMES.length; pos++) {
+            indexes.put(NAMES[pos], TestIndex.random(20 + pos,
+                                               1000 * (pos + 1), 3, FIELDS));
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        for (TestIndex index : indexes.values()) {
+            index.close();
+        }
+    }
+
+    private static PreviousTerm open(final String engine)
+                                                            throws IOException {
+        final Map<String,String> info = new HashMap<>();
+        final Map<String,Set<String>> dict = new HashMap<>();
+
+        for (Map.Entry<String,TestIndex> entry : indexes.entrySet()) {
+            info.put(entry.getKey(), entry.getValue().getDir().toString());
+            dict.put(entry.getKey(), new HashSet<>(Arrays.asList(FIELDS)));
+        }
+        final PreviousTerm.Builder builder = new PreviousTerm.Builder(info,
+                                                                           10);
+        final PreviousTerm previous;
+
+        switch (engine) {
+            case "dictionary":
+                previous = builder.dictFields(dict).build();
+                break;
+            case "parallel":
+                previous = builder.build();
+                previous.setParallelism(4, 1);
+                break;
+            default:
+                previous = builder.build();
+        }
+        return previous;
+    }
+
+    private static long docFreq(final Set<String> names,
+                                final Set<String> fields,
+                                final String term) {
+        long freq = 0;
+
+        for (String name : names) {
+            freq += indexes.get(name).docFreq(fields, term);
+        }
+        return freq;
+    }
+
+    /**
+     * @return os termos da uniao dos indices 'names' a partir de 'init'
+     * (inclusive) na direcao 'next'
+     */
+    private static List<String> expected(final Set<String> names,
+                                         final Set<String> fields,
+                                         final String init,
+                                         final boolean next,
+                                         final int max,
+                                         final int minDocFreq) {
+        final TreeSet<BytesRef> all = new TreeSet<>();
+        final List<String> ret = new ArrayList<>();
+
+        for (String name : names) {
+            for (String field : fields) {
+                all.addAll(indexes.get(name).terms(field));
+            }
+        }
+        final BytesRef from = new BytesRef(init);
+        final NavigableSet<BytesRef> range = next
+                                             ? all.tailSet(from, true)
+                                             : all.headSet(from, true)
+                                                          .descendingSet();
+        for (BytesRef term : range) {
+            if (ret.size() == max) {
+                break;
+            }
+            final String str = term.utf8ToString();
+            if (docFreq(names, fields, str) >= minDocFreq) {
+                ret.add(str);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return 'sdir' com dois ou tres indices, fora de ordem, as vezes com
+     * repeticoes e espacos, e em 'names' os indices que ele representa
+     */
+    private static String randomSdir(final Random rnd,
+                                     final Set<String> names) {
+        final List<String> list = new ArrayList<>();
+
+        while (names.size() < 2) {
+            final String name = NAMES[rnd.nextInt(NAMES.length)];
+            names.add(name);
+            list.add((rnd.nextInt(4) == 0) ? " " + name + " " : name);
+            if (rnd.nextInt(4) == 0) {
+                list.add(name);
+            }
+        }
+        if (rnd.nextBoolean()) {
+            names.add("c");
+            list.add("c");
+        }
+        Collections.shuffle(list, rnd);
+        return String.join(",", list);
+    }
+
+    @Test
+    public void mergedPages() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(23);
+            final PreviousTerm previous = open(engine);
+            try {
+                for (int it = 0; it < 150; it++) {
+                    final Set<String> names = new TreeSet<>();
+                    final String sdir = randomSdir(rnd, names);
+                    final Set<String> fields = rnd.nextBoolean()
+                          ? new HashSet<>(Arrays.asList(FIELDS))
+                          : Collections.singleton(FIELDS[rnd.nextInt(2)]);
+                    final String term = TestIndex.randomTerm(rnd).trim();
+                    final String init = term.isEmpty() ? "c" : term;
+                    final boolean next = rnd.nextBoolean();
+                    final int size = 1 + rnd.nextInt(10);
+                    final int minDocFreq = (rnd.nextInt(3) == 0) ? 3 : 1;
+                    final QueryOptions options = new QueryOptions(true,
+                                                                 minDocFreq);
+                    final String msg = engine + " " + sdir + " " + init +
+                                             " " + fields + " " + next;
+                    final List<String> got = new ArrayList<>();
+                    PreviousTerm.Page page = previous.getPage(sdir, init,
+                                             fields, next, size, options);
+
+                    for (int pg = 0; ; pg++) {
+                        final List<String> terms = page.getTerms();
+
+                        for (int pos = 0; pos < terms.size(); pos++) {
+                            assertEquals(msg, docFreq(names, fields,
+                                   terms.get(pos)), page.getDocFreq(pos));
+                        }
+                        got.addAll(terms);
+                        if ((pg == 3) || (page.getContinuation() == null)) {
+                            break;
+                        }
+                        final Continuation cont = Continuation.decode(
+                                             page.getContinuation().encode());
+                        assertEquals(String.join(",", names),
+                                                            cont.getIndex());
+                        page = previous.getPage(cont, size);
+                    }
+                    assertEquals(msg, expected(names, fields, init, next,
+                                               4 * size, minDocFreq), got);
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void singleIndexSdir() throws IOException {
+        final PreviousTerm previous = open("serial");
+        try {
+            final Set<String> fields = new HashSet<>(Arrays.asList(FIELDS));
+            final PreviousTerm.Page page = previous.getPage("b, b,", "d",
+                                   fields, true, 20, QueryOptions.DEFAULT);
+
+            assertEquals(expected(Collections.singleton("b"), fields, "d",
+                                              true, 20, 1), page.getTerms());
+            assertNotNull(page.getContinuation());
+            assertEquals("b", page.getContinuation().getIndex());
+            try {
+                previous.getPage("a,zz", "d", fields, true, 20,
+                                                      QueryOptions.DEFAULT);
+                fail("unknown index accepted");
+            } catch (IOException ex) {
+                // esperado
+            }
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void federatedTokens() throws IOException {
+        final PreviousTerm previous = open("serial");
+        try {
+            final Set<String> fields = new HashSet<>(Arrays.asList(FIELDS));
+            final PreviousTerm.Page page = previous.getPage("c,a,b", "d",
+                     fields, false, 5, new QueryOptions(true, 2, null));
+            final String token = page.getContinuation().encode();
+            final Continuation cont = Continuation.decode(token);
+            final List<Continuation> parts = cont.getParts();
+
+            assertEquals("a,b,c", cont.getIndex());
+            assertEquals(3, parts.size());
+            for (int pos = 0; pos < parts.size(); pos++) {
+                final Continuation part = parts.get(pos);
+
+                assertEquals(NAMES[pos], part.getIndex());
+                assertEquals(fields, part.getFields());
+                assertEquals(false, part.isNext());
+                assertEquals(cont.getOptions(), part.getOptions());
+            }
+            assertEquals(token, cont.encode());
+            assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void malformedFederatedTokens() throws IOException {
+        final QueryOptions options = new QueryOptions(true, 2, "ab");
+        final Continuation pa = ContinuationTest.create("a", options, 1);
+        final Continuation pb = ContinuationTest.create("b", options, 2);
+        final Continuation valid = new Continuation(Arrays.asList(pa, pb));
+        final Continuation decoded = Continuation.decode(valid.encode());
+
+        assertEquals("a,b", decoded.getIndex());
+        assertEquals(valid.encode(), decoded.encode());
+
+        // indices fora de ordem ou repetidos
+        ContinuationTest.assertInvalid(new Continuation(Arrays.asList(pb,
+                                                                pa)).encode());
+        ContinuationTest.assertInvalid(new Continuation(Arrays.asList(pa,
+                                                                pa)).encode());
+        // partes com opcoes, direcao ou campos diferentes
+        ContinuationTest.assertInvalid(new Continuation(Arrays.asList(pa,
+                ContinuationTest.create("b", QueryOptions.DEFAULT, 2)))
+                                                                   .encode());
+        final Map<String,BytesRef> terms = new HashMap<>();
+        terms.put("f1", new BytesRef("x"));
+        ContinuationTest.assertInvalid(new Continuation(Arrays.asList(pa,
+                new Continuation("b", pa.getFields(), true, options, 2,
+                                 terms, new HashMap<>()))).encode());
+        ContinuationTest.assertInvalid(new Continuation(Arrays.asList(pa,
+                new Continuation("b", Collections.singleton("f1"), false,
+                            options, 2, terms, new HashMap<>()))).encode());
+
+        // cada prefixo do token e invalido
+        final byte[] bytes = ContinuationTest.bytes(valid.encode());
+        for (int len = 0; len < bytes.length; len++) {
+            ContinuationTest.assertInvalid(ContinuationTest.token(
+                                               Arrays.copyOf(bytes, len)));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Juncao dos termos de varios campos (TermMerger): cada termo aparece uma
+ * unica vez, na ordem dos bytes, com as frequencias somadas em todos os
+ * campos da consulta.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class MultiFieldMergeTest {
+    private static final String[] FIELDS = {"f1", "f2", "f3", "f4"};
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(4, 2500, 6, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void nextPagesMatchForwardScan() throws IOException {
+        for (String engine : ENGINES) {
+            final Random rnd = new Random(5);
+            final PreviousTerm previous = index.open(engine, "f1", "f3");
+            try {
+                for (int it = 0; it < 300; it++) {
+                    final Set<String> fields = new HashSet<>();
+                    for (String field : FIELDS) {
+                        if (rnd.nextBoolean()) {
+                            fields.add(field);
+                        }
+                    }
+                    if (fields.isEmpty()) {
+                        fields.add(FIELDS[rnd.nextInt(FIELDS.length)]);
+                    }
+                    final String term = TestIndex.randomTerm(rnd).trim();
+                    final String init = term.isEmpty() ? "a" : term;
+                    final int max = 1 + rnd.nextInt((rnd.nextInt(4) == 0)
+                                                                  ? 500 : 20);
+
+                    assertEquals(engine + " " + init + " " + fields,
+                                 index.next(fields, init, max, 1, null),
+                                 previous.getNextTerms(TestIndex.NAME, init,
+                                                                 fields, max));
+                }
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void sharedTermsAreMergedAndFreqsSummed() throws IOException {
+        try (TestIndex shared = new TestIndex()) {
+            final Set<String> fields = new HashSet<>(Arrays.asList("a", "b",
+                                                                       "c"));
+            final Map<String,List<String>> doc = new HashMap<>();
+
+            doc.put("a", Arrays.asList("x", "y", "y"));
+            doc.put("b", Arrays.asList("x", "z"));
+            shared.add(doc);
+            shared.add("a", "x", "w");
+            shared.add("b", "y", "y", "y");
+            shared.add("c", "x", "zz");
+            shared.add("c", "v");
+            shared.write(3);
+            for (String engine : ENGINES) {
+                final PreviousTerm previous = shared.open(engine, "a", "b",
+                                                                          "c");
+                try {
+                    for (boolean next : new boolean[] {true, false}) {
+                        final String init = next ? "a" : "zzz";
+                        final PreviousTerm.Page page = previous.getPage(
+                                         TestIndex.NAME, init, fields, next,
+                                         100, new QueryOptions(true, 1));
+                        final List<String> terms = page.getTerms();
+
+                        assertEquals(engine, next
+                                ? shared.next(fields, init, 100, 1, null)
+                                : shared.previous(fields, init, 100, 1, null),
+                                terms);
+                        assertTrue(page.hasFreqs());
+                        for (int pos = 0; pos < terms.size(); pos++) {
+                            assertEquals(engine + " " + terms.get(pos),
+                                   shared.docFreq(fields, terms.get(pos)),
+                                   page.getDocFreq(pos));
+                            assertEquals(engine + " " + terms.get(pos),
+                                   shared.totalTermFreq(fields, terms.get(pos)),
+                                   page.getTotalTermFreq(pos));
+                        }
+                    }
+                    assertEquals(Arrays.asList("x", "y"),
+                            previous.getNextTerms(TestIndex.NAME, "x",
+                                 new HashSet<>(Arrays.asList("a", "b")), 2));
+                } finally {
+                    previous.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listagens restritas aos termos que comecam com um prefixo: os termos fora
+ * do prefixo nao sao retornados nem lidos, e a listagem termina (sem
+ * Continuation) no fim dos termos do prefixo.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class PrefixTest {
+    private static final String[] ENGINES = {"serial", "dictionary",
+                                                                   "parallel"};
+
+    @Test
+    public void prefixPagesMatchScan() throws IOException {
+        final String[] fields = {"f1", "f2"};
+
+        try (TestIndex index = TestIndex.random(13, 3000, 6, fields)) {
+            final Set<String> all = new HashSet<>(Arrays.asList(fields));
+
+            for (String engine : ENGINES) {
+                final Random rnd = new Random(14);
+                final PreviousTerm previous = index.open(engine, fields);
+                try {
+                    for (int it = 0; it < 300; it++) {
+                        final String term = TestIndex.randomTerm(rnd).trim();
+                        final String init = term.isEmpty() ? "d" : term;
+                        final String word = TestIndex.randomTerm(rnd);
+                        final int len = (rnd.nextInt(3) == 0) ? 0
+                                   : Math.min(1 + rnd.nextInt(2),
+                                        word.codePointCount(0, word.length()));
+                        final String prefix = word.substring(0,
+                                            word.offsetByCodePoints(0, len));
+                        final boolean next = rnd.nextBoolean();
+                        final int max = 1 + rnd.nextInt(30);
+                        final String expected = prefix.isEmpty() ? null
+                                                                 : prefix;
+                        final QueryOptions options = new QueryOptions(false,
+                                                                  1, prefix);
+
+                        assertEquals(engine + " " + init + " " + prefix,
+                             next ? index.next(all, init, max, 1, expected)
+                                  : index.previous(all, init, max, 1,
+                                                                   expected),
+                             previous.getPage(TestIndex.NAME, init, all, next,
+                                                   max, options).getTerms());
+                    }
+                } finally {
+                    previous.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void prefixBounds() throws IOException {
+        try (TestIndex index = new TestIndex()) {
+            final Set<String> fields = Collections.singleton("t");
+
+            for (int idx = 0; idx < 2000; idx++) {
+                index.add("t", String.format("a%04d", idx),
+                                                String.format("z%04d", idx));
+            }
+            index.add("t", "m", "ma", "mb", "m中", "m中a", "n");
+            index.write(4);
+            for (String engine : ENGINES) {
+                final PreviousTerm previous = index.open(engine, "t");
+                try {
+                    final QueryOptions options = new QueryOptions(false, 1,
+                                                                         "m");
+                    final List<String> prefixed = Arrays.asList("m", "ma",
+                                                          "mb", "m中", "m中a");
+                    final List<String> reversed = new ArrayList<>(prefixed);
+                    Collections.reverse(reversed);
+
+                    // termo inicial antes, dentro e depois do prefixo
+                    assertEquals(prefixed, previous.getNextTerms(
+                          TestIndex.NAME, "a", fields, 100, options));
+                    assertEquals(Collections.emptyList(), previous
+                          .getPreviousTerms(TestIndex.NAME, "a", fields, 100,
+                                                                    options));
+                    assertEquals(prefixed.subList(2, 5), previous.getNextTerms(
+                          TestIndex.NAME, "mb", fields, 100, options));
+                    assertEquals(reversed.subList(2, 5), previous
+                          .getPreviousTerms(TestIndex.NAME, "mb", fields, 100,
+                                                                    options));
+                    assertEquals(reversed, previous.getPreviousTerms(
+                          TestIndex.NAME, "zzz", fields, 100, options));
+                    assertEquals(Collections.emptyList(), previous
+                          .getNextTerms(TestIndex.NAME, "zzz", fields, 100,
+                                                                    options));
+                    assertEquals(Arrays.asList("m中", "m中a"),
+                            previous.getNextTerms(TestIndex.NAME, "m", fields,
+                                   100, new QueryOptions(false, 1, "m中")));
+
+                    // a listagem termina no fim do prefixo, lendo poucos
+                    // termos fora dele
+                    for (boolean next : new boolean[] {true, false}) {
+                        final QueryStats stats = new QueryStats();
+                        final BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+
+                        try (PreviousTerm.Snapshot snap = previous.snapshot(
+                                                             TestIndex.NAME)) {
+                            assertNull(snap.stream(next ? "a" : "zzz",
+                                       fields, next, 10, options, sink, stats));
+                        }
+                        assertEquals(next ? prefixed : reversed, sink.terms);
+                        assertTrue(engine + " scanned " + stats.scanned,
+                                                         stats.scanned < 100);
+                    }
+                } finally {
+                    previous.close();
+                }
+            }
+        }
+    }
+}
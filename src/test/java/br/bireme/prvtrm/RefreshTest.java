@@ -0,0 +1,159 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reabertura dos indices: as consultas em andamento e os Snapshot terminam
+ * no leitor antigo, que so e fechado quando a ultima referencia a ele e
+ * devolvida, enquanto as novas consultas ja leem o indice alterado.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class RefreshTest {
+    private static final Set<String> FIELDS = Collections.singleton("f");
+
+    /**
+     * @return numero de geracoes abertas do indice segundo as metricas
+     */
+    private static int openGenerations(final PreviousTerm previous) {
+        final StringBuilder out = new StringBuilder();
+        final String prefix = "prvtrm_open_generations{index=\"" +
+                                                       TestIndex.NAME + "\"} ";
+
+        previous.writeMetrics(out);
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Integer.parseInt(line.substring(prefix.length()));
+            }
+        }
+        throw new AssertionError("metric not found");
+    }
+
+    private static List<String> next(final PreviousTerm previous)
+                                                            throws IOException {
+        return previous.getPage(TestIndex.NAME, "a", FIELDS, true, 10,
+                                               QueryOptions.DEFAULT).getTerms();
+    }
+
+    @Test
+    public void inFlightQueryKeepsOldReader() throws IOException {
+        try (TestIndex index = new TestIndex()) {
+            index.add("f", "a", "c", "e");
+            index.write(2);
+
+            final PreviousTerm previous = index.open("serial", "f");
+            try {
+                final int[] refreshed = new int[1];
+                // o indice e alterado e reaberto no meio da consulta
+                final BackwardCursorTest.Collector sink =
+                                          new BackwardCursorTest.Collector() {
+                    @Override
+                    public void term(final String term) {
+                        super.term(term);
+                        if (terms.size() == 1) {
+                            try {
+                                index.add("f", "b", "d");
+                                index.write(2);
+                                refreshed[0] = previous.refresh().size();
+                                assertEquals(2, openGenerations(previous));
+                            } catch (IOException ex) {
+                                throw new IllegalStateException(ex);
+                            }
+                        }
+                    }
+                };
+                previous.stream(TestIndex.NAME, "a", FIELDS, true, 10,
+                                                 QueryOptions.DEFAULT, sink);
+                assertEquals(1, refreshed[0]);
+                assertEquals(Arrays.asList("a", "c", "e"), sink.terms);
+                // a consulta devolveu o leitor antigo, que foi fechado
+                assertEquals(1, openGenerations(previous));
+                assertEquals(Arrays.asList("a", "b", "c", "d", "e"),
+                                                              next(previous));
+                assertTrue(previous.refresh().isEmpty());   // sem alteracoes
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void snapshotKeepsOldReader() throws IOException {
+        try (TestIndex index = new TestIndex()) {
+            index.add("f", "a", "c");
+            index.write(1);
+
+            final PreviousTerm previous = index.open("dictionary", "f");
+            try {
+                try (PreviousTerm.Snapshot snap = previous.snapshot(
+                                                             TestIndex.NAME)) {
+                    index.add("f", "b");
+                    index.write(1);
+                    assertEquals(Collections.singleton(TestIndex.NAME),
+                                                          previous.refresh());
+                    assertEquals(2, openGenerations(previous));
+
+                    final BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+                    snap.stream("a", FIELDS, true, 10, QueryOptions.DEFAULT,
+                                                                        sink);
+                    assertEquals(Arrays.asList("a", "c"), sink.terms);
+                    assertEquals(2, snap.getTermCount("f"));
+                    assertEquals(Arrays.asList("a", "b", "c"), next(previous));
+                    try (PreviousTerm.Snapshot cur = previous.snapshot(
+                                                             TestIndex.NAME)) {
+                        assertNotEquals(snap.getVersion(), cur.getVersion());
+                        assertEquals(3, cur.getTermCount("f"));
+                    }
+                }
+                assertEquals(1, openGenerations(previous));
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    @Test
+    public void periodicRefresh() throws Exception {
+        try (TestIndex index = new TestIndex()) {
+            index.add("f", "a");
+            index.write(1);
+
+            final PreviousTerm previous = index.open("serial", "f");
+            try {
+                // a segunda chamada substitui a tarefa da primeira
+                previous.setRefreshInterval(60);
+                previous.setRefreshInterval(1);
+                index.add("f", "b");
+                index.write(1);
+
+                final long limit = System.currentTimeMillis() + 10000;
+                while (next(previous).size() < 2) {
+                    assertTrue("index not reopened",
+                                        System.currentTimeMillis() < limit);
+                    Thread.sleep(50);
+                }
+                assertEquals(Arrays.asList("a", "b"), next(previous));
+            } finally {
+                previous.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cache de paginas de termos (ResultCache): descarte das paginas de versoes
+ * antigas do indice, inclusive depois de uma reabertura, e o limite de bytes
+ * com a ordem LRU.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class ResultCacheTest {
+    private static final Set<String> FIELDS = Collections.singleton("f");
+
+    private static ResultCache.Key key(final String init) {
+        return new ResultCache.Key(TestIndex.NAME, FIELDS, init, true, 10,
+                                                        QueryOptions.DEFAULT);
+    }
+
+    private static PreviousTerm.Page page(final String... terms) {
+        return new PreviousTerm.Page(Arrays.asList(terms), null, null, null);
+    }
+
+    @Test
+    public void oldVersionsAreDropped() {
+        final ResultCache cache = new ResultCache(1 << 20);
+        final PreviousTerm.Page page = page("a", "b");
+
+        cache.put(key("a"), 1, page);
+        assertSame(page, cache.get(key("a"), 1));
+        assertEquals(1, cache.getHits());
+
+        // o indice foi reaberto: a pagina da versao 1 nao vale mais
+        assertNull(cache.get(key("a"), 2));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+        assertNull(cache.get(key("a"), 1));
+    }
+
+    @Test
+    public void refreshInvalidatesPages() throws IOException {
+        try (TestIndex index = new TestIndex()) {
+            index.add("f", "a", "c");
+            index.write(1);
+
+            final PreviousTerm previous = index.open("serial", "f");
+            try {
+                previous.setCacheSize(1 << 20);
+                final ResultCache cache = previous.getCache();
+                final QueryStats first = new QueryStats();
+                final QueryStats second = new QueryStats();
+
+                query(previous, first);
+                assertEquals(Arrays.asList("a", "c"), query(previous, second));
+                assertFalse(first.cacheHit);
+                assertTrue(second.cacheHit);
+
+                index.add("f", "b");
+                index.write(1);
+                assertEquals(Collections.singleton(TestIndex.NAME),
+                                                          previous.refresh());
+                assertEquals(1, cache.getInvalidations());
+                assertEquals(0, cache.getEntries());
+
+                final QueryStats third = new QueryStats();
+                assertEquals(Arrays.asList("a", "b", "c"),
+                                                     query(previous, third));
+                assertFalse(third.cacheHit);
+            } finally {
+                previous.close();
+            }
+        }
+    }
+
+    private static List<String> query(final PreviousTerm previous,
+                                      final QueryStats stats)
+                                                            throws IOException {
+        final BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+
+        previous.stream(TestIndex.NAME, "a", FIELDS, true, 10,
+                                         QueryOptions.DEFAULT, sink, stats);
+        return sink.terms;
+    }
+
+    @Test
+    public void byteBudgetEvictsLeastRecentlyUsed() {
+        final ResultCache probe = new ResultCache(1 << 20);
+
+        probe.put(key("a"), 1, page("aaaa", "bbbb"));
+        final long size = probe.getBytes();   // todas as entradas sao iguais
+        final ResultCache cache = new ResultCache(3 * size + (size / 2));
+
+        cache.put(key("a"), 1, page("aaaa", "bbbb"));
+        cache.put(key("b"), 1, page("bbbb", "cccc"));
+        cache.put(key("c"), 1, page("cccc", "dddd"));
+        assertEquals(3, cache.getEntries());
+        assertEquals(3 * size, cache.getBytes());
+
+        cache.get(key("a"), 1);               // "b" passa a ser a mais antiga
+        cache.put(key("d"), 1, page("dddd", "eeee"));
+        assertEquals(3, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(key("b"), 1));
+        assertEquals(Arrays.asList("aaaa", "bbbb"),
+                                          cache.get(key("a"), 1).getTerms());
+
+        // substituir uma pagina nao conta o tamanho da anterior
+        cache.put(key("a"), 1, page("aaaa", "bbbb"));
+        assertEquals(3 * size, cache.getBytes());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+        // uma pagina maior que o cache inteiro nao e guardada
+        final String[] big = new String[100];
+        Arrays.fill(big, "zzzzzzzz");
+        cache.put(key("z"), 1, page(big));
+        assertNull(cache.get(key("z"), 1));
+        assertEquals(3, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+    }
+}
@@ -0,0 +1,229 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Dicionarios de termos (em memoria, de doc values e de arquivo de
+ * navegacao) e as consultas por posicao (rank) do PreviousTerm, comparados
+ * com o TreeSet dos termos.
+ *
+ * @author agent
+ * date: 20261017
+ */
+public class TermDictionaryTest {
+    private static final String[] FIELDS = {"f1", "f2"};
+    private static final String[] ENGINES = {"heap", "docvalues", "browse"};
+
+    private static TestIndex index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        index = TestIndex.random(6, 4000, 7, FIELDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        index.close();
+    }
+
+    /**
+     * @return o dicionario de 'field' construido pela implementacao 'engine'
+     * ("heap", "docvalues" ou "browse", este gravado em 'browse')
+     */
+    private static TermDictionary build(final String engine,
+                                        final DirectoryReader reader,
+                                        final String field,
+                                        final Directory browse)
+                                                            throws IOException {
+        switch (engine) {
+            case "docvalues":
+                return DocValuesDictionary.build(reader, field);
+            case "browse":
+                BrowseFile.write(reader, field, browse, true);
+                return BrowseFile.open(browse, BrowseFile.fileName(field),
+                                                 BrowseFile.commitId(reader));
+            default:
+                return TermDictionary.build(field,
+                                MultiTerms.getTerms(reader, field).iterator());
+        }
+    }
+
+    @Test
+    public void dictionaryMatchesSortedTerms() throws IOException {
+        final Path bpath = Files.createTempDirectory("prvtrm");
+
+        try (Directory directory = FSDirectory.open(index.getDir());
+             DirectoryReader reader = DirectoryReader.open(directory);
+             Directory browse = FSDirectory.open(bpath)) {
+            for (String engine : ENGINES) {
+                final Random rnd = new Random(7);
+
+                for (String field : FIELDS) {
+                    final TermDictionary dict = build(engine, reader, field,
+                                                                      browse);
+                    try {
+                        matchesSortedTerms(engine, dict, reader, rnd);
+                    } finally {
+                        if (dict instanceof Closeable) {
+                            ((Closeable)dict).close();
+                        }
+                    }
+                }
+            }
+        } finally {
+            TestIndex.delete(bpath);
+        }
+    }
+
+    private static void matchesSortedTerms(final String engine,
+                                           final TermDictionary dict,
+                                           final DirectoryReader reader,
+                                           final Random rnd)
+                                                            throws IOException {
+        final String field = dict.getField();
+        final List<BytesRef> sorted = new ArrayList<>(index.terms(field));
+        BytesRef scratch = null;
+
+        assertEquals(engine, sorted.size(), dict.size());
+        assertEquals(engine, !"docvalues".equals(engine), dict.hasFreqs());
+        assertTrue(engine, dict.ramBytesUsed() > 0);
+        for (int ord = 0; ord < sorted.size(); ord++) {
+            final BytesRef term = sorted.get(ord);
+
+            assertEquals(engine, term, dict.term(ord));
+            scratch = dict.readTerm(ord, scratch);
+            assertEquals(engine, term, scratch);
+            if (dict.hasFreqs()) {
+                assertEquals(engine, reader.docFreq(new Term(field, term)),
+                                                            dict.docFreq(ord));
+                assertEquals(engine, reader.totalTermFreq(
+                           new Term(field, term)), dict.totalTermFreq(ord));
+            }
+            assertEquals(engine, ord, dict.ceil(term));
+            assertEquals(engine, ord, dict.floor(term));
+        }
+        for (int it = 0; it < 2000; it++) {
+            final BytesRef key = new BytesRef(TestIndex.randomTerm(rnd));
+            final int ceil = TestIndex.ceil(sorted, key);
+            final boolean found = (ceil < sorted.size()) &&
+                                  sorted.get(ceil).equals(key);
+            final String msg = engine + " " + key.utf8ToString();
+
+            assertEquals(msg, ceil, dict.ceil(key));
+            assertEquals(msg, found ? ceil : ceil - 1, dict.floor(key));
+        }
+        if (!dict.hasFreqs()) {
+            try {
+                dict.docFreq(0);
+                fail(engine + ": dictionary without frequencies");
+            } catch (IllegalStateException ex) {
+                // esperado
+            }
+        }
+        try {
+            dict.term(sorted.size());
+            fail(engine + ": invalid ord accepted");
+        } catch (IllegalArgumentException ex) {
+            // esperado
+        }
+    }
+
+    @Test
+    public void rankQueries() throws IOException {
+        final PreviousTerm previous = index.open("dictionary", "f1");
+        try {
+            final List<BytesRef> sorted = new ArrayList<>(index.terms("f1"));
+            final Random rnd = new Random(8);
+
+            assertEquals(sorted.size(), previous.getTermCount(TestIndex.NAME,
+                                                                        "f1"));
+            for (int rank = 0; rank < sorted.size(); rank += 1 + rank / 50) {
+                assertEquals(sorted.get(rank).utf8ToString(),
+                        previous.getTermAtRank(TestIndex.NAME, "f1", rank));
+            }
+            for (int it = 0; it < 500; it++) {
+                final String term = TestIndex.randomTerm(rnd).trim();
+
+                assertEquals(term, TestIndex.ceil(sorted, new BytesRef(term)),
+                            previous.getRank(TestIndex.NAME, "f1", term));
+            }
+            try (PreviousTerm.Snapshot snap = previous.snapshot(
+                                                             TestIndex.NAME)) {
+                final int rank = snap.getRank("f1", "c");
+                final Set<String> fields = Collections.singleton("f1");
+                final BackwardCursorTest.Collector sink =
+                                           new BackwardCursorTest.Collector();
+
+                // a pagina a partir do termo de uma posicao comeca nele
+                snap.stream(snap.getTermAtRank("f1", rank), fields, true, 5,
+                                                  QueryOptions.DEFAULT, sink);
+                assertEquals(index.next(fields, "c", 5, 1, null), sink.terms);
+                assertEquals(sorted.size(), snap.getTermCount("f1"));
+            }
+            for (int rank : new int[] {-1, sorted.size()}) {
+                try {
+                    previous.getTermAtRank(TestIndex.NAME, "f1", rank);
+                    fail("invalid rank accepted: " + rank);
+                } catch (IOException ex) {
+                    // esperado
+                }
+            }
+            try {
+                previous.getTermCount(TestIndex.NAME, "f2");
+                fail("field without dictionary accepted");
+            } catch (IOException ex) {
+                // esperado
+            }
+        } finally {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void singleTermDictionary() throws IOException {
+        try (TestIndex single = new TestIndex()) {
+            single.add("x", "a");
+            single.write(1);
+            try (Directory directory = FSDirectory.open(single.getDir());
+                 DirectoryReader reader = DirectoryReader.open(directory)) {
+                final TermDictionary dict = TermDictionary.build("x",
+                                  MultiTerms.getTerms(reader, "x").iterator());
+                assertEquals(1, dict.size());
+                assertEquals(0, dict.ceil(new BytesRef("")));
+                assertEquals(-1, dict.floor(new BytesRef("")));
+                assertEquals(1, dict.ceil(new BytesRef("b")));
+                assertEquals(new TreeSet<>(Collections.singleton(
+                               new BytesRef("a"))), single.terms("x"));
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*=========================================================================
+
+    previousTerm © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/previousTerm/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.prvtrm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Indice Lucene temporario, gravado em varios segmentos (NoMergePolicy), e o
+ * oraculo dos seus termos: para cada campo, um TreeMap com o docFreq e o
+ * totalTermFreq de cada termo, preenchido a medida que os documentos sao
+ * adicionados. As paginas esperadas sao obtidas por forca bruta, percorrendo
+ * todos os termos dos campos em ordem crescente (e invertendo a lista para
+ * os termos previos).
+ *
+ * @author agent
+ * date: 20261017
+ */
+final class TestIndex implements Closeable {
+    static final String NAME = "idx";
+
+    // um unico token por valor, com as frequencias (totalTermFreq)
+    private static final FieldType KEYWORD = new FieldType(
+                                               StringField.TYPE_NOT_STORED);
+    static {
+        KEYWORD.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        KEYWORD.freeze();
+    }
+
+    private final Path dir;
+    private final Set<String> dvFields;
+    private final List<Map<String,List<String>>> docs;
+    private final Map<String,TreeMap<BytesRef,long[]>> freqs;
+
+    /**
+     * @param dvFields campos que tambem sao gravados como doc values
+     * (SORTED_SET)
+     */
+    TestIndex(final String... dvFields) throws IOException {
+        this.dir = Files.createTempDirectory("prvtrm-test");
+        this.dvFields = new HashSet<>(Arrays.asList(dvFields));
+        this.docs = new ArrayList<>();
+        this.freqs = new HashMap<>();
+    }
+
+    /**
+     * Cria um indice com documentos aleatorios
+     * @param seed semente dos numeros aleatorios
+     * @param ndocs numero de documentos
+     * @param segments numero aproximado de segmentos
+     * @param fields nomes dos campos
+     * @return o indice gravado
+     */
+    static TestIndex random(final long seed,
+                            final int ndocs,
+                            final int segments,
+                            final String... fields) throws IOException {
+        final Random rnd = new Random(seed);
+        final TestIndex index = new TestIndex(fields);
+
+        for (int idx = 0; idx < ndocs; idx++) {
+            final Map<String,List<String>> doc = new HashMap<>();
+            for (String field : fields) {
+                final List<String> values = new ArrayList<>();
+                final int tot = rnd.nextInt(3);
+                for (int val = 0; val < tot; val++) {
+                    values.add(randomTerm(rnd));
+                }
+                doc.put(field, values);
+            }
+            index.add(doc);
+        }
+        index.write(segments);
+        return index;
+    }
+
+    /**
+     * @param rnd gerador de numeros aleatorios
+     * @return um termo curto, de vez em quando vazio ou com letras acentuadas
+     * e caracteres de varios bytes
+     */
+    static String randomTerm(final Random rnd) {
+        if (rnd.nextInt(400) == 0) {
+            return "";
+        }
+        final String alpha = (rnd.nextInt(8) == 0) ? "aáçãzéÉ0 -~ÿ中😀"
+                                                   : "abcde";
+        final int len = 1 + rnd.nextInt((rnd.nextInt(5) == 0) ? 8 : 4);
+        final StringBuilder builder = new StringBuilder();
+
+        for (int idx = 0; idx < len; idx++) {
+            builder.appendCodePoint(alpha.codePointAt(
+                    alpha.offsetByCodePoints(0,
+                      rnd.nextInt(alpha.codePointCount(0, alpha.length())))));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param rnd gerador de numeros aleatorios
+     * @param fields nomes dos campos
+     * @return um subconjunto nao vazio de 'fields'
+     */
+    static Set<String> randomFields(final Random rnd,
+                                    final String... fields) {
+        final Set<String> ret = new HashSet<>();
+
+        for (String field : fields) {
+            if (rnd.nextBoolean()) {
+                ret.add(field);
+            }
+        }
+        if (ret.isEmpty()) {
+            ret.add(fields[0]);
+        }
+        return ret;
+    }
+
+    /**
+     * @param rnd gerador de numeros aleatorios
+     * @return um termo inicial aleatorio, sem espacos nas pontas e nunca
+     * vazio
+     */
+    static String randomInit(final Random rnd) {
+        final String init = randomTerm(rnd).trim();
+
+        return init.isEmpty() ? "b" : init;
+    }
+
+    /**
+     * @param sorted termos em ordem crescente
+     * @param term termo procurado
+     * @return a posicao do primeiro termo de 'sorted' maior ou igual a 'term'
+     */
+    static int ceil(final List<BytesRef> sorted,
+                    final BytesRef term) {
+        final int pos = Collections.binarySearch(sorted, term);
+
+        return (pos >= 0) ? pos : -(pos + 1);
+    }
+
+    /**
+     * Apaga um diretorio e tudo o que ele contem
+     * @param path caminho do diretorio
+     */
+    static void delete(final Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            final List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            Collections.reverse(all);
+            for (Path file : all) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Acrescenta um documento (gravado somente no 'write()')
+     * @param doc valores de cada campo (um termo por valor)
+     */
+    void add(final Map<String,List<String>> doc) {
+        docs.add(doc);
+        for (Map.Entry<String,List<String>> entry : doc.entrySet()) {
+            final TreeMap<BytesRef,long[]> map = freqs.computeIfAbsent(
+                                          entry.getKey(), k -> new TreeMap<>());
+            final Set<String> seen = new HashSet<>();
+
+            for (String value : entry.getValue()) {
+                final long[] freq = map.computeIfAbsent(new BytesRef(value),
+                                                         k -> new long[2]);
+                if (seen.add(value)) {
+                    freq[0]++;
+                }
+                freq[1]++;
+            }
+        }
+    }
+
+    /**
+     * Acrescenta um documento com um unico campo
+     * @param field nome do campo
+     * @param values termos do campo
+     */
+    void add(final String field,
+             final String... values) {
+        add(Collections.singletonMap(field, Arrays.asList(values)));
+    }
+
+    /**
+     * Grava os documentos em 'segments' segmentos, aproximadamente
+     * @param segments numero de segmentos
+     */
+    void write(final int segments) throws IOException {
+        final IndexWriterConfig config = new IndexWriterConfig();
+
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setMaxBufferedDocs(Math.max(2,
+                                    (docs.size() + segments - 1) / segments));
+        try (Directory directory = FSDirectory.open(dir);
+             IndexWriter writer = new IndexWriter(directory, config)) {
+            for (Map<String,List<String>> values : docs) {
+                final Document doc = new Document();
+                for (Map.Entry<String,List<String>> entry : values.entrySet()) {
+                    for (String value : entry.getValue()) {
+                        doc.add(new Field(entry.getKey(), value, KEYWORD));
+                        if (dvFields.contains(entry.getKey())) {
+                            doc.add(new SortedSetDocValuesField(
+                                         entry.getKey(), new BytesRef(value)));
+                        }
+                    }
+                }
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    /**
+     * @return nome e caminho do indice, como esperado pelo PreviousTerm
+     */
+    Map<String,String> info() {
+        return Collections.singletonMap(NAME, dir.toString());
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @param engine serial, dictionary (TermDictionary de todos os campos),
+     * parallel (um cursor por segmento) ou docvalues (DocValuesDictionary
+     * dos campos gravados com doc values)
+     * @param fields campos com dicionario
+     * @return um PreviousTerm que usa o indice
+     */
+    PreviousTerm open(final String engine,
+                      final String... fields) throws IOException {
+        final PreviousTerm.Builder builder = new PreviousTerm.Builder(info(),
+                                                                           10);
+        final Map<String,Set<String>> dict = Collections.singletonMap(NAME,
+                                          new HashSet<>(Arrays.asList(fields)));
+        final PreviousTerm previous;
+
+        switch (engine) {
+            case "serial":
+                previous = builder.build();
+                break;
+            case "dictionary":
+                previous = builder.dictFields(dict).build();
+                break;
+            case "parallel":
+                previous = builder.build();
+                previous.setParallelism(4, 1);
+                break;
+            case "docvalues":
+                previous = builder.docValuesFields(dict).build();
+                break;
+            default:
+                throw new IllegalArgumentException(engine);
+        }
+        return previous;
+    }
+
+    /**
+     * @param field nome do campo
+     * @return os termos do campo em ordem crescente
+     */
+    TreeSet<BytesRef> terms(final String field) {
+        final TreeMap<BytesRef,long[]> map = freqs.get(field);
+
+        return (map == null) ? new TreeSet<>() : new TreeSet<>(map.keySet());
+    }
+
+    /**
+     * @return docFreq de 'term' somado em todos os campos
+     */
+    long docFreq(final Set<String> fields,
+                 final String term) {
+        return freq(fields, term, 0);
+    }
+
+    /**
+     * @return totalTermFreq de 'term' somado em todos os campos
+     */
+    long totalTermFreq(final Set<String> fields,
+                       final String term) {
+        return freq(fields, term, 1);
+    }
+
+    private long freq(final Set<String> fields,
+                      final String term,
+                      final int which) {
+        final BytesRef key = new BytesRef(term);
+        long total = 0;
+
+        for (String field : fields) {
+            final TreeMap<BytesRef,long[]> map = freqs.get(field);
+            final long[] freq = (map == null) ? null : map.get(key);
+            if (freq != null) {
+                total += freq[which];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return todos os termos dos campos, sem repeticoes, em ordem crescente
+     * dos bytes e filtrados por 'minDocFreq' e 'prefix' (null se nao houver)
+     */
+    List<String> scan(final Set<String> fields,
+                      final int minDocFreq,
+                      final String prefix) {
+        final TreeSet<BytesRef> all = new TreeSet<>();
+        final List<String> ret = new ArrayList<>();
+
+        for (String field : fields) {
+            all.addAll(terms(field));
+        }
+        for (BytesRef term : all) {
+            final String text = term.utf8ToString();
+            if ((docFreq(fields, text) >= minDocFreq) &&
+                ((prefix == null) || text.startsWith(prefix))) {
+                ret.add(text);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return os proximos 'max' termos a partir de 'init' (inclusive)
+     */
+    List<String> next(final Set<String> fields,
+                      final String init,
+                      final int max,
+                      final int minDocFreq,
+                      final String prefix) {
+        final BytesRef from = new BytesRef(init);
+        final List<String> ret = new ArrayList<>();
+
+        for (String term : scan(fields, minDocFreq, prefix)) {
+            if (ret.size() == max) {
+                break;
+            }
+            if (new BytesRef(term).compareTo(from) >= 0) {
+                ret.add(term);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return os 'max' termos previos a 'init' (inclusive), obtidos
+     * invertendo a leitura crescente de todos os termos
+     */
+    List<String> previous(final Set<String> fields,
+                          final String init,
+                          final int max,
+                          final int minDocFreq,
+                          final String prefix) {
+        final BytesRef to = new BytesRef(init);
+        final List<String> forward = new ArrayList<>();
+
+        for (String term : scan(fields, minDocFreq, prefix)) {
+            if (new BytesRef(term).compareTo(to) <= 0) {
+                forward.add(term);
+            }
+        }
+        Collections.reverse(forward);
+
+        return forward.subList(0, Math.min(max, forward.size()));
+    }
+
+    /**
+     * @param collator ordem colada (comparacao primaria)
+     * @return os termos dos campos na ordem colada e, entre chaves iguais,
+     * na ordem dos bytes
+     */
+    List<String> collated(final Set<String> fields,
+                          final Comparator<String> collator) {
+        final TreeSet<String> all = new TreeSet<>((t1, t2) -> {
+            final int cmp = collator.compare(t1, t2);
+            return (cmp != 0) ? cmp : new BytesRef(t1).compareTo(
+                                                           new BytesRef(t2));
+        });
+        for (String field : fields) {
+            for (BytesRef term : terms(field)) {
+                all.add(term.utf8ToString());
+            }
+        }
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * Apaga o diretorio do indice
+     */
+    @Override
+    public void close() throws IOException {
+        delete(dir);
+    }
+}